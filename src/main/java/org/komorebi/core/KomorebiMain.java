@@ -1,5 +1,6 @@
 package org.komorebi.core;
 
+import org.komorebi.core.configuration.ConfigSnapshot;
 import org.komorebi.core.configuration.KomorebiCoreConfig;
 import org.komorebi.core.security.UserStore;
 
@@ -19,7 +20,7 @@ public class KomorebiMain {
 			ServerRunner sr = new ServerRunner();
 			sr.run();
 		}else{
-			KomorebiCoreConfig config = new KomorebiCoreConfig();
+			ConfigSnapshot config = KomorebiCoreConfig.getSnapshot();
 			if("--init-user-store".equals(args[0])){
 				// initialise user store
 				UserStore store = UserStore.getInstance();
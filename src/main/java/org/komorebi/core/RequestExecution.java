@@ -0,0 +1,133 @@
+package org.komorebi.core;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+import org.komorebi.core.configuration.ConfigSnapshot;
+
+/**
+ * Sets up the threads that execute requests. Resource methods run on the worker threads of the
+ * HTTP server, the selector threads only accept connections and read requests, so a request that
+ * blocks (user store, storage PlugIns) only holds a worker.
+ *
+ * The mode is set by <code>connection.execution</code>:
+ * <ul>
+ * <li><code>pool</code> (default): a worker pool of <code>connection.workerThreads</code> threads
+ * with a queue of <code>connection.workerQueue</code> requests (unbounded if negative)</li>
+ * <li><code>virtual</code>: every request gets its own virtual thread, so blocked requests do
+ * not limit the number of requests that are served. Needs a JVM with virtual threads, else
+ * <code>pool</code> is used.</li>
+ * <li><code>default</code>: the worker pool of Grizzly</li>
+ * </ul>
+ * The number of selector threads can be set with <code>connection.selectorThreads</code>.
+ *
+ * @author lycis
+ *
+ */
+public final class RequestExecution {
+	private static final String LOGGER_NAME = "server";
+	private static final int DEFAULT_WORKER_THREADS = 64;
+	private static final int DEFAULT_WORKER_QUEUE = -1;
+
+	private RequestExecution(){
+	}
+
+	/**
+	 * Configures the workers of all listeners of a server. Has to be called before the server
+	 * is started.
+	 *
+	 * @param server the server
+	 * @param config configuration
+	 * @return the executor of virtual threads that has to be shut down with the server or <code>null</code>
+	 */
+	public static ExecutorService configure(HttpServer server, ConfigSnapshot config){
+		String mode = config.getString("connection.execution", "pool");
+		int selectors = config.getInt("connection.selectorThreads", 0);
+
+		ExecutorService virtual = null;
+		if("virtual".equals(mode)){
+			virtual = newVirtualThreadExecutor();
+			if(virtual == null){
+				Logger.getLogger(LOGGER_NAME).warning("Virtual threads are not supported by this JVM. Using a worker pool instead.");
+				mode = "pool";
+			}
+		}else if(!"pool".equals(mode) && !"default".equals(mode)){
+			Logger.getLogger(LOGGER_NAME).warning("Unknown execution mode '"+mode+"'. Using a worker pool instead.");
+			mode = "pool";
+		}
+
+		int threads = config.getInt("connection.workerThreads", DEFAULT_WORKER_THREADS);
+		if(threads <= 0){
+			Logger.getLogger(LOGGER_NAME).warning("Invalid number of worker threads was given. Assuming "+DEFAULT_WORKER_THREADS+" as default.");
+			threads = DEFAULT_WORKER_THREADS;
+		}
+		int queue = config.getInt("connection.workerQueue", DEFAULT_WORKER_QUEUE);
+
+		for(NetworkListener listener: server.getListeners()){
+			TCPNIOTransport transport = listener.getTransport();
+			if(selectors > 0){
+				transport.setSelectorRunnersCount(selectors);
+			}
+
+			if(virtual != null){
+				transport.setWorkerThreadPool(virtual);
+			}else if("pool".equals(mode)){
+				ThreadPoolConfig pool = ThreadPoolConfig.defaultConfig().copy()
+				                                        .setPoolName("komorebi-worker")
+				                                        .setCorePoolSize(threads)
+				                                        .setMaxPoolSize(threads)
+				                                        .setQueueLimit(queue);
+				transport.setWorkerThreadPoolConfig(pool);
+			}
+		}
+
+		if(virtual != null){
+			Logger.getLogger(LOGGER_NAME).info("Requests are executed on virtual threads.");
+		}else if("pool".equals(mode)){
+			Logger.getLogger(LOGGER_NAME).info("Requests are executed by "+threads+" worker threads.");
+		}
+		return virtual;
+	}
+
+	/**
+	 * Stops an executor that was returned by {@link #configure(HttpServer, ConfigSnapshot)}.
+	 *
+	 * @param executor the executor or <code>null</code>
+	 */
+	public static void shutdown(ExecutorService executor){
+		if(executor == null){
+			return;
+		}
+		executor.shutdown();
+		try{
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Creates an executor that starts a virtual thread per task. It is looked up by reflection
+	 * as the server is built for older JVMs.
+	 *
+	 * @return the executor or <code>null</code> if the JVM has no virtual threads
+	 */
+	static ExecutorService newVirtualThreadExecutor(){
+		try{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch(NoSuchMethodException e){
+			return null;
+		}catch(IllegalAccessException e){
+			return null;
+		}catch(InvocationTargetException e){
+			return null; // e.g. preview feature that is not enabled
+		}
+	}
+}
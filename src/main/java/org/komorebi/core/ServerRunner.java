@@ -5,6 +5,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Logger;
 
 import org.glassfish.grizzly.http.server.HttpServer;
@@ -14,6 +15,7 @@ import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.glassfish.jersey.server.model.Resource;
 import org.glassfish.jersey.server.model.ResourceMethod;
+import org.komorebi.core.configuration.ConfigSnapshot;
 import org.komorebi.core.configuration.KomorebiCoreConfig;
 import org.komorebi.core.plugin.PluginManager;
 import org.komorebi.core.security.UserStore;
@@ -30,11 +32,12 @@ public class ServerRunner implements Runnable {
 	 * Start up server.
 	 */
 	public void run() {
-		// get config
-		KomorebiCoreConfig config = new KomorebiCoreConfig();
+		// get config and apply changes while running
+		ConfigSnapshot config = KomorebiCoreConfig.getSnapshot();
+		KomorebiCoreConfig.watch();
 		
 		// load user store
-		if(config.getBoolean("users.encrypted")){
+		if(config.getBoolean("users.encrypted", false)){
 			// TODO password query + load with password
 		}else{
 			if(!UserStore.getInstance().load(null)){
@@ -78,7 +81,8 @@ public class ServerRunner implements Runnable {
 
 		final HttpServer server = GrizzlyHttpServerFactory.createHttpServer(
 				uri, rc, true, new SSLEngineConfigurator(sslContext)
-						.setClientMode(false).setNeedClientAuth(false));
+						.setClientMode(false).setNeedClientAuth(false), false);
+		final ExecutorService requestExecutor = RequestExecution.configure(server, config);
 		try {
 			server.start();
 		} catch (IOException e) {
@@ -93,6 +97,8 @@ public class ServerRunner implements Runnable {
 
 			public void run() {
 				server.stop();
+				RequestExecution.shutdown(requestExecutor);
+				PluginManager.shutdown();
 
 			}
 		}, "shutdownHook"));
@@ -0,0 +1,23 @@
+package org.komorebi.core.configuration;
+
+import java.util.Set;
+
+/**
+ * Is notified when the configuration file was changed and a new {@link ConfigSnapshot} was
+ * published. Listeners are called one after another on the thread that watches the file, so
+ * they should return quickly.
+ * 
+ * @author lycis
+ *
+ */
+public interface ConfigListener {
+	
+	/**
+	 * Called after a new snapshot was published.
+	 * 
+	 * @param previous the snapshot that was replaced
+	 * @param current the new snapshot
+	 * @param changedKeys keys of all settings that changed
+	 */
+	void configChanged(ConfigSnapshot previous, ConfigSnapshot current, Set<String> changedKeys);
+}
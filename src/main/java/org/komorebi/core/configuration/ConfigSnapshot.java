@@ -0,0 +1,200 @@
+package org.komorebi.core.configuration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.configuration.Configuration;
+
+/**
+ * Immutable copy of the configuration at one point in time. Reading a setting from a snapshot
+ * does not touch the configuration file. The current snapshot is provided by
+ * {@link KomorebiCoreConfig#getSnapshot()}.
+ *
+ * Every value is parsed as number and boolean once when the snapshot is created, so reading a
+ * typed setting is a map lookup and a field load.
+ *
+ * Keys are the same as with {@link KomorebiCoreConfig} (e.g. <code>storage.threads</code> or
+ * <code>storage.retentionTime[@unit]</code>). If a key occurs more than once its first value is used.
+ *
+ * @author lycis
+ *
+ */
+public final class ConfigSnapshot {
+
+	/**
+	 * A setting with the results of parsing it.
+	 */
+	private static final class Value{
+		final String string;
+		final boolean isInt;
+		final int intValue;
+		final boolean isLong;
+		final long longValue;
+		final boolean isDouble;
+		final double doubleValue;
+		final Boolean booleanValue; // null if no boolean
+
+		Value(String string){
+			this.string = string;
+			String v = string != null ? string.trim() : null;
+
+			long l = 0;
+			boolean parsed = false;
+			try{
+				l = Long.parseLong(v);
+				parsed = true;
+			}catch(NumberFormatException e){
+				// no integer
+			}
+			isLong = parsed;
+			longValue = l;
+			isInt = parsed && l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE;
+			intValue = (int) l;
+
+			double d = 0;
+			parsed = false;
+			try{
+				if(v != null){
+					d = Double.parseDouble(v);
+					parsed = true;
+				}
+			}catch(NumberFormatException e){
+				// no number
+			}
+			isDouble = parsed;
+			doubleValue = d;
+
+			if("true".equalsIgnoreCase(v) || "yes".equalsIgnoreCase(v) || "on".equalsIgnoreCase(v)){
+				booleanValue = Boolean.TRUE;
+			}else if("false".equalsIgnoreCase(v) || "no".equalsIgnoreCase(v) || "off".equalsIgnoreCase(v)){
+				booleanValue = Boolean.FALSE;
+			}else{
+				booleanValue = null;
+			}
+		}
+	}
+
+	private final Map<String, Value> values;
+	private final long version;
+
+	/**
+	 * Copies all settings of a configuration.
+	 *
+	 * @param config configuration that was read from the file
+	 * @param version number of the snapshot (increases with every reload)
+	 */
+	ConfigSnapshot(Configuration config, long version){
+		Map<String, Value> copy = new HashMap<String, Value>();
+		for(Iterator<String> it = config.getKeys(); it.hasNext(); ){
+			String key = it.next();
+			copy.put(key, new Value(config.getString(key)));
+		}
+		this.values = Collections.unmodifiableMap(copy);
+		this.version = version;
+	}
+
+	/**
+	 * @return number of the snapshot, a reload of the configuration gives a higher number
+	 */
+	public long getVersion(){
+		return version;
+	}
+
+	/**
+	 * @param key key of the setting
+	 * @return <code>true</code> if the setting exists
+	 */
+	public boolean containsKey(String key){
+		return values.containsKey(key);
+	}
+
+	/**
+	 * @param key key of the setting
+	 * @param defaultValue value if the setting does not exist
+	 * @return value of the setting
+	 */
+	public String getString(String key, String defaultValue){
+		Value v = values.get(key);
+		return v != null && v.string != null ? v.string : defaultValue;
+	}
+
+	/**
+	 * @param key key of the setting
+	 * @return value of the setting or <code>null</code> if it does not exist
+	 */
+	public String getString(String key){
+		Value v = values.get(key);
+		return v != null ? v.string : null;
+	}
+
+	/**
+	 * @param key key of the setting
+	 * @param defaultValue value if the setting does not exist or is no number
+	 * @return value of the setting
+	 */
+	public int getInt(String key, int defaultValue){
+		Value v = values.get(key);
+		return v != null && v.isInt ? v.intValue : defaultValue;
+	}
+
+	/**
+	 * @param key key of the setting
+	 * @param defaultValue value if the setting does not exist or is no number
+	 * @return value of the setting
+	 */
+	public long getLong(String key, long defaultValue){
+		Value v = values.get(key);
+		return v != null && v.isLong ? v.longValue : defaultValue;
+	}
+
+	/**
+	 * @param key key of the setting
+	 * @param defaultValue value if the setting does not exist or is no number
+	 * @return value of the setting
+	 */
+	public double getDouble(String key, double defaultValue){
+		Value v = values.get(key);
+		return v != null && v.isDouble ? v.doubleValue : defaultValue;
+	}
+
+	/**
+	 * Booleans are given as <code>true</code>/<code>false</code>, <code>yes</code>/<code>no</code>
+	 * or <code>on</code>/<code>off</code>.
+	 *
+	 * @param key key of the setting
+	 * @param defaultValue value if the setting does not exist or is no boolean
+	 * @return value of the setting
+	 */
+	public boolean getBoolean(String key, boolean defaultValue){
+		Value v = values.get(key);
+		return v != null && v.booleanValue != null ? v.booleanValue.booleanValue() : defaultValue;
+	}
+
+	/**
+	 * Gives the keys whose values differ between two snapshots, including keys that exist
+	 * in only one of them.
+	 *
+	 * @param other the other snapshot
+	 * @return keys of the changed settings
+	 */
+	public Set<String> getChangedKeys(ConfigSnapshot other){
+		Set<String> changed = new HashSet<String>();
+		for(Map.Entry<String, Value> e: values.entrySet()){
+			Value o = other.values.get(e.getKey());
+			String s = e.getValue().string;
+			if(o == null || (s == null ? o.string != null : !s.equals(o.string))){
+				changed.add(e.getKey());
+			}
+		}
+		for(String key: other.values.keySet()){
+			if(!values.containsKey(key)){
+				changed.add(key);
+			}
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,75 @@
+package org.komorebi.core.configuration;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.logging.Logger;
+
+/**
+ * Watches the directory of the configuration file and reloads the configuration when the file
+ * was changed. Events that arrive shortly after each other (editors often write a file in several
+ * steps) lead to a single reload.
+ *
+ * @author lycis
+ *
+ */
+class ConfigWatcher implements Runnable {
+	private static final long SETTLE_TIME = 200; // milliseconds
+
+	private final Path file;
+	private final WatchService watcher;
+
+	/**
+	 * Registers the directory of the file with a new watch service.
+	 *
+	 * @param file the configuration file
+	 * @throws IOException if the directory can not be watched
+	 */
+	ConfigWatcher(Path file) throws IOException{
+		this.file = file.toAbsolutePath();
+		this.watcher = FileSystems.getDefault().newWatchService();
+		this.file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+		                               StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+
+	public void run() {
+		try{
+			for(;;){
+				WatchKey key = watcher.take();
+				boolean changed = false;
+				do{
+					for(WatchEvent<?> event: key.pollEvents()){
+						Object context = event.context();
+						if(event.kind() == StandardWatchEventKinds.OVERFLOW ||
+						   (context instanceof Path && file.getFileName().equals(context))){
+							changed = true;
+						}
+					}
+					if(!key.reset()){
+						Logger.getLogger("config").warning("Configuration directory can not be watched any more. Changes will not be applied.");
+						return;
+					}
+
+					// wait until the file was written completely
+					Thread.sleep(changed ? SETTLE_TIME : 0);
+				}while(changed && (key = watcher.poll()) != null);
+
+				if(changed){
+					KomorebiCoreConfig.fileChanged();
+				}
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}finally{
+			try{
+				watcher.close();
+			}catch(IOException e){
+				Logger.getLogger("config").warning("Potential resource leak: could not close configuration watcher (reason: "+e.getMessage()+")");
+			}
+		}
+	}
+}
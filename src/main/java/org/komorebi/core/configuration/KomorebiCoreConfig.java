@@ -2,6 +2,10 @@ package org.komorebi.core.configuration;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
 import org.apache.commons.configuration.ConfigurationException;
@@ -10,9 +14,11 @@ import org.apache.commons.configuration.XMLConfiguration;
 import com.google.common.io.Files;
 
 /**
- * Provides convenient access to the config file. Whenever a setting is read from the configuration
- * it will be taken from the file itself. This means that changes to the configuration are immediately
- * applied (except startup information).
+ * Provides convenient access to the config file. Creating an instance parses the file, so code that
+ * reads settings frequently should use the current {@link ConfigSnapshot} instead
+ * ({@link #getSnapshot()}). Once {@link #watch()} was called the snapshot is replaced whenever the
+ * file changes and all registered {@link ConfigListener}s are notified, so changes can be
+ * applied while the server is running.
  * 
  * @author lycis
  *
@@ -20,6 +26,12 @@ import com.google.common.io.Files;
 public class KomorebiCoreConfig extends XMLConfiguration{	
 	private static final String CONFIG_FILENAME = "komorebi-core-conf.xml";
 	
+	// current snapshot and its listeners
+	private static final Object SNAPSHOT_LOCK = new Object();
+	private static volatile ConfigSnapshot snapshot = null;
+	private static final List<ConfigListener> listeners = new CopyOnWriteArrayList<ConfigListener>();
+	private static Thread watcherThread = null;
+	
 	/**
 	 * default constructor
 	 */
@@ -27,6 +39,98 @@ public class KomorebiCoreConfig extends XMLConfiguration{
 		load();
 	}
 	
+	/**
+	 * Gives the current configuration. The first call reads the file, later calls only load
+	 * a reference.
+	 * 
+	 * @return snapshot of the configuration
+	 */
+	public static ConfigSnapshot getSnapshot(){
+		ConfigSnapshot s = snapshot;
+		if(s == null){
+			synchronized(SNAPSHOT_LOCK){
+				if(snapshot == null){
+					snapshot = new ConfigSnapshot(new KomorebiCoreConfig(), 0);
+				}
+				s = snapshot;
+			}
+		}
+		return s;
+	}
+	
+	/**
+	 * Registers a listener that is notified when the configuration changes.
+	 * 
+	 * @param listener the listener
+	 */
+	public static void addListener(ConfigListener listener){
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Removes a listener.
+	 * 
+	 * @param listener the listener
+	 */
+	public static void removeListener(ConfigListener listener){
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Starts watching the configuration file for changes. Does nothing if the file is already watched.
+	 */
+	public static synchronized void watch(){
+		if(watcherThread != null){
+			return;
+		}
+		
+		getSnapshot(); // changes are detected against the current state
+		try{
+			watcherThread = new Thread(new ConfigWatcher(Paths.get(CONFIG_FILENAME)), "config-watcher");
+		}catch(IOException e){
+			Logger.getLogger("config").warning("Configuration file can not be watched, changes require a restart: "+e.getMessage());
+			return;
+		}
+		watcherThread.setDaemon(true);
+		watcherThread.start();
+	}
+	
+	/**
+	 * Reads the configuration file again and publishes a new snapshot if anything changed. If the
+	 * file can not be parsed the current snapshot is kept.
+	 */
+	static void fileChanged(){
+		XMLConfiguration parsed = new XMLConfiguration();
+		try{
+			parsed.load(CONFIG_FILENAME);
+		}catch(ConfigurationException e){
+			Logger.getLogger("config").warning("Changed configuration can not be read and is ignored: "+e.getMessage());
+			return;
+		}
+		
+		ConfigSnapshot previous = null;
+		ConfigSnapshot current = null;
+		Set<String> changed = null;
+		synchronized(SNAPSHOT_LOCK){
+			previous = getSnapshot();
+			current = new ConfigSnapshot(parsed, previous.getVersion()+1);
+			changed = previous.getChangedKeys(current);
+			if(changed.isEmpty()){
+				return;
+			}
+			snapshot = current;
+		}
+		
+		Logger.getLogger("config").info("Configuration changed: "+changed);
+		for(ConfigListener l: listeners){
+			try{
+				l.configChanged(previous, current, changed);
+			}catch(RuntimeException e){
+				Logger.getLogger("config").warning("Configuration listener failed: "+e.getMessage());
+			}
+		}
+	}
+	
 	/**
 	 * load data from configuration file
 	 */
@@ -54,12 +158,39 @@ public class KomorebiCoreConfig extends XMLConfiguration{
 		
 		// user store
 		super.setProperty("users.store", "user.str"); // filename of the user store
-		super.setProperty("users.hashmethod", "SHA-2"); // used hash method (supported: PLAIN (not recommended!!), SHA-2)
+		super.setProperty("users.hashmethod", "SHA-2"); // used hash method (supported: PLAIN (not recommended!!), SHA-2 (PBKDF2 with HMAC-SHA256))
+		super.setProperty("users.hash.targetTime", 50); // milliseconds one password check should take, the cost of new hashes is calibrated to it
+		super.setProperty("users.hash.minIterations", 10000); // lower limit of the calibrated cost
+		super.setProperty("users.hash.threads", Runtime.getRuntime().availableProcessors()); // number of threads that verify passwords
+		super.setProperty("users.hash.queueSize", 64); // number of password checks that may wait, further logins are rejected
 		super.setProperty("users.encrypted", false); // tells if the user store is encrypted (password required on start) 
+		super.setProperty("users.authCache.size", 1024); // number of verified credentials that are remembered (0 disables the cache)
+		super.setProperty("users.authCache.ttl", 60); // seconds until remembered credentials have to be verified again
+		super.setProperty("users.session.ttl", 3600); // seconds until a session token expires
 		
 		// storage options
 		super.setProperty("storage.threads", 1); // number of threads to handle storage threads
 		super.setProperty("storage.retentionTime", 300); // indicates how long the records of a storage job are kept until purged
+		super.setProperty("storage.chunkSize", 4194304); // size of the chunks files are split into (bytes)
+		super.setProperty("storage.pipelineDepth", 2); // number of chunks that may be held in memory at once
+		super.setProperty("storage.queueSize", 64); // number of storage jobs that may be active at once, further jobs are rejected
+		super.setProperty("storage.locationThreads", 4); // number of parallel chunk writes per storage backend
+		super.setProperty("storage.batch.maxChunks", 32); // maximum number of chunks a PlugIn that supports batches gets with one call
+		super.setProperty("storage.batch.laneThreads", 1); // parallel writes per location of a PlugIn that supports batches, further chunks queue up for a batch
+		super.setProperty("storage.replicas", 1); // number of locations every chunk is written to
+		super.setProperty("storage.placement", "replicate"); // how chunks are placed (supported: replicate, erasure)
+		super.setProperty("storage.erasure.data", 4); // erasure coding: number of chunks per stripe
+		super.setProperty("storage.erasure.parity", 2); // erasure coding: number of parity shards per stripe
+		super.setProperty("storage.chunking", "fixed"); // where files are split (supported: fixed, cdc)
+		super.setProperty("storage.chunkAverage", 1048576); // content defined chunking: average chunk size (bytes)
+		super.setProperty("storage.deduplicate", false); // skip chunks that are already stored at a location
+		super.setProperty("storage.readThreads", 4); // number of threads that fetch chunks for downloads
+		super.setProperty("storage.readahead", 4); // number of chunks every download fetches ahead
+		super.setProperty("storage.hedge.percentile", 95); // latency percentile of a PlugIn after which a read is sent to another replica (0 disables)
+		super.setProperty("storage.hedge.minDelay", 5); // lower bound of the hedging delay (milliseconds)
+		super.setProperty("storage.hedge.maxDelay", 1000); // upper bound of the hedging delay (milliseconds)
+		super.setProperty("storage.cache.directory", "cache"); // directory of the local chunk cache
+		super.setProperty("storage.cache.size", 1073741824L); // maximum size of the local chunk cache (bytes, 0 disables the cache)
 		
 		// backup corrupted copy if it exists
 		File cfile = new File(CONFIG_FILENAME);
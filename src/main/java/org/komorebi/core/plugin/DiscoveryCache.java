@@ -0,0 +1,208 @@
+package org.komorebi.core.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarFile;
+import java.util.logging.Logger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Remembers the PlugIn classes found in a JAR so it does not have to be scanned again on the
+ * next start. Entries are valid as long as size and modification time of the JAR are unchanged.
+ * If only the modification time changed (e.g. the JAR was copied again) the SHA-256 hash of the
+ * JAR decides.
+ *
+ * The cache is stored as JSON. Entries of JARs that were not used are dropped when it is saved.
+ *
+ * @author lycis
+ *
+ */
+class DiscoveryCache {
+	private static final String LOGGER_NAME = "pluginmanager";
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final int FORMAT = 1;
+
+	/**
+	 * Scan result of a JAR.
+	 */
+	private static class Entry{
+		final long size;
+		final long modified;
+		final String hash;
+		final List<String> plugins;
+
+		Entry(long size, long modified, String hash, List<String> plugins){
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+			this.plugins = Collections.unmodifiableList(plugins);
+		}
+	}
+
+	private final Path file;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final Map<String, Entry> used = new ConcurrentHashMap<String, Entry>();
+	private volatile boolean changed = false;
+
+	/**
+	 * Reads the cache file. A missing or unreadable file gives an empty cache.
+	 *
+	 * @param file the cache file
+	 */
+	DiscoveryCache(Path file){
+		this.file = file;
+		try{
+			JSONObject json = new JSONObject(new String(Files.readAllBytes(file), CHARSET));
+			if(json.getInt("format") != FORMAT){
+				return;
+			}
+
+			JSONObject jars = json.getJSONObject("jars");
+			for(Iterator<?> it = jars.keys(); it.hasNext(); ){
+				String jar = (String) it.next();
+				JSONObject e = jars.getJSONObject(jar);
+				JSONArray list = e.getJSONArray("plugins");
+				List<String> plugins = new ArrayList<String>(list.length());
+				for(int i=0; i<list.length(); ++i){
+					plugins.add(list.getString(i));
+				}
+				entries.put(jar, new Entry(e.getLong("size"), e.getLong("modified"), e.getString("hash"), plugins));
+			}
+		}catch(NoSuchFileException e){
+			// first start
+		}catch(IOException e){
+			Logger.getLogger(LOGGER_NAME).warning("PlugIn cache could not be read (reason: "+e.getMessage()+"). All PlugIns will be scanned.");
+		}catch(JSONException e){
+			Logger.getLogger(LOGGER_NAME).warning("PlugIn cache is invalid (reason: "+e.getMessage()+"). All PlugIns will be scanned.");
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Gives the PlugIn classes of a JAR, from the cache or by scanning it.
+	 *
+	 * @param jar path of the JAR
+	 * @return names of the candidate classes
+	 * @throws IOException if the JAR can not be read
+	 */
+	List<String> discover(Path jar) throws IOException{
+		return discover(jar, jar);
+	}
+
+	/**
+	 * Gives the PlugIn classes of a JAR that is read from a copy.
+	 *
+	 * @param jar path of the JAR the cache entry belongs to
+	 * @param file copy of the JAR that is read
+	 * @return names of the candidate classes
+	 * @throws IOException if the copy can not be read
+	 */
+	List<String> discover(Path jar, Path file) throws IOException{
+		String key = jar.toAbsolutePath().normalize().toString();
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		long modified = attributes.lastModifiedTime().toMillis();
+
+		Entry e = entries.get(key);
+		if(e != null && e.size == attributes.size() && e.modified == modified){
+			used.put(key, e);
+			return e.plugins;
+		}
+
+		String hash = hash(file);
+		if(e != null && e.size == attributes.size() && e.hash.equals(hash)){
+			e = new Entry(e.size, modified, hash, e.plugins);
+		}else{
+			JarFile jarFile = new JarFile(file.toFile());
+			try{
+				e = new Entry(attributes.size(), modified, hash, PluginScanner.scan(jarFile));
+			}finally{
+				jarFile.close();
+			}
+			Logger.getLogger(LOGGER_NAME).info("Scanned '"+jar+"': "+e.plugins.size()+" PlugIn classes.");
+		}
+
+		entries.put(key, e);
+		used.put(key, e);
+		changed = true;
+		return e.plugins;
+	}
+
+	/**
+	 * Writes the entries of the JARs that were used to the cache file if anything changed.
+	 */
+	void save(){
+		if(!changed && used.size() == entries.size()){ // nothing new and nothing to drop
+			return;
+		}
+
+		JSONObject jars = new JSONObject();
+		for(Map.Entry<String, Entry> u: used.entrySet()){
+			Entry e = u.getValue();
+			JSONObject json = new JSONObject();
+			json.put("size", e.size);
+			json.put("modified", e.modified);
+			json.put("hash", e.hash);
+			json.put("plugins", new JSONArray(e.plugins));
+			jars.put(u.getKey(), json);
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("format", FORMAT);
+		json.put("jars", jars);
+
+		try{
+			Path temp = Paths.get(file.toString()+".tmp");
+			Files.write(temp, json.toString().getBytes(CHARSET));
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(IOException e){
+			Logger.getLogger(LOGGER_NAME).warning("PlugIn cache could not be written (reason: "+e.getMessage()+")");
+		}
+	}
+
+	/**
+	 * @return SHA-256 of a file as hex string
+	 */
+	private static String hash(Path file) throws IOException{
+		MessageDigest digest;
+		try{
+			digest = MessageDigest.getInstance("SHA-256");
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException("SHA-256 is not supported by the JVM", e);
+		}
+
+		InputStream in = Files.newInputStream(file);
+		try{
+			byte[] buffer = new byte[65536];
+			int read;
+			while((read = in.read(buffer)) >= 0){
+				digest.update(buffer, 0, read);
+			}
+		}finally{
+			in.close();
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for(byte b: digest.digest()){
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
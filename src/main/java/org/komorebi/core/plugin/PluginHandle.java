@@ -0,0 +1,172 @@
+package org.komorebi.core.plugin;
+
+import java.io.IOException;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.komorebi.plugin.IKomorebiPlugin;
+
+/**
+ * A loaded version of a PlugIn: its own class loader, the PlugIn class and the pool of its
+ * instances. The class loader stays open as long as the handle is in use, so classes of the
+ * PlugIn that are needed later can still be loaded. It reads a private copy of the JAR that is
+ * deleted when the handle is closed, so the configured JAR may be replaced meanwhile.
+ *
+ * When a PlugIn is reloaded the new handle replaces the old one for all new calls. The old one
+ * is retired: it counts the calls that are still running on it and is closed (pool and class
+ * loader) when the last one is finished.
+ *
+ * @author lycis
+ *
+ */
+class PluginHandle {
+	private static final String LOGGER_NAME = "pluginmanager";
+
+	private final String name;
+	private final String version;
+	private final int generation;
+	private final URLClassLoader loader;
+	private final Class<IKomorebiPlugin> pluginClass;
+	private final PluginPool pool;
+	private final Path jar;
+	private final long jarSize;
+	private final long jarModified;
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+	private volatile boolean retired = false;
+
+	/**
+	 * @param name name of the PlugIn
+	 * @param version configured version of the PlugIn
+	 * @param generation number of the load, increases with every reload
+	 * @param loader class loader of the PlugIn JAR
+	 * @param pluginClass the PlugIn class
+	 * @param pool instances of the PlugIn class
+	 * @param jar copy of the JAR the class loader reads, deleted on close (may be <code>null</code>)
+	 * @param jarSize size of the JAR when it was loaded
+	 * @param jarModified modification time of the JAR when it was loaded
+	 */
+	PluginHandle(String name, String version, int generation, URLClassLoader loader, Class<IKomorebiPlugin> pluginClass, PluginPool pool, Path jar, long jarSize, long jarModified){
+		this.name = name;
+		this.version = version;
+		this.generation = generation;
+		this.loader = loader;
+		this.pluginClass = pluginClass;
+		this.pool = pool;
+		this.jar = jar;
+		this.jarSize = jarSize;
+		this.jarModified = jarModified;
+	}
+
+	/**
+	 * Registers a call that uses the PlugIn.
+	 *
+	 * @return <code>false</code> if the handle was retired, the current one has to be used then
+	 */
+	boolean enter(){
+		inFlight.incrementAndGet();
+		if(retired){
+			leave();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Ends a call that was registered with {@link #enter()}.
+	 */
+	void leave(){
+		if(inFlight.decrementAndGet() == 0 && retired){
+			synchronized(this){
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Stops new calls from entering the handle.
+	 */
+	void retire(){
+		retired = true;
+	}
+
+	/**
+	 * Waits until all calls on a retired handle are finished.
+	 *
+	 * @param timeout time in milliseconds to wait
+	 * @return <code>true</code> if no call is running anymore
+	 */
+	synchronized boolean awaitDrained(long timeout) throws InterruptedException{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while(inFlight.get() > 0){
+			long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if(wait <= 0){
+				return false;
+			}
+			wait(wait);
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the instances and the class loader and deletes the copy of the JAR.
+	 */
+	void close(){
+		pool.close();
+		try{
+			loader.close();
+		}catch(IOException e){
+			Logger.getLogger(LOGGER_NAME).warning("Potential resource leak: class loader of PlugIn '"+name+"' could not be closed (reason: "+e.getMessage()+")");
+			return; // the JAR may still be open
+		}
+
+		if(jar != null){
+			try{
+				Files.deleteIfExists(jar);
+			}catch(IOException e){
+				Logger.getLogger(LOGGER_NAME).warning("Copy of PlugIn '"+name+"' could not be deleted: "+jar+" (reason: "+e.getMessage()+")");
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the instance was created by this handle
+	 */
+	boolean owns(IKomorebiPlugin pi){
+		return pluginClass.isInstance(pi);
+	}
+
+	/**
+	 * @return <code>true</code> if the version or the JAR differs from the one that was loaded
+	 */
+	boolean isOutdated(String version, long size, long modified){
+		return !this.version.equals(version) || size != jarSize || modified != jarModified;
+	}
+
+	String getName(){
+		return name;
+	}
+
+	String getVersion(){
+		return version;
+	}
+
+	int getGeneration(){
+		return generation;
+	}
+
+	Class<IKomorebiPlugin> getPluginClass(){
+		return pluginClass;
+	}
+
+	PluginPool getPool(){
+		return pool;
+	}
+
+	int getInFlight(){
+		return inFlight.get();
+	}
+}
@@ -6,17 +6,34 @@ import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.apache.commons.configuration.tree.ConfigurationNode;
+import org.komorebi.core.configuration.ConfigListener;
+import org.komorebi.core.configuration.ConfigSnapshot;
 import org.komorebi.core.configuration.KomorebiCoreConfig;
+import org.komorebi.core.storeengine.IBatchChunkStorage;
 import org.komorebi.plugin.IKomorebiConfigurationConsumer;
 import org.komorebi.plugin.IKomorebiPlugin;
 import org.komorebi.plugin.annotations.KomorebiPluginStatus;
@@ -26,18 +43,58 @@ import org.komorebi.plugin.storage.IKomorebiStorage;
  * This is a singleton manager class that provides a possibility to load and instantiate
  * PlugIns. Access is only granted by using the static accessor methods.
  * 
+ * The JARs of the configured PlugIns are scanned in parallel without loading their classes
+ * (see {@link PluginScanner}). The results are kept in a cache file (<code>plugins.cache</code>)
+ * so unchanged JARs are not scanned again on the next start. Only the classes that were found
+ * are loaded.
+ * 
+ * Every PlugIn has a {@link PluginPool} that keeps its instances. By default one instance is
+ * shared by all callers. With the attribute <code>instances</code> of a configured PlugIn up to
+ * that number of instances are handed out exclusively by {@link #acquirePlugin(PluginType, String)}
+ * and reused after {@link #releasePlugin(PluginType, String, IKomorebiPlugin, boolean)}.
+ * 
+ * Every PlugIn JAR is loaded by its own class loader that stays open (see {@link PluginHandle}).
+ * {@link #reload()} loads PlugIns that were added to the configuration or whose JAR changed and
+ * switches new calls to them at once. Calls that are running on the old version are finished
+ * before it is closed. A reload is started when the <code>plugins</code> section of the
+ * configuration changes.
+ * 
+ * PlugIns are registered under their configured name and locations refer to them by it. Older
+ * locations that name the JAR (<code>name-version</code>) still resolve to the current version.
+ * Changing the version of a configured PlugIn replaces it like a changed JAR. Every version is
+ * loaded from a private copy of its JAR, so the JAR can be replaced while the old version is still
+ * running. Replace a JAR by writing the new one to a temporary file and renaming it into place,
+ * a JAR that is written in place may be copied half-written by a reload.
+ * 
  * @author lycis
  *
  */
 public class PluginManager {
 	// constants
 	private static final String LOGGER_NAME = "pluginmanager";
+	private static final String DEFAULT_CACHE = "plugins.cache";
+	private static final long DEFAULT_ACQUIRE_TIMEOUT = 30000; // ms
+	private static final long DEFAULT_DRAIN_TIMEOUT = 60000; // ms
 	
 	// singleton instance
 	private static PluginManager instance = new PluginManager();
 	
-	// plugin register
-	private Map<PluginType, Map<String, Class<IKomorebiPlugin>>> pluginRegister = null;
+	// plugin register: current version of every PlugIn by type and configured name
+	private final Map<PluginType, Map<String, PluginHandle>> pluginRegister;
+	
+	// old versions that still finish their calls
+	private final List<PluginHandle> retiring = new CopyOnWriteArrayList<PluginHandle>();
+	private int generation = 0;
+	private Path copyDirectory = null; // private copies of the loaded JARs
+	
+	// runs reloads that were caused by configuration changes
+	private final ExecutorService reloader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "plugin-reload");
+			t.setDaemon(true);
+			return t;
+		}
+	});
 	
 	/**
 	 * The available types on PlugIns.
@@ -48,173 +105,476 @@ public class PluginManager {
 		STORAGE,
 	};
 	
+	/**
+	 * Settings of a configured PlugIn.
+	 */
+	private static class PluginConfig{
+		final String version;
+		final int instances;
+		final long acquireTimeout;
+		
+		PluginConfig(String version, int instances, long acquireTimeout){
+			this.version = version;
+			this.instances = instances;
+			this.acquireTimeout = acquireTimeout;
+		}
+	}
+	
+	/**
+	 * A configured PlugIn while it is loaded.
+	 */
+	private static class Load{
+		final String name;
+		final PluginConfig config;
+		final Path jar;
+		Path copy = null; // set if the PlugIn has to be (re)loaded
+		Future<List<String>> scan = null;
+		
+		Load(String name, PluginConfig config){
+			this.name = name;
+			this.config = config;
+			this.jar = Paths.get(name+"-"+config.version+".jar");
+		}
+	}
+	
 	private PluginManager(){
-		pluginRegister = new HashMap<PluginType, Map<String, Class<IKomorebiPlugin>>>();
+		pluginRegister = new EnumMap<PluginType, Map<String, PluginHandle>>(PluginType.class);
+		for(PluginType t: PluginType.values()){
+			pluginRegister.put(t, new ConcurrentHashMap<String, PluginHandle>());
+		}
 		loadPlugins();
+		
+		KomorebiCoreConfig.addListener(new ConfigListener() {
+			public void configChanged(ConfigSnapshot previous, ConfigSnapshot current, Set<String> changedKeys) {
+				for(String key: changedKeys){
+					if(key.startsWith("plugins")){
+						reloader.execute(new Runnable() {
+							public void run() {
+								loadPlugins();
+							}
+						});
+						return;
+					}
+				}
+			}
+		});
 	}
 	
 	/**
-	 * Loads all registered PlugIns based on the configuration.
+	 * Loads all registered PlugIns based on the configuration. PlugIns that are already loaded
+	 * are only loaded again if their JAR or settings changed. PlugIns that are no longer
+	 * configured are removed.
+	 * 
+	 * @return names of the PlugIns that were added, replaced or removed
 	 */
-	private void loadPlugins(){
+	private synchronized List<String> loadPlugins(){
 		KomorebiCoreConfig config = new KomorebiCoreConfig();
+		List<String> changed = new ArrayList<String>();
 		
-		if(config.getRootNode().getChildrenCount("plugins") < 1){
-			return;
+		Map<String, PluginConfig> configured = new LinkedHashMap<String, PluginConfig>();
+		if(config.getRootNode().getChildrenCount("plugins") > 0){
+			long acquireTimeout = config.getLong("plugins.acquireTimeout", DEFAULT_ACQUIRE_TIMEOUT);
+			List<ConfigurationNode> pluginNodes = config.getRootNode().getChildren("plugins").get(0).getChildren("plugin");
+			for(int pos=0; pos<pluginNodes.size(); ++pos){
+				String name = config.getString("plugins.plugin("+pos+")[@name]");
+				String version = config.getString("plugins.plugin("+pos+")[@version]");
+				if(version == null || name == null){
+					continue;
+				}
+				
+				configured.put(name, new PluginConfig(version, config.getInt("plugins.plugin("+pos+")[@instances]", 0), acquireTimeout));
+			}
 		}
+		long drainTimeout = config.getLong("plugins.drainTimeout", DEFAULT_DRAIN_TIMEOUT);
 		
-		List<ConfigurationNode> pluginNodes = config.getRootNode().getChildren("plugins").get(0).getChildren("plugin");
-		for(int pos=0; pos<pluginNodes.size(); ++pos){
-			String name = config.getString("plugins.plugin("+pos+")[@name]");
-			String version = config.getString("plugins.plugin("+pos+")[@version]");
-			if(version == null || name == null){
-				continue;
+		// remove PlugIns that are not configured anymore
+		for(Map<String, PluginHandle> plugins: pluginRegister.values()){
+			for(String name: new ArrayList<String>(plugins.keySet())){
+				if(!configured.containsKey(name)){
+					retire(plugins.remove(name), drainTimeout);
+					Logger.getLogger(LOGGER_NAME).info("Removed PlugIn '"+name+"'");
+					changed.add(name);
+				}
+			}
+		}
+		if(configured.isEmpty()){
+			return changed;
+		}
+		
+		// copy the JARs that have to be loaded, a replaced JAR must not change under its class loader
+		List<Load> loads = new ArrayList<Load>();
+		for(Map.Entry<String, PluginConfig> plugin: configured.entrySet()){
+			Load load = new Load(plugin.getKey(), plugin.getValue());
+			try{
+				BasicFileAttributes attributes = Files.readAttributes(load.jar, BasicFileAttributes.class);
+				PluginHandle current = getHandle(load.name);
+				if(current == null || current.isOutdated(load.config.version, attributes.size(), attributes.lastModifiedTime().toMillis())
+				   || current.getPool().getSize() != Math.max(0, load.config.instances)){
+					load.copy = copyJar(load.name, load.jar);
+				}
+				loads.add(load);
+			}catch(IOException e){
+				Logger.getLogger(LOGGER_NAME).warning("Plugin '"+load.jar+"' could not be loaded (reason: "+e.getMessage()+")");
 			}
+		}
+		if(loads.isEmpty()){
+			return changed;
+		}
+		
+		// scan all jars at once, unchanged ones are only looked up in the cache
+		final DiscoveryCache cache = new DiscoveryCache(Paths.get(config.getString("plugins.cache", DEFAULT_CACHE)));
+		ExecutorService scanners = Executors.newFixedThreadPool(Math.min(loads.size(), Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger(0);
 			
-			loadPluginsJar(name+"-"+version); // check all classes in jar
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "plugin-scan-"+counter.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		for(Load load: loads){
+			final Path jar = load.jar;
+			final Path file = load.copy != null ? load.copy : load.jar;
+			load.scan = scanners.submit(new Callable<List<String>>() {
+				public List<String> call() throws Exception {
+					return cache.discover(jar, file);
+				}
+			});
+		}
+		scanners.shutdown();
+		
+		// register in the configured order
+		for(int i=0; i<loads.size(); ++i){
+			Load load = loads.get(i);
+			try{
+				List<String> classNames = load.scan.get();
+				if(load.copy == null){
+					continue; // unchanged
+				}
+				
+				BasicFileAttributes attributes = Files.readAttributes(load.copy, BasicFileAttributes.class);
+				if(loadPluginsJar(load, classNames, attributes.size(), attributes.lastModifiedTime().toMillis(), drainTimeout)){
+					changed.add(load.name);
+				}
+			}catch(ExecutionException e){
+				Logger.getLogger(LOGGER_NAME).warning("Plugin '"+load.jar+"' could not be loaded (reason: "+e.getCause().getMessage()+")");
+				deleteCopy(load.copy);
+			}catch(IOException e){
+				Logger.getLogger(LOGGER_NAME).warning("Plugin '"+load.jar+"' could not be loaded (reason: "+e.getMessage()+")");
+				deleteCopy(load.copy);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				for(int j=i; j<loads.size(); ++j){
+					deleteCopy(loads.get(j).copy);
+				}
+				return changed;
+			}
+		}
+		cache.save();
+		return changed;
+	}
+	
+	/**
+	 * Copies a JAR to a private file the class loader of a new version reads.
+	 */
+	private Path copyJar(String name, Path jar) throws IOException{
+		if(copyDirectory == null){
+			copyDirectory = Files.createTempDirectory("komorebi-plugins");
+		}
+		
+		Path copy = Files.createTempFile(copyDirectory, name+"-", ".jar");
+		try{
+			Files.copy(jar, copy, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+		}catch(IOException e){
+			deleteCopy(copy);
+			throw e;
+		}
+		return copy;
+	}
+	
+	/**
+	 * Deletes a copy of a JAR that was not loaded.
+	 */
+	private static void deleteCopy(Path copy){
+		if(copy == null){
+			return;
+		}
+		try{
+			Files.deleteIfExists(copy);
+		}catch(IOException e){
+			Logger.getLogger(LOGGER_NAME).warning("Copy of a PlugIn could not be deleted: "+copy+" (reason: "+e.getMessage()+")");
 		}
 	}
 	
 	/**
-	 * Scan a JAR for PlugIns and register them.
+	 * Loads the PlugIn classes of a JAR with a new class loader and registers the storage PlugIn.
+	 * A version of the PlugIn that was registered before is replaced. A JAR provides one storage
+	 * PlugIn, if it contains more the first class by name is used and the others are ignored.
 	 * 
-	 * @param jarname name of the JAR file
+	 * @param load the PlugIn with the copy of its JAR
+	 * @param classNames classes that were found by scanning the JAR
+	 * @param jarSize size of the JAR file
+	 * @param jarModified modification time of the JAR file
+	 * @param drainTimeout time in milliseconds a replaced version may finish its calls
+	 * @return <code>true</code> if a PlugIn was registered
 	 */
-	private void loadPluginsJar(String jarname){
+	@SuppressWarnings("unchecked")
+	private boolean loadPluginsJar(Load load, List<String> classNames, long jarSize, long jarModified, long drainTimeout){
 		URL[] urlList = new URL[1];
 		try{
-			URL jarUrl = new URL("file:"+jarname+".jar");
-			urlList[0] = jarUrl;
+			urlList[0] = load.copy.toUri().toURL();
 		}catch(MalformedURLException e){
-			Logger.getLogger(LOGGER_NAME).warning("Plugin '"+jarname+"' could not be loaded (invalid path)");
+			Logger.getLogger(LOGGER_NAME).warning("Plugin '"+load.jar+"' could not be loaded (invalid path)");
+			deleteCopy(load.copy);
+			return false;
 		}
 		
 		URLClassLoader classLoader = new URLClassLoader(urlList);
-		try{
-			JarFile jfile = new JarFile(jarname+".jar");
-			
-			// walk through all files of the jar
-			Enumeration<JarEntry> entries = jfile.entries();
-			while(entries.hasMoreElements()){
-				JarEntry entry = entries.nextElement();
-				if(entry.isDirectory() || !entry.getName().endsWith(".class")){
-					continue; // we only care for classes
-				}
-				
-				String className = entry.getName().substring(0,entry.getName().length()-6).replace('/', '.');
-				
-				Class<IKomorebiPlugin> pluginClass = null;
-				try {
-					Class<?> cl = classLoader.loadClass(className);
-					if(!IKomorebiPlugin.class.isAssignableFrom(cl)){
-						continue; // only care about PlugIn classes
-					}
-					
-					pluginClass = (Class<IKomorebiPlugin>) cl;
-				} catch (ClassNotFoundException e) {
-					Logger.getLogger(LOGGER_NAME).warning("Error while registering PlugIns of '"+jarname+"': "+
-				                                          className+" could not be loaded");
-					continue;
+		PluginHandle handle = null;
+		classNames = new ArrayList<String>(classNames);
+		Collections.sort(classNames); // does not depend on the order of the JAR entries
+		for(String className: classNames){
+			Class<IKomorebiPlugin> pluginClass = null;
+			try {
+				Class<?> cl = classLoader.loadClass(className);
+				if(!IKomorebiPlugin.class.isAssignableFrom(cl)){
+					continue; // only care about PlugIn classes
 				}
 				
-				tryRegisterPlugin(jarname, pluginClass);
+				pluginClass = (Class<IKomorebiPlugin>) cl;
+			} catch (ClassNotFoundException e) {
+				Logger.getLogger(LOGGER_NAME).warning("Error while registering PlugIns of '"+load.jar+"': "+
+			                                          className+" could not be loaded");
+				continue;
 			}
 			
-			jfile.close();
-		}catch(IOException e){
-			Logger.getLogger(LOGGER_NAME).warning("Plugin '"+jarname+"' could not be loaded (does not exist)");
-		}finally{
-			if(classLoader != null){
-				try {
-					classLoader.close();
-				} catch (IOException e) {
-					Logger.getLogger(LOGGER_NAME).warning("Potential resource leak: class loader could not be closed (reason: "+e.getMessage()+")");
+			if(handle != null){
+				if(IKomorebiStorage.class.isAssignableFrom(pluginClass)){
+					Logger.getLogger(LOGGER_NAME).warning("Plugin '"+load.jar+"' contains more than one storage PlugIn. '"+
+					                                      pluginClass.getName()+"' is ignored, '"+handle.getPluginClass().getName()+"' is used.");
 				}
+				continue;
+			}
+			handle = tryCreateHandle(load, pluginClass, classLoader, jarSize, jarModified);
+		}
+		
+		if(handle == null){
+			try {
+				classLoader.close();
+			} catch (IOException e) {
+				Logger.getLogger(LOGGER_NAME).warning("Potential resource leak: class loader could not be closed (reason: "+e.getMessage()+")");
+			}
+			deleteCopy(load.copy);
+			return false;
+		}
+		
+		// switch new calls to the new version, running calls finish on the old one
+		PluginHandle old = pluginRegister.get(PluginType.STORAGE).put(load.name, handle);
+		if(old != null){
+			retire(old, drainTimeout);
+			if(!old.getVersion().equals(handle.getVersion())){
+				Logger.getLogger(LOGGER_NAME).info("Updated storage PlugIn '"+load.name+"' from version "+old.getVersion()+" to "+handle.getVersion()+" (generation "+handle.getGeneration()+")");
+			}else{
+				Logger.getLogger(LOGGER_NAME).info("Reloaded storage PlugIn '"+load.name+"' (generation "+handle.getGeneration()+")");
 			}
 		}
+		return true;
 	}
 	
 	/**
-	 * This method tries to register a class as plugin. It will only be registered if it matches any of the
-	 * supported PlugIn types else this method will do nothing.
+	 * This method checks if a class can be used as plugin. It can only be used if it matches any of the
+	 * supported PlugIn types.
 	 * 
 	 * @param pluginClass class of the plugin
+	 * @return handle of the PlugIn or <code>null</code> if the class is no usable PlugIn
 	 */
-	synchronized private void tryRegisterPlugin(String name, Class<IKomorebiPlugin> pluginClass){
+	private PluginHandle tryCreateHandle(Load load, Class<IKomorebiPlugin> pluginClass, URLClassLoader classLoader, long jarSize, long jarModified){
+		String name = load.name;
 		
 		// check status
 		KomorebiPluginStatus pStatus = pluginClass.getAnnotation(KomorebiPluginStatus.class);
 		if(pStatus != null){
 			if(pStatus.disabled()){
 				Logger.getLogger(LOGGER_NAME).info("Plugin '"+pluginClass.getName()+"' is disabled.");
-				return;
+				return null;
 			}
 		}
 		
 		// check if configuration consumer is correctly implemented
+		Constructor<IKomorebiPlugin> c = null;
+		IKomorebiPlugin pi = null;
 		try{
-			Constructor<IKomorebiPlugin> c = pluginClass.getConstructor();
-			IKomorebiPlugin pi = c.newInstance();
+			c = pluginClass.getConstructor();
+			pi = c.newInstance();
 			if(pi.isConfigConsumer() && !IKomorebiConfigurationConsumer.class.isAssignableFrom(pluginClass)){
 				Logger.getLogger(LOGGER_NAME).warning("Plugin '"+name+"' does not adhere to defined standards (configuration consumer) and will be omitted.");
-				return;
+				return null;
 			}
 		}catch(NoSuchMethodException e){
 			Logger.getLogger(LOGGER_NAME).warning("Plugin '"+name+"' does not adhere to defined standards (default constructor) and will be omitted.");
-			return;
+			return null;
 		}catch(InvocationTargetException e){
 			Logger.getLogger(LOGGER_NAME).warning("Plugin '"+name+"' caused an error ("+e.getMessage()+") and will be omitted.");
-			return;
+			return null;
 		}catch(IllegalAccessException e){
 			Logger.getLogger(LOGGER_NAME).warning("Plugin '"+name+"' caused an error ("+e.getMessage()+") and will be omitted.");
-			return;
+			return null;
 		}catch(InstantiationException e){
 			Logger.getLogger(LOGGER_NAME).warning("Plugin '"+name+"' caused an error ("+e.getMessage()+") and will be omitted.");
-			return;
+			return null;
 		}
 		
 		if(IKomorebiStorage.class.isAssignableFrom(pluginClass)){
-			Logger.getLogger(LOGGER_NAME).info("Registered storage PlugIn '"+pluginClass.getName()+"'");
-			if(!pluginRegister.containsKey(PluginType.STORAGE)){
-				// if submap does not already exist it has to be created
-				pluginRegister.put(PluginType.STORAGE, new HashMap<String, Class<IKomorebiPlugin>>());
+			if(IBatchChunkStorage.class.isAssignableFrom(pluginClass)){
+				Logger.getLogger(LOGGER_NAME).info("Registered storage PlugIn '"+pluginClass.getName()+"' (batched chunk operations)");
+			}else{
+				Logger.getLogger(LOGGER_NAME).info("Registered storage PlugIn '"+pluginClass.getName()+"'");
 			}
-			pluginRegister.get(PluginType.STORAGE).put(name, pluginClass);
+			PluginPool pool = new PluginPool(name, c, load.config.instances, load.config.acquireTimeout, pi); // test instance is the first one
+			return new PluginHandle(name, load.config.version, ++generation, classLoader, pluginClass, pool, load.copy, jarSize, jarModified);
 		}
 		
 		
-		return;
+		return null;
+	}
+	
+	/**
+	 * Closes a replaced version of a PlugIn after its running calls are finished.
+	 */
+	private void retire(final PluginHandle handle, final long drainTimeout){
+		handle.retire();
+		retiring.add(handle);
+		
+		Thread drain = new Thread(new Runnable() {
+			public void run() {
+				try{
+					if(!handle.awaitDrained(drainTimeout)){
+						Logger.getLogger(LOGGER_NAME).warning(handle.getInFlight()+" calls of PlugIn '"+handle.getName()+"' (generation "+handle.getGeneration()+") did not finish in time. It is closed anyway.");
+					}
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+				retiring.remove(handle);
+				handle.close();
+			}
+		}, "plugin-drain-"+handle.getName());
+		drain.setDaemon(true);
+		drain.start();
 	}
 	
+	/**
+	 * Loads PlugIns that were added to the configuration or whose JAR or settings changed and
+	 * removes PlugIns that are no longer configured. New calls use the new versions at once.
+	 * 
+	 * @return names of the PlugIns that were added, replaced or removed
+	 */
+	public static List<String> reload(){
+		return instance.loadPlugins();
+	}
+	
+	/**
+	 * Gives a new instance of a PlugIn that is not pooled. Use {@link #acquirePlugin(PluginType, String)}
+	 * to reuse instances.
+	 * 
+	 * @param t type of the PlugIn
+	 * @param name name of the PlugIn
+	 * @return the instance or <code>null</code> if the PlugIn does not exist or could not be created
+	 */
 	public static IKomorebiPlugin getPlugin(PluginType t, String name){
-		if(!getPluginsByType(t).contains(name)){
-			return null;
+		PluginHandle handle = instance.lookup(t, name);
+		return handle != null ? handle.getPool().create() : null;
+	}
+	
+	/**
+	 * Gives an instance of a PlugIn from its pool. It has to be given back with
+	 * {@link #releasePlugin(PluginType, String, IKomorebiPlugin, boolean)} after use, also if the
+	 * instance is shared, so a reload knows when the old version is no longer used.
+	 * 
+	 * @param t type of the PlugIn
+	 * @param name name of the PlugIn
+	 * @return the instance or <code>null</code> if the PlugIn does not exist or no instance is available
+	 */
+	public static IKomorebiPlugin acquirePlugin(PluginType t, String name){
+		for(;;){
+			PluginHandle handle = instance.lookup(t, name);
+			if(handle == null){
+				return null;
+			}
+			if(!handle.enter()){
+				continue; // replaced right now, take the new version
+			}
+			
+			IKomorebiPlugin pi = handle.getPool().acquire();
+			if(pi == null){
+				handle.leave();
+			}
+			return pi;
+		}
+	}
+	
+	/**
+	 * Gives back an instance of a PlugIn that was acquired.
+	 * 
+	 * @param t type of the PlugIn
+	 * @param name name of the PlugIn
+	 * @param pi the instance
+	 * @param broken <code>true</code> if the instance failed and should be discarded
+	 */
+	public static void releasePlugin(PluginType t, String name, IKomorebiPlugin pi, boolean broken){
+		if(pi == null){
+			return;
 		}
 		
-		Class<IKomorebiPlugin> cl = instance.pluginRegister.get(t).get(name);
-		
-		IKomorebiPlugin pi = null;
-		try {
-			Constructor<IKomorebiPlugin> con = cl.getConstructor();
-			pi = con.newInstance();
-			if(pi.isConfigConsumer()){
-				// TODO set config values
+		PluginHandle handle = instance.lookup(t, name);
+		if(handle == null || !handle.owns(pi)){
+			handle = null;
+			for(PluginHandle h: instance.retiring){
+				if(h.owns(pi)){
+					handle = h;
+					break;
+				}
+			}
+		}
+		if(handle != null){
+			handle.getPool().release(pi, broken);
+			handle.leave();
+		}
+	}
+	
+	/**
+	 * Closes the instances of all PlugIns and deletes the copies of their JARs.
+	 */
+	public static void shutdown(){
+		for(Map<String, PluginHandle> plugins: instance.pluginRegister.values()){
+			for(PluginHandle handle: plugins.values()){
+				handle.close();
 			}
-		} catch (InstantiationException e) {
-			Logger.getLogger(LOGGER_NAME).warning("Plugin '"+name+"' caused an error ("+e.getMessage()+") and will be omitted.");
-		} catch (IllegalAccessException e) {
-			Logger.getLogger(LOGGER_NAME).warning("Plugin '"+name+"' caused an error ("+e.getMessage()+") and will be omitted.");
-		} catch (IllegalArgumentException e) {
-			Logger.getLogger(LOGGER_NAME).warning("Plugin '"+name+"' caused an error ("+e.getMessage()+") and will be omitted.");
-		} catch (InvocationTargetException e) {
-			Logger.getLogger(LOGGER_NAME).warning("Plugin '"+name+"' caused an error ("+e.getMessage()+") and will be omitted.");
-		} catch (NoSuchMethodException e) {
-			Logger.getLogger(LOGGER_NAME).warning("Plugin '"+name+"' caused an error ("+e.getMessage()+") and will be omitted.");
-		} catch (SecurityException e) {
-			Logger.getLogger(LOGGER_NAME).warning("Plugin '"+name+"' caused an error ("+e.getMessage()+") and will be omitted.");
+		}
+		for(PluginHandle handle: instance.retiring){
+			handle.close();
 		}
 		
-		return pi;
+		synchronized(instance){
+			if(instance.copyDirectory != null){
+				try{
+					Files.deleteIfExists(instance.copyDirectory);
+				}catch(IOException e){
+					Logger.getLogger(LOGGER_NAME).warning("Copies of PlugIns could not be deleted: "+instance.copyDirectory+" (reason: "+e.getMessage()+")");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Gives the configured name of a PlugIn.
+	 * 
+	 * @param t type of the PlugIn
+	 * @param name configured name or name of the JAR (<code>name-version</code>, as used by older locations)
+	 * @return the configured name or <code>null</code> if no such PlugIn is registered
+	 */
+	public static String resolveName(PluginType t, String name){
+		PluginHandle handle = instance.lookup(t, name);
+		return handle != null ? handle.getName() : null;
 	}
 	
 	/**
@@ -224,11 +584,38 @@ public class PluginManager {
 	 * @return list of names
 	 */
 	public static List<String> getPluginsByType(PluginType t){
-		Map<String, Class<IKomorebiPlugin>> plugins = instance.pluginRegister.get(t);
-		if(plugins == null){
-			return new ArrayList<String>();
+		return new ArrayList<String>(instance.pluginRegister.get(t).keySet());
+	}
+	
+	/**
+	 * Gives the current version of a PlugIn by its name or the name of its JAR.
+	 */
+	private PluginHandle lookup(PluginType t, String name){
+		Map<String, PluginHandle> plugins = pluginRegister.get(t);
+		PluginHandle handle = plugins.get(name);
+		if(handle != null || name == null){
+			return handle;
+		}
+		
+		// <name>-<version> of any version, the longest name wins
+		for(PluginHandle h: plugins.values()){
+			String prefix = h.getName()+"-";
+			if(name.length() > prefix.length() && name.startsWith(prefix) && Character.isDigit(name.charAt(prefix.length()))
+			   && (handle == null || h.getName().length() > handle.getName().length())){
+				handle = h;
+			}
+		}
+		return handle;
+	}
+	
+	private PluginHandle getHandle(String name){
+		for(Map<String, PluginHandle> plugins: pluginRegister.values()){
+			PluginHandle handle = plugins.get(name);
+			if(handle != null){
+				return handle;
+			}
 		}
-		return new ArrayList<String>(plugins.keySet());
+		return null;
 	}
 	
 	/**
@@ -0,0 +1,192 @@
+package org.komorebi.core.plugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.komorebi.plugin.IKomorebiPlugin;
+
+/**
+ * Keeps the instances of a PlugIn so they (and the connections they hold) are reused.
+ *
+ * A pool either shares one instance with all callers (for thread safe PlugIns, the default) or
+ * hands out up to a fixed number of instances exclusively. Exclusive instances are returned
+ * with {@link #release(IKomorebiPlugin, boolean)} and reused by the next caller. Instances are
+ * only created when no idle one is left, so the constructor is looked up once and not called
+ * per request.
+ *
+ * Instances that implement <code>Closeable</code> are closed when they are discarded or the
+ * pool is closed.
+ *
+ * @author lycis
+ *
+ */
+class PluginPool {
+	private static final String LOGGER_NAME = "pluginmanager";
+
+	private final String name;
+	private final Constructor<IKomorebiPlugin> constructor;
+	private final int size; // 0 = one shared instance
+	private final long timeout; // milliseconds
+	private final Semaphore permits;
+	private final LinkedBlockingDeque<IKomorebiPlugin> idle = new LinkedBlockingDeque<IKomorebiPlugin>();
+	private volatile IKomorebiPlugin shared = null;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param name name of the PlugIn
+	 * @param constructor default constructor of the PlugIn class
+	 * @param size number of exclusive instances or 0 for one shared instance
+	 * @param timeout time in milliseconds to wait for an exclusive instance
+	 * @param first an instance that was already created or <code>null</code>
+	 */
+	PluginPool(String name, Constructor<IKomorebiPlugin> constructor, int size, long timeout, IKomorebiPlugin first){
+		this.name = name;
+		this.constructor = constructor;
+		this.size = Math.max(0, size);
+		this.timeout = timeout;
+		this.permits = new Semaphore(Math.max(1, size), true);
+		if(first != null){
+			if(this.size == 0){
+				shared = first;
+			}else{
+				idle.add(first);
+			}
+		}
+	}
+
+	/**
+	 * Gives an instance of the PlugIn. Exclusive instances have to be released after use.
+	 *
+	 * @return the instance or <code>null</code> if none could be created or none became free in time
+	 */
+	IKomorebiPlugin acquire(){
+		if(closed){
+			return null;
+		}
+
+		if(size == 0){
+			IKomorebiPlugin pi = shared;
+			if(pi == null){
+				synchronized(this){
+					if(shared == null){
+						shared = create();
+					}
+					pi = shared;
+				}
+			}
+			return pi;
+		}
+
+		try{
+			if(!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)){
+				Logger.getLogger(LOGGER_NAME).warning("No instance of PlugIn '"+name+"' became free within "+timeout+" ms.");
+				return null;
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			return null;
+		}
+
+		IKomorebiPlugin pi = idle.pollFirst(); // most recently used, its connections are the warmest
+		if(pi == null){
+			pi = create();
+		}
+		if(pi == null){
+			permits.release();
+		}
+		return pi;
+	}
+
+	/**
+	 * Gives back an instance that was acquired.
+	 *
+	 * @param pi the instance
+	 * @param broken <code>true</code> if the instance failed and should not be reused
+	 */
+	void release(IKomorebiPlugin pi, boolean broken){
+		if(pi == null || size == 0){
+			return; // shared instance stays
+		}
+
+		if(broken || closed){
+			close(pi);
+		}else{
+			idle.addFirst(pi);
+		}
+		permits.release();
+
+		if(closed){
+			drain();
+		}
+	}
+
+	/**
+	 * Creates a new instance that is not managed by the pool.
+	 *
+	 * @return the instance or <code>null</code> if it could not be created
+	 */
+	IKomorebiPlugin create(){
+		try{
+			return constructor.newInstance();
+		}catch(InstantiationException e){
+			Logger.getLogger(LOGGER_NAME).warning("Plugin '"+name+"' caused an error ("+e.getMessage()+") and will be omitted.");
+		}catch(IllegalAccessException e){
+			Logger.getLogger(LOGGER_NAME).warning("Plugin '"+name+"' caused an error ("+e.getMessage()+") and will be omitted.");
+		}catch(InvocationTargetException e){
+			Logger.getLogger(LOGGER_NAME).warning("Plugin '"+name+"' caused an error ("+e.getCause()+") and will be omitted.");
+		}
+		return null;
+	}
+
+	/**
+	 * @return number of exclusive instances or 0 if one instance is shared
+	 */
+	int getSize(){
+		return size;
+	}
+
+	/**
+	 * @return number of idle exclusive instances
+	 */
+	int getIdle(){
+		return idle.size();
+	}
+
+	/**
+	 * Closes all idle instances and the shared one. Instances that are in use are closed when
+	 * they are released.
+	 */
+	void close(){
+		closed = true;
+		IKomorebiPlugin pi = shared;
+		shared = null;
+		close(pi);
+		drain();
+	}
+
+	private void drain(){
+		IKomorebiPlugin pi;
+		while((pi = idle.pollFirst()) != null){
+			close(pi);
+		}
+	}
+
+	private void close(IKomorebiPlugin pi){
+		if(!(pi instanceof Closeable)){
+			return;
+		}
+		try{
+			((Closeable) pi).close();
+		}catch(IOException e){
+			Logger.getLogger(LOGGER_NAME).warning("Potential resource leak: instance of PlugIn '"+name+"' could not be closed (reason: "+e.getMessage()+")");
+		}catch(RuntimeException e){
+			Logger.getLogger(LOGGER_NAME).warning("Potential resource leak: instance of PlugIn '"+name+"' could not be closed (reason: "+e+")");
+		}
+	}
+}
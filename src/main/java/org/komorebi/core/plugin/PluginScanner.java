@@ -0,0 +1,248 @@
+package org.komorebi.core.plugin;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.komorebi.plugin.IKomorebiPlugin;
+
+/**
+ * Finds the PlugIn classes of a JAR without loading its classes.
+ *
+ * If the JAR contains a service index (<code>META-INF/services/org.komorebi.plugin.IKomorebiPlugin</code>)
+ * the classes listed there are used. Otherwise the headers of all class files are read (name,
+ * super class and interfaces) and every concrete class that implements <code>IKomorebiPlugin</code>
+ * directly or through other types of the JAR is a candidate. Types outside of the JAR are only
+ * resolved if the core knows them (e.g. the PlugIn API).
+ *
+ * @author lycis
+ *
+ */
+class PluginScanner {
+	static final String SERVICE_INDEX = "META-INF/services/"+IKomorebiPlugin.class.getName();
+	private static final int MAGIC = 0xCAFEBABE;
+	private static final int ACC_INTERFACE = 0x0200;
+	private static final int ACC_ABSTRACT = 0x0400;
+
+	/**
+	 * Type information from a class file header.
+	 */
+	static class ClassHeader{
+		final String name; // binary name (with dots)
+		final int access;
+		final List<String> supertypes = new ArrayList<String>(); // super class and interfaces
+
+		ClassHeader(String name, int access){
+			this.name = name;
+			this.access = access;
+		}
+
+		boolean isConcrete(){
+			return (access & (ACC_INTERFACE | ACC_ABSTRACT)) == 0;
+		}
+	}
+
+	private PluginScanner(){
+	}
+
+	/**
+	 * Finds the PlugIn classes of a JAR.
+	 *
+	 * @param jar the JAR
+	 * @return names of the candidate classes, they still have to be checked when they are loaded
+	 * @throws IOException if the JAR can not be read
+	 */
+	static List<String> scan(JarFile jar) throws IOException{
+		JarEntry index = jar.getJarEntry(SERVICE_INDEX);
+		if(index != null){
+			return readServiceIndex(jar.getInputStream(index));
+		}
+
+		Map<String, ClassHeader> classes = new HashMap<String, ClassHeader>();
+		Enumeration<JarEntry> entries = jar.entries();
+		while(entries.hasMoreElements()){
+			JarEntry entry = entries.nextElement();
+			if(entry.isDirectory() || !entry.getName().endsWith(".class")){
+				continue; // we only care for classes
+			}
+
+			InputStream in = jar.getInputStream(entry);
+			try{
+				ClassHeader header = readHeader(in);
+				if(header != null){
+					classes.put(header.name, header);
+				}
+			}finally{
+				in.close();
+			}
+		}
+
+		List<String> plugins = new ArrayList<String>();
+		Map<String, Boolean> known = new HashMap<String, Boolean>();
+		for(ClassHeader c: classes.values()){
+			if(c.isConcrete() && isPlugin(c.name, classes, known, new HashSet<String>())){
+				plugins.add(c.name);
+			}
+		}
+		return plugins;
+	}
+
+	/**
+	 * Reads class names from a service index: one per line, <code>#</code> starts a comment.
+	 */
+	static List<String> readServiceIndex(InputStream in) throws IOException{
+		List<String> names = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.forName("UTF-8")));
+		try{
+			String line;
+			while((line = reader.readLine()) != null){
+				int comment = line.indexOf('#');
+				if(comment >= 0){
+					line = line.substring(0, comment);
+				}
+				line = line.trim();
+				if(!line.isEmpty() && !names.contains(line)){
+					names.add(line);
+				}
+			}
+		}finally{
+			reader.close();
+		}
+		return names;
+	}
+
+	/**
+	 * Tells if a type is a PlugIn type, following its supertypes within the JAR.
+	 */
+	private static boolean isPlugin(String name, Map<String, ClassHeader> classes, Map<String, Boolean> known, Set<String> visiting){
+		Boolean result = known.get(name);
+		if(result != null){
+			return result;
+		}
+		if(!visiting.add(name)){
+			return false; // cyclic hierarchy, the class file is broken
+		}
+
+		boolean plugin = false;
+		ClassHeader c = classes.get(name);
+		if(c == null){
+			plugin = isKnownPluginType(name);
+		}else{
+			for(String s: c.supertypes){
+				if(isPlugin(s, classes, known, visiting)){
+					plugin = true;
+					break;
+				}
+			}
+		}
+
+		known.put(name, plugin);
+		return plugin;
+	}
+
+	/**
+	 * Checks a type that is not part of the JAR with the class loader of the core. Types the
+	 * core does not know can not be PlugIn types.
+	 */
+	private static boolean isKnownPluginType(String name){
+		if(name.startsWith("java.") || name.startsWith("javax.")){
+			return false;
+		}
+		try{
+			return IKomorebiPlugin.class.isAssignableFrom(Class.forName(name, false, PluginScanner.class.getClassLoader()));
+		}catch(ClassNotFoundException e){
+			return false;
+		}catch(LinkageError e){
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the type information from the header of a class file. Only the constant pool and the
+	 * few fields after it are read.
+	 *
+	 * @param in stream of the class file
+	 * @return the header or <code>null</code> if the stream is no class file
+	 * @throws IOException if the class file is broken
+	 */
+	static ClassHeader readHeader(InputStream in) throws IOException{
+		DataInputStream data = new DataInputStream(in);
+		if(data.readInt() != MAGIC){
+			return null;
+		}
+		data.readUnsignedShort(); // minor version
+		data.readUnsignedShort(); // major version
+
+		int count = data.readUnsignedShort();
+		String[] utf8 = new String[count];
+		int[] classNames = new int[count];
+		for(int i=1; i<count; ++i){
+			int tag = data.readUnsignedByte();
+			switch(tag){
+			case 1: // Utf8
+				utf8[i] = data.readUTF();
+				break;
+			case 7: // Class
+				classNames[i] = data.readUnsignedShort();
+				break;
+			case 8: // String
+			case 16: // MethodType
+			case 19: // Module
+			case 20: // Package
+				data.skipBytes(2);
+				break;
+			case 15: // MethodHandle
+				data.skipBytes(3);
+				break;
+			case 3: // Integer
+			case 4: // Float
+			case 9: // Fieldref
+			case 10: // Methodref
+			case 11: // InterfaceMethodref
+			case 12: // NameAndType
+			case 17: // Dynamic
+			case 18: // InvokeDynamic
+				data.skipBytes(4);
+				break;
+			case 5: // Long
+			case 6: // Double
+				data.skipBytes(8);
+				++i; // takes two entries
+				break;
+			default:
+				throw new IOException("Unknown constant pool tag "+tag);
+			}
+		}
+
+		int access = data.readUnsignedShort();
+		ClassHeader header = new ClassHeader(className(data.readUnsignedShort(), utf8, classNames), access);
+		int superClass = data.readUnsignedShort();
+		if(superClass != 0){
+			header.supertypes.add(className(superClass, utf8, classNames));
+		}
+		int interfaces = data.readUnsignedShort();
+		for(int i=0; i<interfaces; ++i){
+			header.supertypes.add(className(data.readUnsignedShort(), utf8, classNames));
+		}
+		return header;
+	}
+
+	private static String className(int index, String[] utf8, int[] classNames) throws IOException{
+		if(index <= 0 || index >= classNames.length || utf8[classNames[index]] == null){
+			throw new IOException("Invalid class reference in constant pool");
+		}
+		return utf8[classNames[index]].replace('/', '.');
+	}
+}
@@ -0,0 +1,59 @@
+package org.komorebi.core.resources.server;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.komorebi.core.plugin.PluginManager;
+import org.komorebi.core.plugin.PluginManager.PluginType;
+import org.komorebi.core.security.Privilege;
+
+/**
+ * Lists and reloads the PlugIns of the server. Only administrators may use it.
+ *
+ * @author lycis
+ *
+ */
+@Path("server/plugins")
+public class Plugins {
+
+	/**
+	 * Gives the names of the loaded storage PlugIns.
+	 */
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response get(@Context SecurityContext context){
+		if(!context.isUserInRole(Privilege.ADMINISTRATOR)){
+			return Response.status(Response.Status.FORBIDDEN).build();
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("storage", new JSONArray(PluginManager.getPluginsByType(PluginType.STORAGE)));
+		return Response.status(Response.Status.OK).entity(json.toString()).build();
+	}
+
+	/**
+	 * Loads added and changed PlugIns without a restart. Running requests finish on the old
+	 * versions.
+	 */
+	@POST
+	@Path("reload")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response reload(@Context SecurityContext context){
+		if(!context.isUserInRole(Privilege.ADMINISTRATOR)){
+			return Response.status(Response.Status.FORBIDDEN).build();
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("changed", new JSONArray(PluginManager.reload()));
+		json.put("storage", new JSONArray(PluginManager.getPluginsByType(PluginType.STORAGE)));
+		return Response.status(Response.Status.OK).entity(json.toString()).build();
+	}
+}
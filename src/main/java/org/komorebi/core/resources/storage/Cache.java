@@ -0,0 +1,52 @@
+package org.komorebi.core.resources.storage;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+
+import org.json.JSONObject;
+import org.komorebi.core.security.Privilege;
+import org.komorebi.core.storeengine.ChunkCache;
+import org.komorebi.core.storeengine.StorageManager;
+
+/**
+ * Provides the metrics of the local chunk cache.
+ * 
+ * @author lycis
+ *
+ */
+@Path("storage/cache")
+public class Cache {
+
+	/**
+	 * Gives the hit rate and usage of the chunk cache. Only administrators may see it.
+	 */
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response get(@Context SecurityContext context){
+		if(!context.isUserInRole(Privilege.ADMINISTRATOR)){
+			return Response.status(Response.Status.FORBIDDEN).build();
+		}
+		
+		JSONObject json = new JSONObject();
+		ChunkCache cache = StorageManager.getChunkCache();
+		json.put("enabled", cache != null);
+		if(cache != null){
+			json.put("hits", cache.getHits());
+			json.put("misses", cache.getMisses());
+			json.put("hitRate", cache.getHitRate());
+			json.put("hitBytes", cache.getHitBytes());
+			json.put("evictions", cache.getEvictions());
+			json.put("rejections", cache.getRejections());
+			json.put("chunks", cache.getEntryCount());
+			json.put("size", cache.getSize());
+			json.put("capacity", cache.getCapacity());
+		}
+		
+		return Response.status(Response.Status.OK).entity(json.toString()).build();
+	}
+}
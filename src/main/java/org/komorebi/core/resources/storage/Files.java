@@ -0,0 +1,137 @@
+package org.komorebi.core.resources.storage;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.json.JSONObject;
+import org.komorebi.core.security.User;
+import org.komorebi.core.storeengine.FileManifest;
+import org.komorebi.core.storeengine.StorageBusyException;
+import org.komorebi.core.storeengine.StorageJob;
+import org.komorebi.core.storeengine.StorageManager;
+
+/**
+ * This resource gives access to the files a user has stored.
+ * 
+ * @author lycis
+ *
+ */
+@Path("storage/file")
+public class Files {
+	private static final int MAX_WAIT = 3600; // seconds
+	
+	/**
+	 * Downloads a file. The chunks of the file are fetched from their locations while the
+	 * response is sent, so the download starts as soon as the first chunk is available.
+	 */
+	@GET
+	@Path("{filename: .+}")
+	@Produces(MediaType.APPLICATION_OCTET_STREAM)
+	public Response get(@PathParam("filename") String filename, @Context SecurityContext context){
+		User user = (User) context.getUserPrincipal();
+		
+		FileManifest manifest = StorageManager.getManifest(user, filename);
+		StreamingOutput output = null;
+		try{
+			output = StorageManager.readFile(user, filename);
+		}catch(FileNotFoundException e){
+			return Response.status(Response.Status.NOT_FOUND).build();
+		}
+		
+		Response.ResponseBuilder response = Response.ok(output);
+		if(manifest != null){
+			response.header(HttpHeaders.CONTENT_LENGTH, manifest.getSize());
+		}
+		return response.build();
+	}
+
+	/**
+	 * Uploads a file. The request body is passed to the storage manager as a stream and
+	 * will be split into chunks while it is received. When the storage manager is busy the
+	 * request is answered with <code>503 Service Unavailable</code> and a <code>Retry-After</code> header.
+	 * 
+	 * Normally the upload is answered with <code>202 Accepted</code> and the ID of the storage job
+	 * as soon as the body was read. With <code>wait=true</code> the request is suspended until
+	 * the chunks are saved and answered with the final status of the job (<code>200 OK</code> or
+	 * <code>500 Internal Server Error</code>). No thread of the server is held while waiting. If the
+	 * job does not finish within <code>timeout</code> seconds it is answered with <code>202</code>.
+	 */
+	@PUT
+	@Path("{filename: .+}")
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	@Produces(MediaType.APPLICATION_JSON)
+	public void put(@PathParam("filename") String filename, InputStream data, @QueryParam("wait") boolean wait, 
+	                @DefaultValue("300") @QueryParam("timeout") int timeout, @Context SecurityContext context, 
+	                @Suspended final AsyncResponse response){
+		User user = (User) context.getUserPrincipal();
+		
+		long jobId;
+		try{
+			jobId = StorageManager.storeFile(user, filename, data);
+		}catch(IOException e){
+			Logger.getLogger("storage").warning("Upload of '"+filename+"' failed: "+e.getMessage());
+			response.resume(Response.status(Response.Status.INTERNAL_SERVER_ERROR).build());
+			return;
+		}catch(IllegalStateException e){
+			response.resume(Response.status(Response.Status.CONFLICT).entity(e.getMessage()).build());
+			return;
+		}catch(StorageBusyException e){
+			response.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+					.header(HttpHeaders.RETRY_AFTER, e.getRetryAfter()).build());
+			return;
+		}
+		
+		final JSONObject accepted = new JSONObject();
+		accepted.put("job", jobId);
+		final StorageJob job = StorageManager.getJob(jobId);
+		if(!wait || job == null){
+			response.resume(Response.status(Response.Status.ACCEPTED).entity(accepted.toString()).build());
+			return;
+		}
+		
+		// answer when the job is completed
+		final StorageJob.Listener listener = new StorageJob.Listener() {
+			public void statusChanged(StorageJob j) {
+				if(!j.isCompleted()){
+					return;
+				}
+				Response.Status status = j.getStatus() == StorageJob.Status.DONE ? Response.Status.OK : Response.Status.INTERNAL_SERVER_ERROR;
+				response.resume(Response.status(status).entity(Jobs.describe(j).toString()).build());
+			}
+		};
+		response.register(new CompletionCallback() {
+			public void onComplete(Throwable throwable) {
+				job.removeListener(listener);
+			}
+		});
+		response.setTimeoutHandler(new TimeoutHandler() {
+			public void handleTimeout(AsyncResponse r) {
+				r.resume(Response.status(Response.Status.ACCEPTED).entity(accepted.toString()).build());
+			}
+		});
+		response.setTimeout(Math.max(1, Math.min(timeout, MAX_WAIT)), TimeUnit.SECONDS);
+		job.addListener(listener);
+	}
+}
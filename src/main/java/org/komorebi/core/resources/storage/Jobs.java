@@ -0,0 +1,148 @@
+package org.komorebi.core.resources.storage;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+
+import org.json.JSONObject;
+import org.komorebi.core.security.Privilege;
+import org.komorebi.core.storeengine.StorageJob;
+import org.komorebi.core.storeengine.StorageManager;
+
+/**
+ * Provides the status of storage jobs.
+ * 
+ * Instead of polling a job repeatedly clients can wait for its next state with
+ * <code>storage/job/{id}/wait</code>. The request is suspended without holding a thread of the
+ * server and answered as soon as the state changes.
+ * 
+ * @author lycis
+ *
+ */
+@Path("storage/job")
+public class Jobs {
+	private static final int MAX_WAIT = 300; // seconds
+
+	/**
+	 * Gives the status of a job. Users may only see their own jobs unless they are administrators.
+	 */
+	@GET
+	@Path("{id}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response get(@PathParam("id") long id, @Context SecurityContext context){
+		StorageJob job = StorageManager.getJob(id);
+		if(job == null || 
+		   (!job.getOwner().equals(context.getUserPrincipal().getName()) && !context.isUserInRole(Privilege.ADMINISTRATOR))){
+			return Response.status(Response.Status.NOT_FOUND).build();
+		}
+		
+		return Response.status(Response.Status.OK).entity(describe(job).toString()).build();
+	}
+	
+	/**
+	 * Waits until the state of a job differs from the given one and gives the status of the job
+	 * then (like {@link #get(long, SecurityContext)}). A final state is reported when the job is
+	 * completed, so the file of a successful job can be read at once. If the state does not
+	 * change within the timeout the current status is given.
+	 * 
+	 * @param id ID of the job
+	 * @param since state the client knows, if not given the request is answered on the next change
+	 * @param timeout maximum time to wait in seconds
+	 */
+	@GET
+	@Path("{id}/wait")
+	@Produces(MediaType.APPLICATION_JSON)
+	public void waitFor(@PathParam("id") long id, @QueryParam("since") String since, @DefaultValue("30") @QueryParam("timeout") int timeout,
+	                    @Context SecurityContext context, @Suspended final AsyncResponse response){
+		final StorageJob job = StorageManager.getJob(id);
+		if(job == null || 
+		   (!job.getOwner().equals(context.getUserPrincipal().getName()) && !context.isUserInRole(Privilege.ADMINISTRATOR))){
+			response.resume(Response.status(Response.Status.NOT_FOUND).build());
+			return;
+		}
+		
+		final StorageJob.Status known;
+		try{
+			known = since != null ? StorageJob.Status.valueOf(since) : job.getStatus();
+		}catch(IllegalArgumentException e){
+			response.resume(Response.status(Response.Status.BAD_REQUEST).entity("unknown state '"+since+"'").build());
+			return;
+		}
+		
+		final StorageJob.Listener listener = new StorageJob.Listener() {
+			public void statusChanged(StorageJob j) {
+				if(hasChanged(j, known)){
+					response.resume(Response.status(Response.Status.OK).entity(describe(j).toString()).build());
+				}
+			}
+		};
+		response.register(new CompletionCallback() {
+			public void onComplete(Throwable throwable) {
+				job.removeListener(listener);
+			}
+		});
+		response.setTimeoutHandler(new TimeoutHandler() {
+			public void handleTimeout(AsyncResponse r) {
+				r.resume(Response.status(Response.Status.OK).entity(describe(job).toString()).build());
+			}
+		});
+		response.setTimeout(Math.max(1, Math.min(timeout, MAX_WAIT)), TimeUnit.SECONDS); // 0 would mean forever
+		
+		job.addListener(listener);
+		if(hasChanged(job, known)){
+			listener.statusChanged(job); // changed before the listener was added
+		}
+	}
+	
+	/**
+	 * Tells if a job has left the given state. A final state only counts when the job is completed.
+	 */
+	private static boolean hasChanged(StorageJob job, StorageJob.Status known){
+		if(job.isFinished()){
+			return job.isCompleted();
+		}
+		return job.getStatus() != known;
+	}
+	
+	/**
+	 * Gives the status of a job as JSON.
+	 */
+	static JSONObject describe(StorageJob job){
+		JSONObject json = new JSONObject();
+		json.put("job", job.getId());
+		json.put("file", job.getFilename());
+		json.put("status", job.getStatus().name());
+		json.put("size", job.getSize());
+		json.put("deduplicated", job.getDeduplicated());
+		json.put("created", job.getCreated());
+		if(job.getError() != null){
+			json.put("error", job.getError());
+		}
+		
+		// time spent in each stage (ms)
+		JSONObject timings = new JSONObject();
+		for(StorageJob.Status s: StorageJob.Status.values()){
+			long t = job.getStageTime(s);
+			if(t >= 0){
+				timings.put(s.name(), t);
+			}
+		}
+		json.put("timings", timings);
+		json.put("total", job.getTotalTime());
+		
+		return json;
+	}
+}
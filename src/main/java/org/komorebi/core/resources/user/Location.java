@@ -1,5 +1,8 @@
 package org.komorebi.core.resources.user;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
@@ -27,6 +30,7 @@ import org.komorebi.core.security.UserStore;
  */
 @Path("user/location")
 public class Location {
+	private static final int UPDATE_ATTEMPTS = 10; // tries to change a user that is changed concurrently
 
 	/**
 	 * Lists all locations with the according credentials of a user.
@@ -115,18 +119,11 @@ public class Location {
 			return Response.status(Response.Status.UNAUTHORIZED).build();
 		}
 
-		// get user
-		User user;
-		if(targetUser == null){
-			user = UserStore.getInstance().getUser(context.getUserPrincipal().getName());
-		}else{
-			user = UserStore.getInstance().getUser(targetUser);
-		}
-
 		// get location
 		String location = json.getString("location");
 
-		// set all credentials for location
+		// get all credentials for location
+		Map<String, String> credentials = new LinkedHashMap<String, String>();
 		JSONArray credentialList = json.getJSONArray("credentials");
 		for(int i=0; i<credentialList.length(); ++i){
 			JSONObject credJson = credentialList.getJSONObject(i);
@@ -140,9 +137,33 @@ public class Location {
 				return Response.status(Response.Status.BAD_REQUEST).build();
 			}
 
-			user.setCredentialValue(location, key, value);
+			credentials.put(key, value);
 		}
 
-		return Response.status(Response.Status.OK).build();
+		// change a copy of the user, the stored user is shared (repeated if it was changed meanwhile)
+		String username = targetUser != null ? targetUser : context.getUserPrincipal().getName();
+		UserStore store = UserStore.getInstance();
+		for(int attempt=0; attempt<UPDATE_ATTEMPTS; ++attempt){
+			User stored = store.getUser(username);
+			if(stored == null){
+				return Response.status(Response.Status.NOT_FOUND).build();
+			}
+
+			User user = new User(stored);
+			for(Map.Entry<String, String> credential: credentials.entrySet()){
+				user.setCredentialValue(location, credential.getKey(), credential.getValue());
+			}
+
+			switch(store.updateUser(stored, user)){
+			case UPDATED:
+				return Response.status(Response.Status.OK).build();
+			case FAILED:
+				return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+			case CONFLICT:
+				break;
+			}
+		}
+
+		return Response.status(Response.Status.CONFLICT).build();
 	}
 }
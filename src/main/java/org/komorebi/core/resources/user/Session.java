@@ -0,0 +1,46 @@
+package org.komorebi.core.resources.user;
+
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+
+import org.json.JSONObject;
+import org.komorebi.core.security.SessionTokens;
+
+/**
+ * Opens sessions. A client logs in once with basic authentication and gets a token that
+ * it can send as <code>Authorization: Bearer &lt;token&gt;</code> with the following requests.
+ * 
+ * @author lycis
+ *
+ */
+@Path("user/session")
+public class Session {
+
+	/**
+	 * Issues a session token for the authenticated user. Tokens can only be requested with the
+	 * password so a session can not be extended with its own token.
+	 */
+	@POST
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response post(@Context SecurityContext context){
+		if(!SecurityContext.BASIC_AUTH.equals(context.getAuthenticationScheme())){
+			return Response.status(Response.Status.FORBIDDEN).entity("login requires the password").build();
+		}
+		
+		SessionTokens tokens = SessionTokens.getInstance();
+		JSONObject json = new JSONObject();
+		try{
+			json.put("token", tokens.issue(context.getUserPrincipal().getName()));
+		}catch(IllegalArgumentException e){
+			return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+		}
+		json.put("expires", tokens.getLifetime() / 1000);
+		
+		return Response.status(Response.Status.OK).entity(json.toString()).build();
+	}
+}
@@ -0,0 +1,229 @@
+package org.komorebi.core.security;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.komorebi.core.configuration.ConfigListener;
+import org.komorebi.core.configuration.ConfigSnapshot;
+import org.komorebi.core.configuration.KomorebiCoreConfig;
+
+/**
+ * Remembers credentials that were verified recently so not every request has to check the
+ * password against the user store. Entries are keyed by an HMAC of the authorization header
+ * with a random key that only lives in memory, so the cache never holds the plain credentials.
+ *
+ * Entries expire after <code>users.authCache.ttl</code> seconds and the cache holds at most
+ * <code>users.authCache.size</code> entries. Both settings are applied when the configuration
+ * changes. All entries become invalid when a password is changed or the user store is reloaded.
+ * When the cache is full the oldest entry is removed.
+ *
+ * The cache is a singleton.
+ *
+ * @author lycis
+ *
+ */
+public class AuthCache {
+	private static final String LOGGER_NAME = "userstore";
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final Charset HEADER_CHARSET = Charset.forName("UTF-8");
+	private static final int DEFAULT_SIZE = 1024;
+	private static final int DEFAULT_TTL = 60; // seconds
+
+	/**
+	 * A verified credential.
+	 */
+	private static class Entry{
+		final ByteBuffer digest;
+		final String username;
+		final long expires; // System.nanoTime()
+		final long epoch;
+
+		Entry(ByteBuffer digest, String username, long expires, long epoch){
+			this.digest = digest;
+			this.username = username;
+			this.expires = expires;
+			this.epoch = epoch;
+		}
+	}
+
+	// singleton instance
+	private static AuthCache instance = null;
+
+	private volatile int maxEntries;
+	private volatile long ttl; // nanoseconds
+	private final SecretKeySpec key;
+	private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>(){
+		@Override
+		protected Mac initialValue() {
+			try{
+				Mac mac = Mac.getInstance(MAC_ALGORITHM);
+				mac.init(key);
+				return mac;
+			}catch(GeneralSecurityException e){
+				throw new IllegalStateException(MAC_ALGORITHM+" is not supported by the JVM", e);
+			}
+		}
+	};
+	private final ConcurrentMap<ByteBuffer, Entry> entries;
+	private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<Entry>(); // entries in the order they were added, may still hold removed ones
+	private final AtomicInteger ordered = new AtomicInteger(0); // length of the queue
+	private final AtomicLong epoch = new AtomicLong(0);
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param maxEntries maximum number of cached credentials (<code>0</code> disables the cache)
+	 * @param ttl time after which a credential has to be verified again in seconds
+	 */
+	AuthCache(int maxEntries, int ttl){
+		this.maxEntries = maxEntries;
+		this.ttl = TimeUnit.SECONDS.toNanos(ttl);
+		this.entries = new ConcurrentHashMap<ByteBuffer, Entry>(Math.max(16, maxEntries * 4 / 3));
+
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		key = new SecretKeySpec(secret, MAC_ALGORITHM);
+	}
+
+	/**
+	 * Get current instance of the authentication cache. It is created on first access.
+	 */
+	synchronized public static AuthCache getInstance(){
+		if(instance == null){
+			instance = new AuthCache(DEFAULT_SIZE, DEFAULT_TTL);
+			instance.configure(KomorebiCoreConfig.getSnapshot());
+			KomorebiCoreConfig.addListener(new ConfigListener() {
+				public void configChanged(ConfigSnapshot previous, ConfigSnapshot current, Set<String> changedKeys) {
+					if(changedKeys.contains("users.authCache.size") || changedKeys.contains("users.authCache.ttl")){
+						instance.configure(current);
+					}
+				}
+			});
+		}
+		return instance;
+	}
+
+	/**
+	 * Applies the size and TTL of the configuration. Cached entries keep their expiry time.
+	 */
+	private void configure(ConfigSnapshot config){
+		int size = config.getInt("users.authCache.size", DEFAULT_SIZE);
+		if(size < 0){
+			Logger.getLogger(LOGGER_NAME).warning("Invalid authentication cache size was given. Assuming "+DEFAULT_SIZE+" as default.");
+			size = DEFAULT_SIZE;
+		}
+
+		int ttl = config.getInt("users.authCache.ttl", DEFAULT_TTL);
+		if(ttl < 0){
+			Logger.getLogger(LOGGER_NAME).warning("Invalid authentication cache TTL was given. Assuming "+DEFAULT_TTL+" seconds as default.");
+			ttl = DEFAULT_TTL;
+		}
+
+		this.ttl = TimeUnit.SECONDS.toNanos(ttl);
+		this.maxEntries = size;
+		evict(size);
+	}
+
+	/**
+	 * @return current epoch, has to be taken before a credential is verified and passed to {@link #put(ByteBuffer, String, long)}
+	 */
+	public long getEpoch(){
+		return epoch.get();
+	}
+
+	/**
+	 * Gives the key that a header is cached under.
+	 *
+	 * @param header content of the authorization header
+	 * @return HMAC of the header
+	 */
+	public ByteBuffer digest(String header){
+		return ByteBuffer.wrap(macs.get().doFinal(header.getBytes(HEADER_CHARSET)));
+	}
+
+	/**
+	 * Looks up a verified credential.
+	 *
+	 * @param digest HMAC of the authorization header
+	 * @return name of the authenticated user or <code>null</code> if the credential has to be verified
+	 */
+	public String get(ByteBuffer digest){
+		Entry e = entries.get(digest);
+		if(e == null){
+			return null;
+		}
+
+		if(e.epoch != epoch.get() || System.nanoTime() - e.expires > 0){
+			entries.remove(digest, e);
+			return null;
+		}
+		return e.username;
+	}
+
+	/**
+	 * Remembers a verified credential.
+	 *
+	 * @param digest HMAC of the authorization header
+	 * @param username name of the authenticated user
+	 * @param verifiedEpoch epoch that was current before the credential was verified
+	 */
+	public void put(ByteBuffer digest, String username, long verifiedEpoch){
+		if(maxEntries == 0 || ttl == 0 || verifiedEpoch != epoch.get()){
+			return;
+		}
+
+		Entry e = new Entry(digest, username, System.nanoTime() + ttl, verifiedEpoch);
+		entries.put(digest, e);
+		order.offer(e);
+		if(ordered.incrementAndGet() > maxEntries){
+			evict(maxEntries);
+		}
+	}
+
+	/**
+	 * Removes the oldest entries until at most the given number is left. Every entry in the map
+	 * is also in the queue, so the map does not grow beyond the queue.
+	 *
+	 * @param limit number of entries that may be kept
+	 */
+	private void evict(int limit){
+		while(ordered.get() > limit){
+			Entry oldest = order.poll();
+			if(oldest == null){
+				return;
+			}
+			ordered.decrementAndGet();
+			entries.remove(oldest.digest, oldest); // a newer entry of the same credential stays
+		}
+	}
+
+	/**
+	 * Invalidates all cached credentials. Credentials that are being verified at the same time
+	 * will not be cached.
+	 */
+	public void invalidate(){
+		epoch.incrementAndGet();
+		entries.clear();
+		evict(0);
+	}
+
+	/**
+	 * @return number of cached credentials (including expired ones)
+	 */
+	public int size(){
+		return entries.size();
+	}
+}
@@ -0,0 +1,75 @@
+package org.komorebi.core.security;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum, as used by iSCSI and ext4. It detects more error patterns in
+ * short records than the CRC-32 of <code>java.util.zip</code>. The computation is table driven
+ * and processes four bytes per step.
+ *
+ * @author lycis
+ *
+ */
+class Crc32c implements Checksum {
+	private static final int POLYNOMIAL = 0x82F63B78; // reversed Castagnoli polynomial
+	private static final int[][] TABLE = new int[4][256];
+
+	static{
+		for(int i=0; i<256; ++i){
+			int crc = i;
+			for(int j=0; j<8; ++j){
+				crc = (crc >>> 1) ^ ((crc & 1) != 0 ? POLYNOMIAL : 0);
+			}
+			TABLE[0][i] = crc;
+		}
+		for(int i=0; i<256; ++i){
+			for(int t=1; t<4; ++t){
+				TABLE[t][i] = (TABLE[t-1][i] >>> 8) ^ TABLE[0][TABLE[t-1][i] & 0xff];
+			}
+		}
+	}
+
+	private int crc = 0xFFFFFFFF;
+
+	public void update(int b) {
+		crc = (crc >>> 8) ^ TABLE[0][(crc ^ b) & 0xff];
+	}
+
+	public void update(byte[] b, int off, int len) {
+		int c = crc;
+		int end = off + len;
+		for(; off+4 <= end; off+=4){
+			c ^= (b[off] & 0xff) | (b[off+1] & 0xff) << 8 | (b[off+2] & 0xff) << 16 | (b[off+3] & 0xff) << 24;
+			c = TABLE[3][c & 0xff] ^ TABLE[2][(c >>> 8) & 0xff] ^ TABLE[1][(c >>> 16) & 0xff] ^ TABLE[0][c >>> 24];
+		}
+		for(; off<end; ++off){
+			c = (c >>> 8) ^ TABLE[0][(c ^ b[off]) & 0xff];
+		}
+		crc = c;
+	}
+
+	/**
+	 * Adds the bytes between two absolute positions of a buffer. The position of the buffer
+	 * is not changed.
+	 *
+	 * @param b the buffer
+	 * @param from first byte
+	 * @param to end (exclusive)
+	 */
+	public void update(ByteBuffer b, int from, int to) {
+		int c = crc;
+		for(int i=from; i<to; ++i){
+			c = (c >>> 8) ^ TABLE[0][(c ^ b.get(i)) & 0xff];
+		}
+		crc = c;
+	}
+
+	public long getValue() {
+		return ~crc & 0xFFFFFFFFL;
+	}
+
+	public void reset() {
+		crc = 0xFFFFFFFF;
+	}
+}
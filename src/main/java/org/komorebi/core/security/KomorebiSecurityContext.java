@@ -6,10 +6,21 @@ import javax.ws.rs.core.SecurityContext;
 
 public class KomorebiSecurityContext implements SecurityContext {
 	
+	/**
+	 * Authentication scheme of requests with a session token.
+	 */
+	public static final String BEARER_AUTH = "BEARER";
+	
 	private final User user;
+	private final String scheme;
 	
 	KomorebiSecurityContext(User user){
+		this(user, SecurityContext.BASIC_AUTH);
+	}
+	
+	KomorebiSecurityContext(User user, String scheme){
 		this.user = user;
+		this.scheme = scheme;
 	}
 
 	public Principal getUserPrincipal() {
@@ -17,7 +28,8 @@ public class KomorebiSecurityContext implements SecurityContext {
 	}
 
 	public boolean isUserInRole(String role) {
-		return user.hasPrivilege(role);
+		Privilege.Type privilege = Privilege.Type.forName(role);
+		return privilege != null && user.hasPrivilege(privilege);
 	}
 
 	public boolean isSecure() {
@@ -25,7 +37,7 @@ public class KomorebiSecurityContext implements SecurityContext {
 	}
 
 	public String getAuthenticationScheme() {
-		return SecurityContext.BASIC_AUTH; // basic authentication
+		return scheme; // basic authentication or session token
 	}
 
 }
@@ -0,0 +1,248 @@
+package org.komorebi.core.security;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.komorebi.core.configuration.ConfigSnapshot;
+import org.komorebi.core.configuration.KomorebiCoreConfig;
+
+/**
+ * Hashes passwords with PBKDF2 (HMAC-SHA256). The number of iterations (the cost) is stored
+ * with every hash so it can be raised for new passwords without invalidating existing ones.
+ *
+ * The cost for new passwords is calibrated when the hasher is created: it is chosen so that
+ * verifying a password takes about <code>users.hash.targetTime</code> milliseconds on this
+ * machine, but never less than <code>users.hash.minIterations</code>.
+ *
+ * Verification runs on a bounded pool of <code>users.hash.threads</code> threads with room for
+ * <code>users.hash.queueSize</code> waiting checks. When it is full further checks are rejected
+ * instead of tying up more request threads with hashing.
+ *
+ * A hashed password block has the layout
+ * <code>marker (0xFF), algorithm, iterations (int), salt length, salt, hash length, hash</code>
+ * and is padded with zeros. Plain text passwords never start with the marker as they only
+ * contain ASCII characters.
+ *
+ * The hasher is a singleton.
+ *
+ * @author lycis
+ *
+ */
+class PasswordHasher {
+	private static final String LOGGER_NAME = "userstore";
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final byte MARKER = (byte) 0xFF;
+	private static final byte ALGORITHM_PBKDF2_SHA256 = 1;
+	private static final int HEADER_LEN = 6; // marker, algorithm, iterations
+	private static final int SALT_LEN = 16;
+	private static final int HASH_LEN = 32;
+	private static final int MAX_ITERATIONS = 10000000;
+	private static final int DEFAULT_TARGET_TIME = 50; // milliseconds
+	private static final int DEFAULT_MIN_ITERATIONS = 10000;
+	private static final int DEFAULT_QUEUE_SIZE = 64;
+
+	// singleton instance
+	private static PasswordHasher instance = null;
+
+	private final int iterations;
+	private final ThreadPoolExecutor pool;
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Creates a hasher.
+	 *
+	 * @param iterations cost of new hashes
+	 * @param threads number of threads that verify passwords
+	 * @param queueSize number of checks that may wait for a thread
+	 */
+	PasswordHasher(int iterations, int threads, int queueSize){
+		this.iterations = iterations;
+		this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					private final AtomicInteger counter = new AtomicInteger(0);
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "password-hash-"+counter.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Get current instance of the hasher. It is created and calibrated on first access.
+	 */
+	synchronized public static PasswordHasher getInstance(){
+		if(instance == null){
+			ConfigSnapshot config = KomorebiCoreConfig.getSnapshot();
+			int target = config.getInt("users.hash.targetTime", DEFAULT_TARGET_TIME);
+			if(target <= 0){
+				Logger.getLogger(LOGGER_NAME).warning("Invalid target time for password hashing was given. Assuming "+DEFAULT_TARGET_TIME+" ms as default.");
+				target = DEFAULT_TARGET_TIME;
+			}
+
+			int threads = config.getInt("users.hash.threads", Runtime.getRuntime().availableProcessors());
+			if(threads <= 0){
+				threads = Runtime.getRuntime().availableProcessors();
+			}
+
+			int queueSize = config.getInt("users.hash.queueSize", DEFAULT_QUEUE_SIZE);
+			if(queueSize <= 0){
+				queueSize = DEFAULT_QUEUE_SIZE;
+			}
+
+			int cost = calibrate(target, config.getInt("users.hash.minIterations", DEFAULT_MIN_ITERATIONS));
+			Logger.getLogger(LOGGER_NAME).info("Password hashing uses "+cost+" iterations (target: "+target+" ms) on "+threads+" threads.");
+			instance = new PasswordHasher(cost, threads, queueSize);
+		}
+		return instance;
+	}
+
+	/**
+	 * Finds the number of iterations that makes one hash take the target time. The time of a
+	 * small number of iterations is measured (after warming up) and extrapolated.
+	 *
+	 * @param targetMillis time one hash should take
+	 * @param minIterations lower limit of the result
+	 * @return number of iterations (a multiple of 1000)
+	 */
+	static int calibrate(long targetMillis, int minIterations){
+		char[] password = "calibration".toCharArray();
+		byte[] salt = new byte[SALT_LEN];
+
+		// double the iterations until a hash takes long enough to be measured reliably
+		int probe = 1000;
+		long best = Long.MAX_VALUE;
+		for(;;){
+			best = Long.MAX_VALUE;
+			for(int i=0; i<5; ++i){
+				long start = System.nanoTime();
+				derive(password, salt, probe);
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			if(best >= TimeUnit.MILLISECONDS.toNanos(5) || probe >= MAX_ITERATIONS / 2){
+				break;
+			}
+			probe *= 2;
+		}
+
+		long cost = probe * TimeUnit.MILLISECONDS.toNanos(targetMillis) / Math.max(1, best);
+		cost = Math.min(MAX_ITERATIONS, Math.max(minIterations, cost / 1000 * 1000));
+		return (int) cost;
+	}
+
+	/**
+	 * Hashes a password with the calibrated cost and a random salt. The password is not cleared.
+	 *
+	 * @param password the password
+	 * @param blockLen length of the password block
+	 * @return the password block
+	 */
+	byte[] hash(char[] password, int blockLen){
+		byte[] salt = new byte[SALT_LEN];
+		random.nextBytes(salt);
+
+		ByteBuffer block = ByteBuffer.allocate(blockLen);
+		block.put(MARKER).put(ALGORITHM_PBKDF2_SHA256).putInt(iterations);
+		block.put((byte) SALT_LEN).put(salt);
+		block.put((byte) HASH_LEN).put(derive(password, salt, iterations));
+		return block.array();
+	}
+
+	/**
+	 * @param block a password block
+	 * @return <code>true</code> if the block holds a hash created by this class
+	 */
+	static boolean isHashed(byte[] block){
+		return block.length > HEADER_LEN && block[0] == MARKER;
+	}
+
+	/**
+	 * Verifies a password against a hashed password block. The hash is computed on the pool
+	 * and the calling thread waits for it. The password is cleared afterwards.
+	 *
+	 * @param block the password block
+	 * @param password password to check
+	 * @return <code>true</code> if the password matches
+	 * @throws RejectedExecutionException if too many passwords are being verified
+	 */
+	boolean verify(byte[] block, final char[] password){
+		try{
+			ByteBuffer b = ByteBuffer.wrap(block);
+			if(b.get() != MARKER || b.get() != ALGORITHM_PBKDF2_SHA256){
+				return false;
+			}
+			final int cost = b.getInt();
+			final byte[] salt = new byte[b.get() & 0xff];
+			if(cost <= 0 || cost > MAX_ITERATIONS || salt.length > b.remaining()){
+				return false;
+			}
+			b.get(salt);
+			final byte[] expected = new byte[b.get() & 0xff];
+			if(expected.length != HASH_LEN || expected.length > b.remaining()){
+				return false;
+			}
+			b.get(expected);
+
+			Future<Boolean> result = pool.submit(new Callable<Boolean>() {
+				public Boolean call() {
+					byte[] actual = derive(password, salt, cost);
+					int diff = 0;
+					for(int i=0; i<HASH_LEN; ++i){
+						diff |= actual[i] ^ expected[i];
+					}
+					return diff == 0;
+				}
+			});
+
+			try{
+				return result.get();
+			}catch(InterruptedException e){
+				result.cancel(true);
+				Thread.currentThread().interrupt();
+				return false;
+			}catch(ExecutionException e){
+				Logger.getLogger(LOGGER_NAME).severe("Password could not be verified: "+e.getCause());
+				return false;
+			}
+		}finally{
+			Arrays.fill(password, '\0');
+		}
+	}
+
+	/**
+	 * @return number of iterations of new hashes
+	 */
+	int getIterations(){
+		return iterations;
+	}
+
+	/**
+	 * Computes the PBKDF2 hash.
+	 */
+	static byte[] derive(char[] password, byte[] salt, int iterations){
+		PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_LEN * 8);
+		try{
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		}catch(GeneralSecurityException e){
+			throw new IllegalStateException(ALGORITHM+" is not supported by the JVM", e);
+		}finally{
+			spec.clearPassword();
+		}
+	}
+}
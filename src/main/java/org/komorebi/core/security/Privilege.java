@@ -1,11 +1,15 @@
 package org.komorebi.core.security;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This class provides literals for defined privileges a user may have.
- * 
+ *
+ * The string literals are used as roles (e.g. with <code>SecurityContext.isUserInRole</code>).
+ * Internally every privilege is a {@link Type} whose ordinal is the bit in the privilege mask
+ * of a user, so checking a privilege is a single bit test.
+ *
  * @author lycis
  *
  */
@@ -15,35 +19,70 @@ public class Privilege {
 	public final static String ADMINISTRATOR = "Admin";          // administrator, has access to settings and configs and other things
 	public final static String ADD_LOCATION = "AddLocation";     // user may add new locations to his credentials list (if not only administrator may do)
 	public final static String GRANT_LOCATION = "GrantLocation"; // user may add a new location to the profile of an other user
-	
+
+	/**
+	 * The defined privileges. The ordinal is the bit in the privilege mask that is stored in
+	 * the user store, so new privileges have to be added at the end and none may be removed.
+	 */
+	public enum Type{
+		ADMINISTRATOR(Privilege.ADMINISTRATOR),
+		ADD_LOCATION(Privilege.ADD_LOCATION),
+		GRANT_LOCATION(Privilege.GRANT_LOCATION);
+
+		private final String name;
+
+		private Type(String name){
+			this.name = name;
+		}
+
+		/**
+		 * @return name of the privilege (as used for roles)
+		 */
+		public String getName(){
+			return name;
+		}
+
+		/**
+		 * @return the privilege with the given name or <code>null</code> if it is not defined
+		 */
+		public static Type forName(String name){
+			return name != null ? BY_NAME.get(name) : null;
+		}
+	}
+
+	/**
+	 * Number of longs needed for the mask of all privileges.
+	 */
+	static final int MASK_WORDS = (Type.values().length + 63) >>> 6;
+
 	// tells which privilege is stored in which bit of the privilege mask of a user object
-	private static String[] bitPositions = {
-		ADMINISTRATOR,
-		ADD_LOCATION,
-		GRANT_LOCATION,
-	};
-	
+	private static final Map<String, Type> BY_NAME = new HashMap<String, Type>();
+	private static final String[] bitPositions = new String[Type.values().length];
+
+	static{
+		for(Type t: Type.values()){
+			BY_NAME.put(t.getName(), t);
+			bitPositions[t.ordinal()] = t.getName();
+		}
+	}
+
 	/**
 	 * Gives the bit of the according privilege that corresponds to the bit of the privilege
 	 * mask in the user object.
-	 * 
+	 *
 	 * @param privilege name of the privilege (use constants provided)
 	 * @return number of the mask bit
 	 */
 	public static int getPrivilegeBit(String privilege){
-		for(int i=0; i<bitPositions.length; ++i){
-			if(bitPositions[i].equals(privilege)){
-				return i;
-			}
-		}
-		return -1;
+		Type t = Type.forName(privilege);
+		return t != null ? t.ordinal() : -1;
 	}
-	
+
 	/**
 	 * Gives all currently supported privileges
 	 * @return all supported privileges
 	 */
 	public static String[] getPrivileges() {
-		return bitPositions;
+		return bitPositions.clone();
 	}
 }
@@ -1,6 +1,8 @@
 package org.komorebi.core.security;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.container.ContainerRequestFilter;
@@ -12,7 +14,10 @@ import org.glassfish.jersey.internal.util.Base64;
 import org.glassfish.jersey.server.ContainerRequest;
 
 /**
- * Incorporates basic authentication for requests
+ * Incorporates basic authentication for requests. Verified credentials are kept in the
+ * {@link AuthCache} for a while so following requests do not need to check the password.
+ * Requests may also authenticate with a session token (<code>Authorization: Bearer ...</code>)
+ * that was issued by {@link SessionTokens}.
  * @author lycis
  *
  */
@@ -20,48 +25,86 @@ public class ResourceAuthFilter implements ContainerRequestFilter {
 
 	public void filter(ContainerRequestContext requestContext)
 			throws IOException {
-		 Response unauthorizedResponse =
-				   Response.status(Status.UNAUTHORIZED)
-		           .header(HttpHeaders.WWW_AUTHENTICATE, "Basic realm=\"realm\"")
-		           .entity("service requires login").build();
-		 
 		// Extract authentication credentials
 		String auth = requestContext.getHeaderString(ContainerRequest.AUTHORIZATION);
 		if (auth == null) {
-			requestContext.abortWith(unauthorizedResponse);
+			requestContext.abortWith(unauthorized());
 			return;
 		}
 		
+		// session tokens are verified by their signature alone
+		UserStore ustore = UserStore.getInstance();
+		if(auth.startsWith("Bearer ")){
+			String name = SessionTokens.getInstance().verify(auth.substring(7));
+			User u = name != null ? ustore.getUser(name) : null;
+			if(u == null){
+				requestContext.abortWith(unauthorized());
+				return;
+			}
+			requestContext.setSecurityContext(new KomorebiSecurityContext(u, KomorebiSecurityContext.BEARER_AUTH));
+			return;
+		}
+		
+		// credentials that were verified recently
+		AuthCache cache = AuthCache.getInstance();
+		ByteBuffer digest = cache.digest(auth);
+		String cached = cache.get(digest);
+		if(cached != null){
+			User u = ustore.getUser(cached);
+			if(u != null){
+				requestContext.setSecurityContext(new KomorebiSecurityContext(u));
+				return;
+			}
+		}
+		long epoch = cache.getEpoch();
+		
 		// decode bas64 password
-		auth = auth.replaceFirst("[Bb]asic ", "");
+		if(auth.startsWith("Basic ") || auth.startsWith("basic ")){
+			auth = auth.substring(6);
+		}
 		String userpass = Base64.decodeAsString(auth);
-		if(!userpass.contains(":")  || userpass.split(":").length < 2){
-			requestContext.abortWith(unauthorizedResponse);
+		int separator = userpass.indexOf(':');
+		if(separator <= 0 || separator == userpass.length()-1){
+			requestContext.abortWith(unauthorized());
 			return;
 		}
 		
 		// check given password vs. configured password
-		UserStore ustore = UserStore.getInstance();
-		String user = userpass.split(":")[0];
+		String user = userpass.substring(0, separator);
 		User u = ustore.getUser(user);
 		if(u == null){
-			requestContext.abortWith(unauthorizedResponse);
+			requestContext.abortWith(unauthorized());
 			return;
 		}
 		
-		String pass = userpass.split(":")[1];
-		if(!ustore.checkPassword(u, pass.toCharArray())){
-			requestContext.abortWith(unauthorizedResponse);
+		char[] pass = new char[userpass.length() - separator - 1];
+		userpass.getChars(separator + 1, userpass.length(), pass, 0);
+		try{
+			if(!ustore.checkPassword(u, pass)){
+				requestContext.abortWith(unauthorized());
+				return;
+			}
+		}catch(RejectedExecutionException e){
+			// too many logins at once, the client may try again
+			requestContext.abortWith(Response.status(Status.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, 1).build());
 			return;
 		}
 		
-		user     = null;
-		pass     = null;
+		cache.put(digest, u.getName(), epoch);
 		userpass = null;
 		
 		// when user is authenticated set security context
 		requestContext.setSecurityContext(new KomorebiSecurityContext(u));
 		return;
 	}
+	
+	/**
+	 * @return response for requests without valid credentials
+	 */
+	private Response unauthorized(){
+		return Response.status(Status.UNAUTHORIZED)
+		               .header(HttpHeaders.WWW_AUTHENTICATE, "Basic realm=\"realm\"")
+		               .entity("service requires login").build();
+	}
 
 }
@@ -0,0 +1,306 @@
+package org.komorebi.core.security;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.komorebi.core.configuration.ConfigListener;
+import org.komorebi.core.configuration.ConfigSnapshot;
+import org.komorebi.core.configuration.KomorebiCoreConfig;
+
+/**
+ * Issues and verifies bearer tokens for sessions. A token carries the user name and its expiry
+ * time and is signed with an HMAC so it can be verified without looking at the user store.
+ *
+ * Tokens have the form <code>base64url(payload).base64url(hmac)</code>. The payload holds a
+ * format version, the expiry time, the token generation and the user name. The signing key is
+ * created randomly on startup, so all tokens become invalid when the server is restarted.
+ *
+ * A token carries the generation of its user when it was issued and is only valid while the user
+ * has that generation. Generations are drawn from one counter: revoking the tokens of a user
+ * (e.g. when the password is changed) gives that user a new generation, revoking all tokens
+ * raises the generation every user has at least.
+ *
+ * Verification does not lock and only allocates the user name.
+ *
+ * The token service is a singleton.
+ *
+ * @author lycis
+ *
+ */
+public class SessionTokens {
+	private static final String LOGGER_NAME = "userstore";
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+	private static final int MAC_LEN = 32;
+	private static final byte VERSION = 1;
+	private static final int HEADER_LEN = 1 + 8 + 8; // version, expiry, generation
+	private static final int MAX_PAYLOAD_LEN = 512;
+	private static final int DEFAULT_TTL = 3600; // seconds
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+	private static final byte[] DECODE = new byte[128];
+
+	static{
+		for(int i=0; i<DECODE.length; ++i){
+			DECODE[i] = -1;
+		}
+		for(int i=0; i<ALPHABET.length; ++i){
+			DECODE[ALPHABET[i]] = (byte) i;
+		}
+	}
+
+	/**
+	 * Per thread buffers so verification does not allocate.
+	 */
+	private static class Scratch{
+		final Mac mac;
+		final byte[] payload = new byte[MAX_PAYLOAD_LEN];
+		final byte[] expected = new byte[MAC_LEN];
+		final byte[] given = new byte[MAC_LEN];
+
+		Scratch(Mac mac){
+			this.mac = mac;
+		}
+	}
+
+	// singleton instance
+	private static SessionTokens instance = null;
+
+	private volatile long ttl; // milliseconds
+	private final SecretKeySpec key;
+	private final AtomicLong generation = new AtomicLong(0); // last generation that was handed out
+	private volatile long minGeneration = 0; // generation of users whose tokens were not revoked on their own
+	private final ConcurrentMap<String, Long> revoked = new ConcurrentHashMap<String, Long>(); // generation of users whose tokens were revoked
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>(){
+		@Override
+		protected Scratch initialValue() {
+			try{
+				Mac mac = Mac.getInstance(MAC_ALGORITHM);
+				mac.init(key);
+				return new Scratch(mac);
+			}catch(GeneralSecurityException e){
+				throw new IllegalStateException(MAC_ALGORITHM+" is not supported by the JVM", e);
+			}
+		}
+	};
+
+	/**
+	 * Creates a token service with a random key.
+	 *
+	 * @param ttl lifetime of a token in seconds
+	 */
+	SessionTokens(int ttl){
+		this.ttl = TimeUnit.SECONDS.toMillis(ttl);
+
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		key = new SecretKeySpec(secret, MAC_ALGORITHM);
+	}
+
+	/**
+	 * Get current instance of the token service. It is created on first access.
+	 */
+	synchronized public static SessionTokens getInstance(){
+		if(instance == null){
+			instance = new SessionTokens(DEFAULT_TTL);
+			instance.configure(KomorebiCoreConfig.getSnapshot());
+			KomorebiCoreConfig.addListener(new ConfigListener() {
+				public void configChanged(ConfigSnapshot previous, ConfigSnapshot current, Set<String> changedKeys) {
+					if(changedKeys.contains("users.session.ttl")){
+						instance.configure(current);
+					}
+				}
+			});
+		}
+		return instance;
+	}
+
+	/**
+	 * Applies the token lifetime of the configuration to tokens issued from now on.
+	 */
+	private void configure(ConfigSnapshot config){
+		int ttl = config.getInt("users.session.ttl", DEFAULT_TTL);
+		if(ttl <= 0){
+			Logger.getLogger(LOGGER_NAME).warning("Invalid session lifetime was given. Assuming "+DEFAULT_TTL+" seconds as default.");
+			ttl = DEFAULT_TTL;
+		}
+		this.ttl = TimeUnit.SECONDS.toMillis(ttl);
+	}
+
+	/**
+	 * Issues a token for a user.
+	 *
+	 * @param username name of the user
+	 * @return the token
+	 * @throws IllegalArgumentException if the user name is too long for a token
+	 */
+	public String issue(String username){
+		byte[] name = username.getBytes(NAME_CHARSET);
+		if(HEADER_LEN + name.length > MAX_PAYLOAD_LEN){
+			throw new IllegalArgumentException("user name is too long for a session token");
+		}
+
+		byte[] payload = new byte[HEADER_LEN + name.length];
+		payload[0] = VERSION;
+		putLong(payload, 1, System.currentTimeMillis() + ttl);
+		putLong(payload, 9, generation(username));
+		System.arraycopy(name, 0, payload, HEADER_LEN, name.length);
+
+		Mac mac = scratch.get().mac;
+		StringBuilder token = new StringBuilder();
+		encode(payload, payload.length, token);
+		token.append('.');
+		encode(mac.doFinal(payload), MAC_LEN, token);
+		return token.toString();
+	}
+
+	/**
+	 * Verifies a token.
+	 *
+	 * @param token the token
+	 * @return name of the user the token was issued for or <code>null</code> if the token is not valid
+	 */
+	public String verify(String token){
+		int dot = token.indexOf('.');
+		if(dot <= 0){
+			return null;
+		}
+
+		Scratch s = scratch.get();
+		int len = decode(token, 0, dot, s.payload);
+		if(len <= HEADER_LEN || s.payload[0] != VERSION || decode(token, dot+1, token.length(), s.given) != MAC_LEN){
+			return null;
+		}
+
+		s.mac.update(s.payload, 0, len);
+		try{
+			s.mac.doFinal(s.expected, 0);
+		}catch(ShortBufferException e){
+			return null; // can not happen, the buffer fits the MAC
+		}
+
+		// compare the whole MAC so the time does not tell how much of it was right
+		int diff = 0;
+		for(int i=0; i<MAC_LEN; ++i){
+			diff |= s.expected[i] ^ s.given[i];
+		}
+		if(diff != 0){
+			return null;
+		}
+
+		if(getLong(s.payload, 1) < System.currentTimeMillis()){
+			return null;
+		}
+		String username = new String(s.payload, HEADER_LEN, len - HEADER_LEN, NAME_CHARSET);
+		if(getLong(s.payload, 9) != generation(username)){
+			return null;
+		}
+		return username;
+	}
+
+	/**
+	 * Revokes the tokens that were issued to a user so far.
+	 *
+	 * @param username name of the user
+	 */
+	public void revoke(String username){
+		revoked.put(username, generation.incrementAndGet());
+	}
+
+	/**
+	 * Revokes all tokens that were issued so far.
+	 */
+	public void revokeAll(){
+		minGeneration = generation.incrementAndGet();
+		revoked.clear(); // all of them are older now
+	}
+
+	/**
+	 * @return current generation of a user
+	 */
+	private long generation(String username){
+		Long g = revoked.get(username);
+		long min = minGeneration;
+		return g != null && g > min ? g : min;
+	}
+
+	/**
+	 * @return lifetime of a token in milliseconds
+	 */
+	public long getLifetime(){
+		return ttl;
+	}
+
+	private static void putLong(byte[] b, int off, long v){
+		for(int i=7; i>=0; --i){
+			b[off+i] = (byte) v;
+			v >>>= 8;
+		}
+	}
+
+	private static long getLong(byte[] b, int off){
+		long v = 0;
+		for(int i=0; i<8; ++i){
+			v = (v << 8) | (b[off+i] & 0xff);
+		}
+		return v;
+	}
+
+	/**
+	 * Appends bytes in unpadded base64url encoding.
+	 */
+	static void encode(byte[] data, int len, StringBuilder out){
+		int i = 0;
+		for(; i+2<len; i+=3){
+			int v = ((data[i] & 0xff) << 16) | ((data[i+1] & 0xff) << 8) | (data[i+2] & 0xff);
+			out.append(ALPHABET[v >>> 18]).append(ALPHABET[(v >>> 12) & 63]).append(ALPHABET[(v >>> 6) & 63]).append(ALPHABET[v & 63]);
+		}
+		if(len - i == 1){
+			int v = (data[i] & 0xff) << 16;
+			out.append(ALPHABET[v >>> 18]).append(ALPHABET[(v >>> 12) & 63]);
+		}else if(len - i == 2){
+			int v = ((data[i] & 0xff) << 16) | ((data[i+1] & 0xff) << 8);
+			out.append(ALPHABET[v >>> 18]).append(ALPHABET[(v >>> 12) & 63]).append(ALPHABET[(v >>> 6) & 63]);
+		}
+	}
+
+	/**
+	 * Decodes unpadded base64url.
+	 *
+	 * @return number of decoded bytes or <code>-1</code> if the input is invalid or does not fit
+	 */
+	static int decode(String s, int from, int to, byte[] out){
+		int chars = to - from;
+		if(chars % 4 == 1 || (chars / 4) * 3 + Math.max(0, chars % 4 - 1) > out.length){
+			return -1;
+		}
+
+		int len = 0;
+		int bits = 0;
+		int buffer = 0;
+		for(int i=from; i<to; ++i){
+			char c = s.charAt(i);
+			int v = c < DECODE.length ? DECODE[c] : -1;
+			if(v < 0){
+				return -1;
+			}
+			buffer = (buffer << 6) | v;
+			bits += 6;
+			if(bits >= 8){
+				bits -= 8;
+				out[len++] = (byte) (buffer >>> bits);
+			}
+		}
+		return len;
+	}
+}
@@ -1,6 +1,7 @@
 package org.komorebi.core.security;
 
 import java.security.Principal;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -17,10 +18,31 @@ public class User implements Principal{
 	private String username = "";
 	private long position = 0; // position of the user within the user store (needed for password check)
 	private Map<String, Map<String, String>> credentials = new HashMap<String, Map<String, String>>(); // credentials for storage locations
-	protected long privileges = 0; // privileges bitmask
+	protected long[] privileges = new long[Privilege.MASK_WORDS]; // privileges bitmask, bit n of the mask is bit (n % 64) of word (n / 64)
 	
 	// TODO user groups
 	
+	/**
+	 * Creates an empty user.
+	 */
+	public User(){
+	}
+	
+	/**
+	 * Creates a copy of a user. Users that are handed out by the <code>UserStore</code> are
+	 * shared and must not be modified, so changes are made to a copy.
+	 * 
+	 * @param other the user to copy
+	 */
+	public User(User other){
+		this.username = other.username;
+		this.position = other.position;
+		this.privileges = other.privileges.clone();
+		for(Map.Entry<String, Map<String, String>> e: other.credentials.entrySet()){
+			credentials.put(e.getKey(), new HashMap<String, String>(e.getValue()));
+		}
+	}
+	
 	/**
 	 * @return login name of the user
 	 */
@@ -131,17 +153,27 @@ public class User implements Principal{
 	 * @param status grants the privilege when <code>true</code> or revokes it when set to <code>flase</code>
 	 */
 	public void setPrivilege(String privilege, boolean status){
-		int bit = Privilege.getPrivilegeBit(privilege);
-		if(bit < 0){
+		Privilege.Type type = Privilege.Type.forName(privilege);
+		if(type == null){
 			throw new SecurityException("Unknown privilege");
 		}
 		
+		setPrivilege(type, status);
+	}
+	
+	/**
+	 * Sets the status of a privilege for the user.
+	 * 
+	 * @param privilege the privilege
+	 * @param status grants the privilege when <code>true</code> or revokes it when set to <code>false</code>
+	 */
+	public void setPrivilege(Privilege.Type privilege, boolean status){
+		int bit = privilege.ordinal();
 		if(status){
-			privileges = privileges | (1 << bit);
+			privileges[bit >>> 6] |= 1L << bit;
 		}else{
-			privileges = privileges & ~(1 << bit);
+			privileges[bit >>> 6] &= ~(1L << bit);
 		}
-		return;
 	}
 	
 	/**
@@ -151,11 +183,57 @@ public class User implements Principal{
 	 * @return <code>true</code> if the user has the privilege
 	 */
 	public boolean hasPrivilege(String privilege){
-		int bit = Privilege.getPrivilegeBit(privilege);
-		if(bit < 0){
+		Privilege.Type type = Privilege.Type.forName(privilege);
+		if(type == null){
 			throw new SecurityException("Unknown privilege");
 		}
 		
-		return ((privileges & (1 << bit)) == (1 << bit));
+		return hasPrivilege(type);
+	}
+	
+	/**
+	 * Tests if the user has the given privilege.
+	 * 
+	 * @param privilege the privilege
+	 * @return <code>true</code> if the user has the privilege
+	 */
+	public boolean hasPrivilege(Privilege.Type privilege){
+		int bit = privilege.ordinal();
+		return (privileges[bit >>> 6] & (1L << bit)) != 0;
+	}
+	
+	/**
+	 * Gives a word of the privilege mask (for storing it).
+	 * 
+	 * @param word number of the word
+	 * @return bits of the privileges <code>64 * word</code> to <code>64 * word + 63</code>
+	 */
+	long getPrivilegeWord(int word){
+		return word < privileges.length ? privileges[word] : 0;
+	}
+	
+	/**
+	 * Sets a word of the privilege mask (when the user is read). Bits of privileges that are
+	 * not defined are kept so they are not lost when the user is stored again.
+	 * 
+	 * @param word number of the word
+	 * @param bits bits of the privileges <code>64 * word</code> to <code>64 * word + 63</code>
+	 */
+	void setPrivilegeWord(int word, long bits){
+		if(word >= privileges.length){
+			privileges = Arrays.copyOf(privileges, word + 1);
+		}
+		privileges[word] = bits;
+	}
+	
+	/**
+	 * @return number of words of the privilege mask up to the last word with a privilege set
+	 */
+	int getPrivilegeWords(){
+		int words = privileges.length;
+		while(words > 1 && privileges[words-1] == 0){
+			--words;
+		}
+		return words;
 	}
 }
@@ -0,0 +1,361 @@
+package org.komorebi.core.security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of changed users. Changes are written to the journal before they are merged
+ * into the user store file by {@link UserStore#compact()}, so they survive a crash.
+ *
+ * Every record has the form <code>length (int), CRC32 of the payload (int), payload</code>. The
+ * payload is the record type followed by the user record as it is stored in version 1 of the user
+ * store file (without the password block) and the privilege words after the first one. A record
+ * that is incomplete or does not match its checksum ends the journal, it is the remainder of a
+ * write that was interrupted by a crash.
+ *
+ * Records are written by a single thread. It waits for further records for a short time after
+ * the first one arrived and then writes and syncs all of them at once (group commit), so many
+ * concurrent changes cost one sync.
+ *
+ * @author lycis
+ *
+ */
+class UserJournal {
+	private static final String LOGGER_NAME = "userstore";
+	private static final int HEADER_LEN = 8; // length + checksum
+	private static final byte RECORD_PUT = 1; // user was added or changed
+
+	/**
+	 * A record that waits to be written.
+	 */
+	static class Commit{
+		final ByteBuffer record;
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile boolean durable = false;
+
+		Commit(ByteBuffer record){
+			this.record = record;
+		}
+
+		/**
+		 * Waits until the record was synced to disk.
+		 *
+		 * @return <code>true</code> if the record was written
+		 */
+		boolean await(){
+			try{
+				done.await();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return durable;
+		}
+
+		/**
+		 * Waits until the record was synced to disk, also if the thread is interrupted meanwhile
+		 * (the interrupt is kept). The record may still become durable after an interrupt, so a
+		 * caller that publishes the change only after it was written must not give up early.
+		 *
+		 * @return <code>true</code> if the record was written
+		 */
+		boolean awaitUninterruptibly(){
+			boolean interrupted = false;
+			for(;;){
+				try{
+					done.await();
+					break;
+				}catch(InterruptedException e){
+					interrupted = true;
+				}
+			}
+			if(interrupted){
+				Thread.currentThread().interrupt();
+			}
+			return durable;
+		}
+
+		void complete(boolean durable){
+			this.durable = durable;
+			done.countDown();
+		}
+	}
+
+	private static final Commit CLOSE = new Commit(null);
+
+	private final Path file;
+	private final FileChannel channel;
+	private final long commitDelay; // nanoseconds
+	private final LinkedBlockingQueue<Commit> queue = new LinkedBlockingQueue<Commit>();
+	private final Thread writer;
+	private final AtomicLong syncs = new AtomicLong(0);
+
+	/**
+	 * Opens the journal and applies all complete records to the given users. A damaged end of the
+	 * journal is cut off.
+	 *
+	 * @param file the journal file (created if missing)
+	 * @param commitDelay time in milliseconds a commit waits for further records
+	 * @param users users of the store file, changed users are replaced
+	 * @throws IOException if the journal can not be read
+	 */
+	UserJournal(Path file, long commitDelay, Map<String, User> users) throws IOException{
+		this.file = file;
+		this.commitDelay = TimeUnit.MILLISECONDS.toNanos(commitDelay);
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		try{
+			replay(users);
+		}catch(IOException e){
+			channel.close();
+			throw e;
+		}
+
+		writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "userstore-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Reads all complete records and truncates the journal after the last one.
+	 */
+	private void replay(Map<String, User> users) throws IOException{
+		long size = channel.size();
+		if(size > Integer.MAX_VALUE){
+			throw new IOException("User journal is too large");
+		}
+
+		ByteBuffer data = ByteBuffer.allocate((int) size);
+		while(data.hasRemaining() && channel.read(data, data.position()) >= 0){
+		}
+		data.flip();
+
+		int records = 0;
+		CRC32 crc = new CRC32();
+		while(data.remaining() >= HEADER_LEN){
+			int start = data.position();
+			int len = data.getInt();
+			int checksum = data.getInt();
+			if(len <= 0 || len > data.remaining()){
+				data.position(start);
+				break;
+			}
+
+			crc.reset();
+			crc.update(data.array(), data.position(), len);
+			if((int) crc.getValue() != checksum){
+				data.position(start);
+				break;
+			}
+
+			ByteBuffer payload = (ByteBuffer) data.slice().limit(len);
+			data.position(data.position() + len);
+			try{
+				if(payload.get() == RECORD_PUT){
+					User u = UserStore.readRecord(payload);
+					for(int i=1; payload.remaining() >= 8; ++i){
+						u.setPrivilegeWord(i, payload.getLong());
+					}
+					User stored = users.get(u.getName());
+					u.setPosition(stored != null ? stored.getPosition() : -1); // password block stays in the store file
+					users.put(u.getName(), u);
+				}
+			}catch(BufferUnderflowException e){
+				throw new IOException("User journal record "+records+" is invalid");
+			}
+			++records;
+		}
+
+		if(data.position() < size){
+			Logger.getLogger(LOGGER_NAME).warning("Discarded "+(size - data.position())+" bytes of an incomplete user journal record.");
+			channel.truncate(data.position());
+			channel.force(true);
+		}
+		channel.position(data.position());
+
+		if(records > 0){
+			Logger.getLogger(LOGGER_NAME).info("Applied "+records+" changes from the user journal.");
+		}
+	}
+
+	/**
+	 * Queues a changed user for writing.
+	 *
+	 * @param user the user
+	 * @return commit to wait for
+	 */
+	Commit append(User user){
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try{
+			out.writeInt(0); // length and checksum are filled in below
+			out.writeInt(0);
+			out.writeByte(RECORD_PUT);
+			UserStore.writeRecord(user, out);
+			for(int i=1; i<user.getPrivilegeWords(); ++i){
+				out.writeLong(user.getPrivilegeWord(i));
+			}
+		}catch(IOException e){
+			throw new IllegalStateException(e); // can not happen in memory
+		}
+
+		ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), HEADER_LEN, record.limit() - HEADER_LEN);
+		record.putInt(0, record.limit() - HEADER_LEN);
+		record.putInt(4, (int) crc.getValue());
+
+		Commit c = new Commit(record);
+		queue.add(c);
+		return c;
+	}
+
+	/**
+	 * Waits until all queued records were written.
+	 *
+	 * @return <code>true</code> if the records were written
+	 */
+	boolean flush(){
+		Commit c = new Commit(ByteBuffer.allocate(0));
+		queue.add(c);
+		return c.await();
+	}
+
+	/**
+	 * Removes all records. The caller has to make sure no records are appended at the same time.
+	 */
+	void truncate() throws IOException{
+		flush();
+		synchronized(channel){
+			channel.truncate(0);
+			channel.position(0);
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * @return size of the journal in bytes
+	 */
+	long size() throws IOException{
+		synchronized(channel){
+			return channel.size();
+		}
+	}
+
+	/**
+	 * @return number of syncs, each one committed a batch of records
+	 */
+	long getSyncCount(){
+		return syncs.get();
+	}
+
+	/**
+	 * Writes the queued records and closes the journal.
+	 */
+	void close(){
+		queue.add(CLOSE);
+		try{
+			writer.join();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+
+		try{
+			channel.close();
+		}catch(IOException e){
+			Logger.getLogger(LOGGER_NAME).warning("Potential resource leak: could not close user journal (reason: "+e.getMessage()+")");
+		}
+	}
+
+	/**
+	 * Writer thread: collects records for the commit delay and writes them with one sync.
+	 */
+	private void write(){
+		List<Commit> batch = new ArrayList<Commit>();
+		boolean closed = false;
+		while(!closed){
+			batch.clear();
+			try{
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + commitDelay;
+				for(long wait = commitDelay; wait > 0 && batch.get(batch.size()-1) != CLOSE; wait = deadline - System.nanoTime()){
+					Commit c = queue.poll(wait, TimeUnit.NANOSECONDS);
+					if(c == null){
+						break;
+					}
+					batch.add(c);
+				}
+			}catch(InterruptedException e){
+				closed = true;
+			}
+			queue.drainTo(batch);
+
+			List<ByteBuffer> records = new ArrayList<ByteBuffer>(batch.size());
+			for(Commit c: batch){
+				if(c == CLOSE){
+					closed = true;
+				}else if(c.record.hasRemaining()){
+					records.add(c.record);
+				}
+			}
+
+			boolean durable = records.isEmpty() || commit(records.toArray(new ByteBuffer[records.size()]));
+			for(Commit c: batch){
+				c.complete(durable);
+			}
+		}
+	}
+
+	/**
+	 * Appends records and syncs the journal. If this fails the journal is cut back so later
+	 * records do not follow a damaged one.
+	 */
+	private boolean commit(ByteBuffer[] records){
+		synchronized(channel){
+			long start = -1;
+			try{
+				start = channel.position();
+				long remaining = 0;
+				for(ByteBuffer b: records){
+					remaining += b.remaining();
+				}
+				while(remaining > 0){
+					remaining -= channel.write(records);
+				}
+				channel.force(false);
+				syncs.incrementAndGet();
+				return true;
+			}catch(IOException e){
+				Logger.getLogger(LOGGER_NAME).severe("User changes could not be written to the journal "+file+" (reason: "+e.getMessage()+")");
+				try{
+					if(start >= 0){
+						channel.truncate(start);
+						channel.position(start);
+					}
+				}catch(IOException ex){
+					Logger.getLogger(LOGGER_NAME).severe("User journal could not be repaired (reason: "+ex.getMessage()+")");
+				}
+				return false;
+			}
+		}
+	}
+}
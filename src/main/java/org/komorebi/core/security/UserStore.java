@@ -4,16 +4,40 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.Console;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
+import org.komorebi.core.configuration.ConfigListener;
+import org.komorebi.core.configuration.ConfigSnapshot;
 import org.komorebi.core.configuration.KomorebiCoreConfig;
 
 /**
@@ -21,6 +45,26 @@ import org.komorebi.core.configuration.KomorebiCoreConfig;
  * directory based on the user store file. Everything regarding handling of
  * users is going through this class.
  * 
+ * The user store file is memory mapped while the store is loaded. The user records are
+ * parsed from the mapping once on load, which builds the index from user name to record
+ * position. Password blocks are read from and written to the mapping directly so checking a
+ * password does not need to open or seek the file.
+ * 
+ * New user store files are written in version 2 of the format (see {@link UserStoreV2}).
+ * Version 1 files are still read and converted when the store is compacted the next time.
+ * 
+ * Reading users and checking passwords does not lock. The users are kept in a concurrent map
+ * in which a changed user replaces only its own entry. The <code>User</code> objects in the map
+ * must not be modified, changes are made to a copy that is then passed to
+ * {@link #updateUser(User, User)} together with the user it was copied from. The change is only
+ * made if the user was not changed meanwhile and becomes visible once it is durable. Changes of
+ * different users do not block each other, only loading and compacting the store wait for
+ * running changes and hold new ones back.
+ * 
+ * Changed users are appended to a journal (see {@link UserJournal}) next to the user store file
+ * and applied again when the store is loaded. When the journal has grown large enough it is
+ * merged into a new user store file, which replaces the old one.
+ * 
  * The user store is a singleton.
  * 
  * @author lycis
@@ -29,24 +73,74 @@ import org.komorebi.core.configuration.KomorebiCoreConfig;
 public class UserStore {
 
 	// constants
-	private static final int VERSION = 1; // most recent version of the file format
-	private static final int PASSWORD_BLOCK_LEN = 1024; // length of the password block
+	private static final int VERSION = UserStoreV2.VERSION; // most recent version of the file format
+	private static final int PASSWORD_BLOCK_LEN = 1024; // length of the password block (version 1)
 	private static final String STRING_ENCODING = "UTF-8"; // encoding of stored strings
+	private static final Charset STRING_CHARSET = Charset.forName(STRING_ENCODING);
+	private static final String JOURNAL_SUFFIX = ".journal";
+	private static final long DEFAULT_COMMIT_DELAY = 2; // milliseconds
+	private static final long DEFAULT_COMPACT_INTERVAL = 300; // seconds
+	private static final long DEFAULT_COMPACT_SIZE = 1048576; // bytes
+
+	/**
+	 * The users and the mapping of the store file their positions refer to. Both are replaced
+	 * together so a reader never combines a user with the wrong file.
+	 */
+	private static final class State{
+		static final State EMPTY = new State(new HashMap<String, User>(), null, 0);
+
+		final ConcurrentMap<String, User> users; // the User objects are not modified, changed users replace them
+		final MappedByteBuffer mapping; // the loaded user store file
+		final int blockLen; // length of the password blocks in the file
+
+		State(Map<String, User> users, MappedByteBuffer mapping, int blockLen){
+			this.users = new ConcurrentHashMap<String, User>(users);
+			this.mapping = mapping;
+			this.blockLen = blockLen;
+		}
+	}
+
+	/**
+	 * Result of {@link #updateUser(User, User)}.
+	 */
+	public enum UpdateResult{
+		UPDATED,  // the change is persisted and visible
+		CONFLICT, // the user was changed meanwhile, nothing was changed
+		FAILED    // the change could not be persisted, nothing was changed
+	}
 
 	// singleton instance
 	private static UserStore store = new UserStore();
 
 	// members
-	private Map<String, User> userMap = null;
+	private volatile State state = State.EMPTY; // replaced on load and compaction
+	private volatile String hashMethod = null; // hash method of the loaded user store
+	private File storeFile = null; // the loaded user store file
+	private volatile UserJournal journal = null; // journal of the loaded user store - replaced under the write lock
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // changes of users share it, load and compaction take it exclusively
+	private final Object[] stripes = new Object[64]; // orders the map and journal changes of a user
+	private final ConcurrentMap<String, CountDownLatch> pending = new ConcurrentHashMap<String, CountDownLatch>(); // users whose change is being written
+	private ScheduledExecutorService compactor = null;
+
+	UserStore() { // tests use their own instances
+		for(int i=0; i<stripes.length; ++i){
+			stripes[i] = new Object();
+		}
 
-	private UserStore() {
-		userMap = new HashMap<String, User>();
+		// follow changes of the hash method
+		KomorebiCoreConfig.addListener(new ConfigListener() {
+			public void configChanged(ConfigSnapshot previous, ConfigSnapshot current, Set<String> changedKeys) {
+				if(changedKeys.contains("users.hashmethod") && state.mapping != null){
+					hashMethod = current.getString("users.hashmethod");
+				}
+			}
+		});
 	}
 
 	/**
 	 * Get current instance of the user store.
 	 */
-	synchronized public static UserStore getInstance() {
+	public static UserStore getInstance() {
 		return store;
 	}
 
@@ -56,19 +150,46 @@ public class UserStore {
 	 * @return
 	 */
 	synchronized public boolean load(char[] password) {
-		KomorebiCoreConfig config = new KomorebiCoreConfig();
+		ConfigSnapshot config = KomorebiCoreConfig.getSnapshot();
 
-		if (config.getBoolean("users.encrypted")) {
+		if (config.getBoolean("users.encrypted", false)) {
 			// TODO decrypt user store file
 		}
 
-		userMap.clear(); // initialise user cache
+		return load(new File(config.getString("users.store")), config.getString("users.hashmethod"));
+	}
+
+	/**
+	 * Loads a user store file.
+	 * 
+	 * @param storefile the user store file
+	 * @param method hash method of new passwords
+	 * @return <code>true</code> if the store was loaded
+	 */
+	synchronized boolean load(File storefile, String method) {
+		lock.writeLock().lock(); // no changes while the store is replaced
+		try{
+			return loadStore(storefile, method);
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	private boolean loadStore(File storefile, String method) {
+		ConfigSnapshot config = KomorebiCoreConfig.getSnapshot();
+
+		state = State.EMPTY; // initialise user cache
+		if(journal != null){
+			journal.close();
+			journal = null;
+		}
+		AuthCache.getInstance().invalidate(); // users may have changed
 
-		File storefile = new File(config.getString("users.store"));
 		if (!storefile.exists()) {
 			Logger.getLogger("userstore").severe("User store file ("+storefile.getAbsolutePath()+") not found.");
 			return false;
 		}
+		hashMethod = method;
 
 		// here is where the actual user store is read in its binary format
 		// IMPORTANT: this has to be in versions, meaning that whenever the file
@@ -76,21 +197,32 @@ public class UserStore {
 		// it must be able to use a newer core version with an older file
 		// version.
 		// the version of the file is stored in the first 4 byte (= integer)
-		RandomAccessFile raf = null;
+		// the whole file is mapped, the mapping stays valid after the channel was closed
+		FileChannel channel = null;
 		try {
-			raf = new RandomAccessFile(storefile, "r");
+			channel = FileChannel.open(storefile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			MappedByteBuffer map = channel.map(MapMode.READ_WRITE, 0, channel.size());
 
 			// read version
-			int version = raf.readInt();
-			if (version != 1) {
+			int version = map.getInt();
+			Map<String, User> users = new HashMap<String, User>();
+			int blockLen = PASSWORD_BLOCK_LEN;
+			if (version == 1) {
+				// read one user block after another
+				while(map.hasRemaining()){
+					User u = restoreUser(map);
+					users.put(u.getName(), u);
+				}
+			} else if (version == UserStoreV2.VERSION) {
+				blockLen = UserStoreV2.read(map, users);
+			} else {
 				throw new IOException("Not supported user store version");
 			}
 
-			// read one user block after another
-			while(raf.getFilePointer() < raf.length()){
-				User u = restoreUser(raf);
-				userMap.put(u.getName(), u);
-			}
+			// apply changes that were not compacted yet
+			journal = new UserJournal(journalPath(storefile), config.getLong("users.journal.commitDelay", DEFAULT_COMMIT_DELAY), users);
+			storeFile = storefile;
+			state = new State(users, map, blockLen);
 
 		} catch (IOException e) {
 			Logger.getLogger("userstore")
@@ -98,22 +230,126 @@ public class UserStore {
 					+ e.getMessage()
 					+ "). It may be corrputed! You may need to delete and renew it...");
 			return false;
+		} catch (BufferUnderflowException e) {
+			Logger.getLogger("userstore")
+			.severe("The user store is corrupted: the last user record is incomplete. You may need to delete and renew it...");
+			return false;
 		} finally {
-			if (raf != null) {
+			if (channel != null) {
 				try {
-					raf.close();
+					channel.close();
 				} catch (IOException e) {
 					Logger.getLogger("userstore").warning(
-							"Potential resource leak: could not close user store RAF (reason: "
+							"Potential resource leak: could not close user store channel (reason: "
 									+ e.getMessage() + ")");
 				}
 			}
 		}
 
-		Logger.getLogger("userstore").info("Loaded User Store with "+userMap.size()+" registered users.");
+		Logger.getLogger("userstore").info("Loaded User Store with "+state.users.size()+" registered users.");
+		scheduleCompaction(config);
+		if(hashMethod != null && !"PLAIN".equals(hashMethod.trim().toUpperCase())){
+			PasswordHasher.getInstance(); // calibrate the cost of new hashes before the first login
+		}
 		return true;
 	}
 
+	private static Path journalPath(File storefile){
+		return Paths.get(storefile.getPath()+JOURNAL_SUFFIX);
+	}
+
+	/**
+	 * Starts the periodic compaction of the journal.
+	 */
+	private void scheduleCompaction(ConfigSnapshot config){
+		if(compactor != null){
+			return;
+		}
+
+		long interval = config.getLong("users.journal.compactInterval", DEFAULT_COMPACT_INTERVAL);
+		final long threshold = config.getLong("users.journal.compactSize", DEFAULT_COMPACT_SIZE);
+		if(interval <= 0){
+			Logger.getLogger("userstore").warning("Invalid compaction interval for the user journal was given. Assuming "+DEFAULT_COMPACT_INTERVAL+" seconds as default.");
+			interval = DEFAULT_COMPACT_INTERVAL;
+		}
+
+		compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "userstore-compactor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		compactor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try{
+					if(getJournalSize() > threshold){
+						compact();
+					}
+				}catch(IOException e){
+					Logger.getLogger("userstore").warning("User journal could not be compacted (reason: "+e.getMessage()+")");
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return size of the journal in bytes
+	 */
+	synchronized long getJournalSize() throws IOException{
+		return journal != null ? journal.size() : 0;
+	}
+
+	/**
+	 * Writes all users to a new user store file, replaces the old file with it and clears the
+	 * journal. Password blocks are copied from the old file. The new file always has the most
+	 * recent format version.
+	 * 
+	 * @throws IOException if the new file could not be written, the old file and the journal stay in place
+	 */
+	synchronized public void compact() throws IOException{
+		lock.writeLock().lock(); // running changes are in the map and the journal, new ones wait
+		try{
+			compactStore();
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void compactStore() throws IOException{
+		State current = state;
+		MappedByteBuffer oldMap = current.mapping;
+		if(oldMap == null || journal == null){
+			return;
+		}
+		if(!journal.flush()){
+			throw new IOException("journal could not be written");
+		}
+
+		Path store = storeFile.toPath();
+		Path temp = Paths.get(storeFile.getPath()+".tmp");
+		Map<String, User> users = null;
+		FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try{
+			users = UserStoreV2.write(out, current.users.values(), oldMap, current.blockLen);
+			out.force(true);
+		}finally{
+			out.close();
+		}
+		Files.move(temp, store, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		FileChannel channel = FileChannel.open(store, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try{
+			state = new State(users, channel.map(MapMode.READ_WRITE, 0, channel.size()), UserStoreV2.SLOT_LEN);
+		}finally{
+			channel.close();
+		}
+
+		// the store file holds all changes now (replaying the journal again would do no harm)
+		journal.truncate();
+		Logger.getLogger("userstore").info("Compacted user store with "+users.size()+" users.");
+	}
+
 	/**
 	 * Initialise the user store with a basic administrative user
 	 * 
@@ -129,7 +365,7 @@ public class UserStore {
 		User adminUser = new User();
 		adminUser.setName(adminuser);
 
-		KomorebiCoreConfig config = new KomorebiCoreConfig();
+		ConfigSnapshot config = KomorebiCoreConfig.getSnapshot();
 		File storefile = new File(config.getString("users.store"));
 		if(storefile.exists()){
 			System.out.print("This causes the existing user store to be overwritten. Continue? [n]");
@@ -150,33 +386,30 @@ public class UserStore {
 			}
 		}
 
-		RandomAccessFile raf = null;
+		FileChannel out = null;
 		try{
-			raf = new RandomAccessFile(storefile, "rw");
+			out = FileChannel.open(storefile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			Files.deleteIfExists(journalPath(storefile)); // belongs to the old store
 
-			// write version
-			raf.writeInt(VERSION);
-
-			// write admin user
-			adminUser.setPosition(raf.getFilePointer()); // admin user starts on position zero
-			storeUser(adminUser, raf, true);
+			// write admin user with an empty password block
+			adminUser = UserStoreV2.write(out, Collections.singletonList(adminUser), null, 0).get(adminUser.getName());
 		}catch(IOException e){
 			System.out.println("Error: "+e.getMessage());
 			System.exit(1);
 		}finally{
-			if (raf != null) {
+			if (out != null) {
 				try {
-					raf.close();
+					out.close();
 				} catch (IOException e) {
 					Logger.getLogger("userstore").warning(
-							"Potential resource leak: could not close user store RAF (reason: "
+							"Potential resource leak: could not close user store channel (reason: "
 									+ e.getMessage() + ")");
 				}
 			}
 		}
 
 		// set password
-		if(!setPassword(adminUser.getPosition(), adminpass)){
+		if(!setPassword(adminUser, adminpass)){
 			// password set failed :(
 			clearPassword(adminpass);
 			System.out.println("Initialisation failed. Could not set administrative password.");
@@ -187,193 +420,206 @@ public class UserStore {
 	}
 
 	/**
-	 * Store this user (except password) in the user store
-	 * @param ds data stream to write to
-	 * @param position position of the user record in user store
-	 * @param unew indicates that it is a new user
+	 * Writes a user record (everything after the password block) in the layout of version 1 of
+	 * the user store. This layout is used by the journal.
+	 * 
+	 * @param user the user
+	 * @param out stream to write to
 	 */
-	private void storeUser(User user, RandomAccessFile raf, boolean unew) throws IOException{
-
-		// 1. password - either skip or delete
-		if(unew){
-			byte[] pass = new byte[PASSWORD_BLOCK_LEN]; // 1K password block
-			raf.write(pass);
-		}else{
-			raf.seek(user.getPosition()+PASSWORD_BLOCK_LEN);
-		}
-
-		// 2. user name
-		// 2.a length of user name
-		raf.writeInt(user.getName().length());
-		// 2.b actual user name
-		byte[] uname = user.getName().getBytes(STRING_ENCODING);
-		raf.write(uname);
+	static void writeRecord(User user, DataOutput out) throws IOException{
+		// 2. user name (length + name)
+		writeString(user.getName(), out);
 
 		// 3. credentials
 		Set<String> locations = user.getLocations();
 		// 3.a number of locations
-		raf.writeInt(locations.size());
+		out.writeInt(locations.size());
 		for(String loc: locations){
 			// 3.b location (length + name)
-			raf.write(loc.length());
-			raf.write(loc.getBytes(STRING_ENCODING));
+			writeString(loc, out);
 
 			// 3.c number of credentials
 			Set<String> credentials = user.getCredentials(loc);
-			raf.write(credentials.size());
+			out.writeInt(credentials.size());
 
 			for(String key: credentials){
 				// 3.d key (length + key)
-				raf.write(key.length());
-				raf.write(key.getBytes(STRING_ENCODING));
+				writeString(key, out);
 
-				// 3.e value (length + key)
-				String val = user.getCredentialValue(loc, key);
-				raf.write(val.length());
-				raf.write(val.getBytes(STRING_ENCODING));
+				// 3.e value (length + value)
+				writeString(user.getCredentialValue(loc, key), out);
 			}
 		}
 		
-		// 4. privileges
-		raf.writeLong(user.privileges);
+		// 4. privileges (first 64, the journal appends further words)
+		out.writeLong(user.getPrivilegeWord(0));
 	}
 
-	private User restoreUser(RandomAccessFile raf) throws IOException{
-		User u = new User(); // returned user object
+	private static void writeString(String s, DataOutput out) throws IOException{
+		byte[] bytes = s.getBytes(STRING_CHARSET);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
 
-		long startpos = raf.getFilePointer(); // position of user record
-		u.setPosition(startpos);
+	private User restoreUser(ByteBuffer map) throws IOException{
+		int startpos = map.position(); // position of user record
 
-		if(raf.length()-startpos <= PASSWORD_BLOCK_LEN){
-			throw new IOException("Corrupted user record detected. Password block is too small. ("+(raf.length()-startpos)+" instead of "
+		if(map.remaining() <= PASSWORD_BLOCK_LEN){
+			throw new IOException("Corrupted user record detected. Password block is too small. ("+map.remaining()+" instead of "
 					+PASSWORD_BLOCK_LEN+")");
 		}
 
 		// read over pass word block
-		raf.seek(raf.getFilePointer()+PASSWORD_BLOCK_LEN);
+		map.position(startpos+PASSWORD_BLOCK_LEN);
+
+		User u = readRecord(map);
+		u.setPosition(startpos);
+		return u;
+	}
+
+	/**
+	 * Reads a user record (everything after the password block).
+	 * 
+	 * @param map buffer positioned at the record
+	 * @return the user, its position is not set
+	 */
+	static User readRecord(ByteBuffer map) throws IOException{
+		User u = new User(); // returned user object
 
 		// read user name
-		int unameLen = raf.readInt();
-		byte[] uname = new byte[unameLen];
-		if(raf.read(uname) != unameLen){
-			throw new IOException("Corrupted user store. User record does not contain user name!");
-		}
-		u.setName(new String(uname, STRING_ENCODING));
+		u.setName(readString(map, "User record does not contain user name!"));
 
 		// 3. read location credentials
-		int locationCount = raf.readInt();
+		int locationCount = map.getInt();
 		for(int i=0;i<locationCount;++i){
-			// read location name
-			int locationStrLen = raf.readInt(); // 3.a length of location name
-			byte[] locNameBArr = new byte[locationStrLen];
-			if(raf.read(locNameBArr) != locationStrLen){ // 3.b location name
-				throw new IOException("Corrupted user store. Credential location record is invalid.");
-			}
-
-			String location = new String(locNameBArr, STRING_ENCODING);
+			// 3.a + 3.b location name (length + name)
+			String location = readString(map, "Credential location record is invalid.");
 
 			// 3.c read number of credentials for location
-			int numCredentials = raf.readInt();
+			int numCredentials = map.getInt();
 			for(int j=0; j<numCredentials; ++j){
 				// 3.d credential key (length + key)
-				int keyLen = raf.readInt();
-				byte[] keyBArr = new byte[keyLen];
-				if(raf.read(keyBArr) != keyLen){
-					throw new IOException("Corrupted user store. Credential key record is invalid.");
-				}
-
-				// 3.d credential key (length + key)
-				int valLen = raf.readInt();
-				byte[] valBArr = new byte[valLen];
-				if(raf.read(valBArr) != valLen){
-					throw new IOException("Corrupted user store. Credential value record is invalid.");
-				}
+				String credentialKey = readString(map, "Credential key record is invalid.");
 
-				String credentialKey = new String(keyBArr, STRING_ENCODING);
-				String credentialValue = new String(valBArr, STRING_ENCODING);
+				// 3.e credential value (length + value)
+				String credentialValue = readString(map, "Credential value record is invalid.");
 				u.setCredentialValue(location, credentialKey, credentialValue);
 			}
 		}
 		
 		// 4. privileges
-		long priv = raf.readLong();
-		u.privileges = priv;
+		long priv = map.getLong();
+		u.setPrivilegeWord(0, priv);
 		return u;
 	}
 
+	/**
+	 * Reads a string (length + bytes) from the mapped user store.
+	 * 
+	 * @param map mapping positioned at the string
+	 * @param error description of the record in case it is corrupted
+	 * @return the string
+	 */
+	private static String readString(ByteBuffer map, String error) throws IOException{
+		int len = map.getInt();
+		if(len < 0 || len > map.remaining()){
+			throw new IOException("Corrupted user store. "+error);
+		}
+
+		byte[] bytes = new byte[len];
+		map.get(bytes);
+		return new String(bytes, STRING_CHARSET);
+	}
+
 	/**
 	 * Checks if the given password matches the password of the user. Used for e.g. login.
-	 * The given password will be hashed according to the configured method and checked afterwards. So if
-	 * the hashing method is changed all currently stored passwords will become invalid.
+	 * Hashed passwords are verified with the parameters stored in their password block (see
+	 * {@link PasswordHasher}), so they stay valid when the cost of new hashes changes. Plain text
+	 * passwords are only accepted while PLAIN is the configured hash method.
 	 * 
 	 * @param user user to check
 	 * @param password password to check
 	 * @return <code>true</code> if the password matches
+	 * @throws RejectedExecutionException if too many passwords are being verified at the moment
 	 */
-	synchronized public boolean checkPassword(User user, char[] password){
-		KomorebiCoreConfig conf = new KomorebiCoreConfig();
-
-		// hash and clear given password
-		byte[] hashedPw = hashPassword(password, conf.getString("users.hashmethod"));
-		if(hashedPw.length != PASSWORD_BLOCK_LEN){
-			return false; // the password block is always the same size
+	public boolean checkPassword(User user, char[] password){
+		State s = state;
+		MappedByteBuffer map = s.mapping;
+		if(map == null){
+			Logger.getLogger("userstore").severe("User store is not loaded!");
+			return false;
 		}
 
-		// read configured password from file
-		File usfile = new File(conf.getString("users.store"));
-		if(!usfile.exists()){
-			Logger.getLogger("userstore").severe("User store file does not exist!");
+		// the position of the password block may have changed since the user was read
+		user = s.users.get(user.getName());
+		if(user == null){
+			clearPassword(password);
 			return false;
 		}
 
-		byte[] filePw = new byte[PASSWORD_BLOCK_LEN];
-		RandomAccessFile raf = null;
-		try{
-			raf = new RandomAccessFile(usfile, "r");
-			raf.seek(user.getPosition());
-			if(raf.read(filePw) != PASSWORD_BLOCK_LEN){
-				throw new IOException("User store corrupted: invalid password block length");
-			}
-		}catch(IOException e){
-			Logger.getLogger("userstore").severe(e.getMessage());
+		// read configured password from the mapping
+		if(user.getPosition() < 0 || user.getPosition() + s.blockLen > map.capacity()){
+			Logger.getLogger("userstore").severe("User store corrupted: invalid password block position");
+			clearPassword(password);
 			return false;
-		}finally{
-			if(raf != null){
-				try{
-					raf.close();
-				}catch(Exception e){
-					Logger.getLogger("userstore").warning("Potential ressource leak: could not close user store RAF (reason: "+e.getMessage()+")");
-				}
-			}
 		}
+		byte[] stored = new byte[s.blockLen];
+		ByteBuffer block = map.duplicate();
+		block.position((int) user.getPosition());
+		block.get(stored);
 
-		// check if hashed passwords do match
-		for(int i=0; i<PASSWORD_BLOCK_LEN; ++i){
-			if(hashedPw[i] != filePw[i]){
-				return false; // passwords do not match
-			}
+		if(PasswordHasher.isHashed(stored)){
+			return PasswordHasher.getInstance().verify(stored, password);
 		}
 
-		return true;
+		String method = hashMethod;
+		if(method == null || !"PLAIN".equals(method.trim().toUpperCase())){
+			clearPassword(password);
+			return false; // plain text password, but plain text is not allowed
+		}
+
+		if(password.length > stored.length){
+			clearPassword(password);
+			return false; // longer plain text passwords are hashed when they are set
+		}
+
+		// hash and clear given password
+		byte[] hashedPw = hashPassword(password, method, stored.length);
+
+		// check if hashed passwords do match (always compare the whole block)
+		int diff = 0;
+		for(int i=0; i<stored.length; ++i){
+			diff |= hashedPw[i] ^ stored[i];
+		}
+
+		return diff == 0;
 	}
 
 	/**
 	 * Applies the given hash algorithm to the password. The password will be cleard afterwards.
+	 * Plain text passwords that do not fit into the password block are hashed with PBKDF2, a cut
+	 * password would accept every password that starts the same way.
 	 * 
 	 * @param password password string to be hashed
-	 * @param method hashing method (currently supported: PLAIN)
+	 * @param method hashing method (currently supported: PLAIN, SHA-2 or PBKDF2 for PBKDF2 with HMAC-SHA256)
+	 * @param blockLen length of the password block the password is stored in
 	 * @return hashed password
 	 */
-	private byte[] hashPassword(char[] password, String method){
+	private byte[] hashPassword(char[] password, String method, int blockLen){
 		byte[] hashed = new byte[PASSWORD_BLOCK_LEN];
 
 		method = method.trim().toUpperCase();
-		if("PLAIN".equals(method)){
+		if("PLAIN".equals(method) && password.length > blockLen){
+			Logger.getLogger("userstore").warning("Plain text password is longer than the password block ("+blockLen+" bytes). It is hashed instead.");
+			hashed = PasswordHasher.getInstance().hash(password, PASSWORD_BLOCK_LEN);
+		}else if("PLAIN".equals(method)){
 			// warn about plaintext
 			Logger.getLogger("userstore").warning("You are using PLAINTEXT passwords. This is not recommended!");
-			for(int i=0; i<(hashed.length<password.length?hashed.length:password.length); ++i){
+			for(int i=0; i<password.length; ++i){
 				hashed[i] = (byte) password[i]; // ONLY ASCII
 			}
+		}else if("SHA-2".equals(method) || "PBKDF2".equals(method)){
+			hashed = PasswordHasher.getInstance().hash(password, PASSWORD_BLOCK_LEN);
 		}else{
 			Logger.getLogger("userstore").severe("Can not set password - Unknown hash method.");
 			return hashed;
@@ -384,25 +630,73 @@ public class UserStore {
 	}
 
 	/**
-	 * Sets and hashes a user password.
+	 * Sets and hashes a user password. The sessions of the user are ended.
 	 * 
-	 * @param position position of the user record in the store
+	 * While the store is loaded the password block is looked up by the name of the user, as
+	 * compaction moves the blocks. Users that were added after the last compaction have no
+	 * password block yet, the store is compacted first to give them one.
+	 * 
+	 * @param user the user (its position is only used if no user store is loaded)
 	 * @param password password (plain text)
 	 * @return <code>true</code> if the password was set
 	 */
-	synchronized public boolean setPassword(long position, char[] password){
-		KomorebiCoreConfig config = new KomorebiCoreConfig();
+	synchronized public boolean setPassword(User user, char[] password){
+		if(state.mapping != null){
+			User stored = state.users.get(user.getName());
+			if(stored != null && stored.getPosition() < 0){
+				try{
+					compact();
+				}catch(IOException e){
+					Logger.getLogger("userstore").severe("Can not set password: user store could not be compacted (reason: "+e.getMessage()+")");
+					clearPassword(password);
+					return false;
+				}
+			}
 
-		byte[] filePass = hashPassword(password, config.getString("users.hashmethod"));
+			// the loaded user store is written through the mapping
+			lock.readLock().lock(); // the password blocks are not moved meanwhile
+			try{
+				State s = state;
+				MappedByteBuffer map = s.mapping;
+				stored = s.users.get(user.getName());
+				long position = stored != null ? stored.getPosition() : -1;
+				if(map == null || position < 0 || position + s.blockLen > map.capacity()){
+					Logger.getLogger("userstore").severe("Can not set password: invalid password block position");
+					clearPassword(password);
+					return false;
+				}
 
-		// TODO implement SHA-2
+				byte[] filePass = hashPassword(password, hashMethod, s.blockLen);
+				AuthCache.getInstance().invalidate(); // the old password must not be accepted any longer
+
+				ByteBuffer block = map.duplicate();
+				block.position((int) position);
+				block.put(filePass, 0, s.blockLen);
+				map.force();
+				AuthCache.getInstance().invalidate(); // logins that read the old block meanwhile must not be cached
+				SessionTokens.getInstance().revoke(user.getName()); // neither the sessions that were opened with the old password
+				return true;
+			}finally{
+				lock.readLock().unlock();
+			}
+		}
 
-		// RAF access
+		// RAF access (no user store is loaded)
+		ConfigSnapshot config = KomorebiCoreConfig.getSnapshot();
+		long position = user.getPosition();
 		try{
 			RandomAccessFile usfile = new RandomAccessFile(config.getString("users.store"), "rw");
-			usfile.seek(position);
-			usfile.write(filePass);
-			usfile.close();
+			try{
+				int blockLen = usfile.readInt() == 1 ? PASSWORD_BLOCK_LEN : usfile.readInt(); // version 2 has the slot length next
+				byte[] filePass = hashPassword(password, config.getString("users.hashmethod"), blockLen);
+				AuthCache.getInstance().invalidate();
+				usfile.seek(position);
+				usfile.write(filePass, 0, blockLen);
+			}finally{
+				usfile.close();
+			}
+			AuthCache.getInstance().invalidate();
+			SessionTokens.getInstance().revoke(user.getName());
 		}catch(FileNotFoundException e){
 			Logger.getLogger("userstore").severe("Password error: user store file not found");
 			return false;
@@ -434,7 +728,78 @@ public class UserStore {
 	 * @param username name of the user you wish to get
 	 * @return the User object associated to the user or <code>null</code> if the user does not exist
 	 */
-	synchronized public User getUser(String username){
-		return userMap.get(username);
+	public User getUser(String username){
+		return state.users.get(username);
+	}
+
+	/**
+	 * Adds a user or replaces the user with the same name if it was not changed since it was
+	 * read. Readers see either the old or the new user, never a partially changed one.
+	 * 
+	 * The change is written to the journal and only becomes visible after it was synced to disk.
+	 * Changes of concurrent callers are synced together. If the user was changed meanwhile (or
+	 * another change of the user is being written) nothing is changed, the caller should read the
+	 * user again and repeat its change.
+	 * 
+	 * @param expected the user the change was made to (as returned by {@link #getUser(String)}) or <code>null</code> for a new user
+	 * @param user the changed user (a copy made with {@link User#User(User)}, the object must not be modified afterwards)
+	 * @return result of the change
+	 */
+	public UpdateResult updateUser(User expected, User user){
+		String name = user.getName();
+		lock.readLock().lock();
+		try{
+			UserJournal j = journal;
+			if(j == null){
+				Logger.getLogger("userstore").severe("User store is not loaded! Changes of user "+name+" are not persisted.");
+				return UpdateResult.FAILED;
+			}
+
+			State s = state;
+			UserJournal.Commit commit = null;
+			CountDownLatch published = new CountDownLatch(1);
+			CountDownLatch running = null;
+			synchronized(stripe(name)){
+				running = pending.get(name);
+				if(running == null){
+					if(s.users.get(name) != expected){
+						return UpdateResult.CONFLICT;
+					}
+					user.setPosition(expected != null ? expected.getPosition() : -1); // the password block is not moved
+					pending.put(name, published);
+					commit = j.append(user);
+				}
+			}
+
+			if(running != null){
+				// the caller has to repeat its change on the result of the running one
+				try{
+					running.await();
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+				return UpdateResult.CONFLICT;
+			}
+
+			try{
+				if(!commit.awaitUninterruptibly()){
+					return UpdateResult.FAILED; // the journal cut the record off again
+				}
+				s.users.put(name, user);
+				return UpdateResult.UPDATED;
+			}finally{
+				pending.remove(name);
+				published.countDown();
+			}
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return lock object of the stripe a user belongs to
+	 */
+	private Object stripe(String username){
+		return stripes[(username.hashCode() & 0x7fffffff) % stripes.length];
 	}
 }
@@ -0,0 +1,294 @@
+package org.komorebi.core.security;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Version 2 of the user store file format.
+ *
+ * The file starts with a header of four ints: version (2), length of the hash slots, number of
+ * records and the offset of the offset table. The records follow, then the offset table with
+ * the offset (int) of every record so a record can be accessed without reading the ones before.
+ *
+ * A record consists of its length (varint, counting everything after it), the hash slot, the
+ * user data and the CRC-32C of the user data (int). The hash slot holds the password block. It
+ * is overwritten in place when a password is set and therefore not covered by the checksum.
+ *
+ * User data: name, number of locations and for every location its name, number of credentials
+ * and the credential keys and values, followed by the privilege mask (one varint per 64
+ * privileges, up to the last one that is granted). Numbers are varints, strings
+ * are stored as their length in bytes (varint) and UTF-8 bytes.
+ *
+ * @author lycis
+ *
+ */
+final class UserStoreV2 {
+	static final int VERSION = 2;
+	static final int SLOT_LEN = 64; // fits a PBKDF2 block or a plain text password of 64 characters
+	private static final int HEADER_LEN = 16; // version, slot length, record count, table offset
+	private static final int CRC_LEN = 4;
+	private static final Charset STRING_CHARSET = Charset.forName("UTF-8");
+	private static final String LOGGER_NAME = "userstore";
+
+	private UserStoreV2(){
+	}
+
+	/**
+	 * Reads all users of a mapped user store file. The position of every user is set to its
+	 * hash slot.
+	 *
+	 * @param map the whole file, positioned after the version
+	 * @param users map to add the users to
+	 * @return length of the hash slots
+	 * @throws IOException if the file is corrupted
+	 */
+	static int read(ByteBuffer map, Map<String, User> users) throws IOException{
+		int slotLen = map.getInt();
+		int count = map.getInt();
+		int table = map.getInt();
+		if(slotLen < 0 || count < 0 || table < HEADER_LEN || table + 4L * count > map.capacity()){
+			throw new IOException("Corrupted user store. Invalid header.");
+		}
+
+		Crc32c crc = new Crc32c();
+		ByteBuffer r = map.duplicate();
+		for(int i=0; i<count; ++i){
+			int offset = map.getInt(table + 4 * i);
+			if(offset < HEADER_LEN || offset >= table){
+				throw new IOException("Corrupted user store. Invalid offset of record "+i+".");
+			}
+
+			r.limit(table).position(offset);
+			long len = readVarint(r);
+			if(len < slotLen + CRC_LEN || len > r.remaining()){
+				throw new IOException("Corrupted user store. Invalid length of record "+i+".");
+			}
+			int slot = r.position();
+			int end = slot + (int) len - CRC_LEN;
+
+			crc.reset();
+			crc.update(r, slot + slotLen, end);
+			if((int) crc.getValue() != r.getInt(end)){
+				throw new IOException("Corrupted user store. Record "+i+" does not match its checksum.");
+			}
+
+			r.limit(end).position(slot + slotLen);
+			User u = readData(r);
+			u.setPosition(slot);
+			users.put(u.getName(), u);
+		}
+		return slotLen;
+	}
+
+	/**
+	 * Writes users to a new user store file.
+	 *
+	 * @param out channel of the empty file
+	 * @param users users to write
+	 * @param oldMap file the hash slots are copied from (at the positions of the users) or <code>null</code> for empty slots
+	 * @param oldSlotLen length of the hash slots in the old file (see {@link #copySlot(ByteBuffer, int, int, byte[], String, PasswordHasher)} for longer ones)
+	 * @return copies of the users with their positions in the new file
+	 * @throws IOException if the file could not be written
+	 */
+	static Map<String, User> write(FileChannel out, Collection<User> users, ByteBuffer oldMap, int oldSlotLen) throws IOException{
+		return write(out, users, oldMap, oldSlotLen, null);
+	}
+
+	/**
+	 * Writes users to a new user store file.
+	 *
+	 * @param hasher hashes plain text passwords that do not fit into a slot (<code>null</code> for the configured one)
+	 * @see #write(FileChannel, Collection, ByteBuffer, int)
+	 */
+	static Map<String, User> write(FileChannel out, Collection<User> users, ByteBuffer oldMap, int oldSlotLen, PasswordHasher hasher) throws IOException{
+		Map<String, User> written = new HashMap<String, User>();
+		int[] offsets = new int[users.size()];
+		int count = 0;
+
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out), 65536));
+		data.write(new byte[HEADER_LEN]); // filled in at the end
+
+		ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+		Crc32c crc = new Crc32c();
+		byte[] slot = new byte[SLOT_LEN];
+		for(User u: users){
+			long position = u.getPosition();
+			if(oldMap != null && position >= 0 && position + oldSlotLen <= oldMap.capacity()){
+				copySlot(oldMap, (int) position, oldSlotLen, slot, u.getName(), hasher);
+			}else{
+				Arrays.fill(slot, (byte) 0); // user has no password yet
+			}
+
+			record.reset();
+			writeData(u, record);
+			crc.reset();
+			crc.update(record.toByteArray(), 0, record.size());
+
+			offsets[count++] = data.size();
+			writeVarint(SLOT_LEN + record.size() + CRC_LEN, data);
+			User moved = new User(u);
+			moved.setPosition(data.size());
+			data.write(slot);
+			record.writeTo(data);
+			data.writeInt((int) crc.getValue());
+			written.put(moved.getName(), moved);
+		}
+
+		int table = data.size();
+		for(int i=0; i<count; ++i){
+			data.writeInt(offsets[i]);
+		}
+		data.flush();
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+		header.putInt(VERSION).putInt(SLOT_LEN).putInt(count).putInt(table);
+		header.flip();
+		while(header.hasRemaining()){
+			out.write(header, header.position());
+		}
+		return written;
+	}
+
+	/**
+	 * Copies a password block of an older file into a hash slot. Only zeros may be cut off. Plain
+	 * text passwords of more than {@link #SLOT_LEN} bytes (possible in version 1) are hashed
+	 * instead, because a cut password would accept every password that starts the same way.
+	 *
+	 * @throws IOException if a hashed block does not fit into a slot
+	 */
+	private static void copySlot(ByteBuffer oldMap, int position, int oldSlotLen, byte[] slot, String username, PasswordHasher hasher) throws IOException{
+		byte[] block = new byte[oldSlotLen];
+		ByteBuffer b = oldMap.duplicate();
+		b.position(position);
+		b.get(block);
+		try{
+			int used = block.length;
+			while(used > 0 && block[used-1] == 0){
+				--used;
+			}
+
+			Arrays.fill(slot, (byte) 0);
+			if(used <= SLOT_LEN){
+				System.arraycopy(block, 0, slot, 0, used);
+				return;
+			}
+			if(PasswordHasher.isHashed(block)){
+				throw new IOException("Password block of user "+username+" does not fit into a hash slot.");
+			}
+
+			// plain text passwords are stored as one byte per character
+			char[] password = new char[used];
+			for(int i=0; i<used; ++i){
+				password[i] = (char) (block[i] & 0xff);
+			}
+			byte[] hashed = (hasher != null ? hasher : PasswordHasher.getInstance()).hash(password, SLOT_LEN);
+			System.arraycopy(hashed, 0, slot, 0, SLOT_LEN);
+			Arrays.fill(password, '\0');
+			Arrays.fill(hashed, (byte) 0);
+			Logger.getLogger(LOGGER_NAME).warning("Plain text password of user "+username+" is longer than "+SLOT_LEN+" bytes. It was hashed while the user store was converted.");
+		}finally{
+			Arrays.fill(block, (byte) 0);
+		}
+	}
+
+	private static void writeData(User user, OutputStream out) throws IOException{
+		writeString(user.getName(), out);
+
+		Set<String> locations = user.getLocations();
+		writeVarint(locations.size(), out);
+		for(String loc: locations){
+			writeString(loc, out);
+
+			Set<String> credentials = user.getCredentials(loc);
+			writeVarint(credentials.size(), out);
+			for(String key: credentials){
+				writeString(key, out);
+				writeString(user.getCredentialValue(loc, key), out);
+			}
+		}
+
+		for(int i=0; i<user.getPrivilegeWords(); ++i){
+			writeVarint(user.getPrivilegeWord(i), out);
+		}
+	}
+
+	private static User readData(ByteBuffer in) throws IOException{
+		User u = new User();
+		u.setName(readString(in));
+
+		long locations = readVarint(in);
+		for(long i=0; i<locations; ++i){
+			String location = readString(in);
+			long credentials = readVarint(in);
+			for(long j=0; j<credentials; ++j){
+				String key = readString(in);
+				u.setCredentialValue(location, key, readString(in));
+			}
+		}
+
+		u.setPrivilegeWord(0, readVarint(in));
+		for(int i=1; in.hasRemaining(); ++i){
+			u.setPrivilegeWord(i, readVarint(in));
+		}
+		return u;
+	}
+
+	private static void writeString(String s, OutputStream out) throws IOException{
+		byte[] bytes = s.getBytes(STRING_CHARSET);
+		writeVarint(bytes.length, out);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) throws IOException{
+		long len = readVarint(in);
+		if(len > in.remaining()){
+			throw new IOException("Corrupted user store. Invalid string length.");
+		}
+
+		byte[] bytes = new byte[(int) len];
+		in.get(bytes);
+		return new String(bytes, STRING_CHARSET);
+	}
+
+	/**
+	 * Writes an unsigned varint: seven bits per byte, the highest bit marks that more bytes follow.
+	 */
+	static void writeVarint(long v, OutputStream out) throws IOException{
+		while((v & ~0x7FL) != 0){
+			out.write((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+
+	/**
+	 * Reads an unsigned varint.
+	 */
+	static long readVarint(ByteBuffer in) throws IOException{
+		long v = 0;
+		for(int shift=0; shift<64; shift+=7){
+			if(!in.hasRemaining()){
+				throw new IOException("Corrupted user store. Incomplete number.");
+			}
+			byte b = in.get();
+			v |= (long) (b & 0x7F) << shift;
+			if(b >= 0){
+				return v;
+			}
+		}
+		throw new IOException("Corrupted user store. Invalid number.");
+	}
+}
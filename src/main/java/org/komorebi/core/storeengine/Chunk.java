@@ -0,0 +1,71 @@
+package org.komorebi.core.storeengine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A single piece of a file that is processed by the storage manager. The data of a chunk
+ * lives in a pooled buffer that has to be released as soon as the chunk is not needed
+ * anymore.
+ * 
+ * @author lycis
+ *
+ */
+public class Chunk {
+	private final int index;
+	private final long offset;
+	private final ByteBuffer data;
+	private final ChunkBufferPool pool;
+	
+	/**
+	 * Creates a chunk.
+	 * 
+	 * @param index sequence number of the chunk within the file
+	 * @param offset position of the first byte of the chunk within the file
+	 * @param data buffer holding the data (flipped, ready for reading)
+	 * @param pool pool the buffer belongs to (may be <code>null</code> for unpooled buffers)
+	 */
+	public Chunk(int index, long offset, ByteBuffer data, ChunkBufferPool pool){
+		this.index = index;
+		this.offset = offset;
+		this.data = data;
+		this.pool = pool;
+	}
+	
+	/**
+	 * @return sequence number of the chunk within the file
+	 */
+	public int getIndex() {
+		return index;
+	}
+	
+	/**
+	 * @return position of the first byte of the chunk within the file
+	 */
+	public long getOffset() {
+		return offset;
+	}
+	
+	/**
+	 * @return number of bytes in this chunk
+	 */
+	public int getLength() {
+		return data.remaining();
+	}
+	
+	/**
+	 * Gives a read only view of the chunk data. Every call returns an independent view so
+	 * the chunk can be read by multiple threads at once.
+	 */
+	public ByteBuffer getData() {
+		return data.asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Returns the underlying buffer to its pool. The chunk must not be used afterwards.
+	 */
+	public void release(){
+		if(pool != null){
+			pool.release(data);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package org.komorebi.core.storeengine;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of direct byte buffers that all have the size of one chunk. Buffers
+ * are allocated lazily up to the configured capacity and handed out again after they
+ * were released. When all buffers are in use callers will block until one is returned.
+ * 
+ * This limits the memory that is used for uploads to <code>chunkSize * capacity</code>
+ * no matter how large the stored files are.
+ * 
+ * @author lycis
+ *
+ */
+public class ChunkBufferPool {
+	private final int chunkSize;
+	private final int capacity;
+	private final AtomicInteger allocated = new AtomicInteger(0);
+	private final BlockingQueue<ByteBuffer> free;
+	
+	/**
+	 * Creates a new pool.
+	 * 
+	 * @param chunkSize size of every buffer in bytes
+	 * @param capacity maximum number of buffers that may exist at the same time
+	 */
+	public ChunkBufferPool(int chunkSize, int capacity){
+		if(chunkSize <= 0 || capacity <= 0){
+			throw new IllegalArgumentException("chunk size and capacity have to be positive");
+		}
+		
+		this.chunkSize = chunkSize;
+		this.capacity = capacity;
+		this.free = new ArrayBlockingQueue<ByteBuffer>(capacity);
+	}
+	
+	/**
+	 * Takes a buffer from the pool. If all buffers are currently in use this method
+	 * blocks until a buffer is released.
+	 * 
+	 * @return a cleared buffer of <code>chunkSize</code> bytes
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public ByteBuffer acquire() throws InterruptedException{
+		ByteBuffer buf = free.poll();
+		if(buf == null){
+			// allocate a new buffer as long as we are below the limit
+			int n = allocated.get();
+			while(n < capacity){
+				if(allocated.compareAndSet(n, n+1)){
+					return ByteBuffer.allocateDirect(chunkSize);
+				}
+				n = allocated.get();
+			}
+			
+			buf = free.take();
+		}
+		
+		buf.clear();
+		return buf;
+	}
+	
+	/**
+	 * Returns a buffer to the pool. Buffers that were not acquired from this pool are ignored.
+	 * 
+	 * @param buf buffer to return
+	 */
+	public void release(ByteBuffer buf){
+		if(buf == null || !buf.isDirect() || buf.capacity() != chunkSize){
+			return;
+		}
+		
+		free.offer(buf);
+	}
+	
+	/**
+	 * @return size of a single buffer in bytes
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	
+	/**
+	 * @return maximum number of buffers
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+}
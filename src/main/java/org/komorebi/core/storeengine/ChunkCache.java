@@ -0,0 +1,441 @@
+package org.komorebi.core.storeengine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps recently read chunks in a local directory so popular files do not have to be fetched
+ * from the storage backends again. Chunks never change once they were written (their IDs are
+ * unique or derived from the content) so cached chunks never become stale.
+ *
+ * Eviction follows W-TinyLFU: new chunks enter a small LRU window. Chunks that drop out of the
+ * window are only admitted to the main area if they were accessed more often than the chunk
+ * that would have to make room for them. The main area is a segmented LRU with a probation
+ * and a protected segment. Access frequencies are estimated with a {@link FrequencySketch}.
+ *
+ * The index is kept in memory. On startup it is rebuilt from the directory listing alone, the
+ * chunks are not read.
+ *
+ * @author lycis
+ *
+ */
+public class ChunkCache {
+	private static final String LOGGER_NAME = "storagemanager";
+	private static final String SUFFIX = ".chunk";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9_.-]+");
+	private static final int WINDOW_PERCENT = 1;
+	private static final int PROTECTED_PERCENT = 80;
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	/**
+	 * A cached chunk.
+	 */
+	private static class Entry{
+		final String id;
+		final long size;
+		int segment;
+
+		Entry(String id, long size, int segment){
+			this.id = id;
+			this.size = size;
+			this.segment = segment;
+		}
+	}
+
+	private final Path directory;
+	private volatile long capacity;
+	private volatile long windowCapacity;
+	private volatile long protectedCapacity;
+	private final FrequencySketch sketch;
+
+	// index - guarded by this
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private final LinkedHashMap<String, Entry>[] segments = new LinkedHashMap[3]; // least recently used first
+	private final long[] segmentSize = new long[3];
+
+	// metrics
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong hitBytes = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
+	private final AtomicLong rejections = new AtomicLong(0);
+	private final AtomicLong tempCounter = new AtomicLong(0);
+
+	/**
+	 * Opens the cache directory and rebuilds the index from the chunks in it.
+	 *
+	 * @param directory directory that holds the cached chunks (created if missing)
+	 * @param capacity maximum size of all cached chunks in bytes
+	 * @param chunkSize typical size of a chunk (for sizing the frequency sketch)
+	 * @throws IOException if the directory can not be read
+	 */
+	public ChunkCache(Path directory, long capacity, int chunkSize) throws IOException{
+		this.directory = directory;
+		this.capacity = capacity;
+		this.windowCapacity = capacity * WINDOW_PERCENT / 100;
+		this.protectedCapacity = (capacity - windowCapacity) * PROTECTED_PERCENT / 100;
+		this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(1, capacity / Math.max(1, chunkSize))));
+		for(int i=0; i<segments.length; ++i){
+			segments[i] = new LinkedHashMap<String, Entry>();
+		}
+
+		Files.createDirectories(directory);
+		rebuild();
+	}
+
+	/**
+	 * Adds all chunks in the directory to the probation segment, the most recently modified last.
+	 */
+	private void rebuild() throws IOException{
+		final Map<Path, BasicFileAttributes> found = new HashMap<Path, BasicFileAttributes>();
+		DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+		try{
+			for(Path p: stream){
+				String name = p.getFileName().toString();
+				if(name.endsWith(TEMP_SUFFIX)){
+					Files.deleteIfExists(p); // interrupted write
+				}else if(name.endsWith(SUFFIX)){
+					found.put(p, Files.readAttributes(p, BasicFileAttributes.class));
+				}
+			}
+		}finally{
+			stream.close();
+		}
+
+		List<Path> files = new ArrayList<Path>(found.keySet());
+		Collections.sort(files, new Comparator<Path>() {
+			public int compare(Path a, Path b) {
+				return found.get(a).lastModifiedTime().compareTo(found.get(b).lastModifiedTime());
+			}
+		});
+
+		List<Entry> evicted = new ArrayList<Entry>();
+		synchronized(this){
+			for(Path p: files){
+				String name = p.getFileName().toString();
+				Entry e = new Entry(name.substring(0, name.length() - SUFFIX.length()), found.get(p).size(), PROBATION);
+				entries.put(e.id, e);
+				add(e);
+			}
+
+			while(getSize() > capacity){
+				evicted.add(removeOldest(PROBATION));
+			}
+		}
+		delete(evicted);
+		Logger.getLogger(LOGGER_NAME).info("Chunk cache holds "+entries.size()+" chunks ("+getSize()+" of "+capacity+" bytes).");
+	}
+
+	/**
+	 * Gives a cached chunk.
+	 *
+	 * @param id ID of the chunk
+	 * @param length expected size of the chunk
+	 * @return the chunk data or <code>null</code> if the chunk is not cached
+	 */
+	public ByteBuffer get(String id, int length){
+		synchronized(this){
+			sketch.increment(id.hashCode());
+			Entry e = entries.get(id);
+			if(e == null || e.size != length){
+				misses.incrementAndGet();
+				return null;
+			}
+			accessed(e);
+		}
+
+		ByteBuffer data = ByteBuffer.allocate(length);
+		try{
+			FileChannel fc = FileChannel.open(file(id), StandardOpenOption.READ);
+			try{
+				while(data.hasRemaining() && fc.read(data) >= 0){
+				}
+			}finally{
+				fc.close();
+			}
+		}catch(IOException e){
+			Logger.getLogger(LOGGER_NAME).warning("Cached chunk "+id+" is not readable: "+e.getMessage());
+		}
+
+		if(data.hasRemaining()){
+			invalidate(id);
+			misses.incrementAndGet();
+			return null;
+		}
+
+		data.flip();
+		hits.incrementAndGet();
+		hitBytes.addAndGet(length);
+		return data;
+	}
+
+	/**
+	 * Adds a chunk to the cache. The chunk is written to disk and then enters the window.
+	 *
+	 * @param id ID of the chunk
+	 * @param data chunk data (between position and limit, the buffer is not modified)
+	 * @throws IOException if the chunk could not be written
+	 */
+	public void put(String id, ByteBuffer data) throws IOException{
+		long size = data.remaining();
+		if(size > capacity - windowCapacity || !VALID_ID.matcher(id).matches()){
+			return;
+		}
+		synchronized(this){
+			if(entries.containsKey(id)){
+				return;
+			}
+		}
+
+		Path temp = directory.resolve(id+"."+tempCounter.incrementAndGet()+TEMP_SUFFIX);
+		FileChannel fc = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try{
+			ByteBuffer src = data.duplicate();
+			while(src.hasRemaining()){
+				fc.write(src);
+			}
+		}finally{
+			fc.close();
+		}
+		Files.move(temp, file(id), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		List<Entry> evicted = new ArrayList<Entry>();
+		synchronized(this){
+			if(entries.containsKey(id)){
+				return; // the same chunk was added concurrently
+			}
+			Entry e = new Entry(id, size, WINDOW);
+			entries.put(id, e);
+			add(e);
+			evict(evicted);
+		}
+		delete(evicted);
+	}
+
+	/**
+	 * Removes a chunk from the cache.
+	 */
+	private void invalidate(String id){
+		Entry e = null;
+		synchronized(this){
+			e = entries.remove(id);
+			if(e != null){
+				remove(e);
+			}
+		}
+		if(e != null){
+			delete(Collections.singletonList(e));
+		}
+	}
+
+	/**
+	 * Moves an accessed entry to the most recently used end of its segment. Entries on probation
+	 * are promoted to the protected segment, which demotes the oldest protected entries if it gets
+	 * too large.
+	 */
+	private void accessed(Entry e){
+		remove(e);
+		if(e.segment == PROBATION){
+			e.segment = PROTECTED;
+		}
+		add(e);
+
+		while(segmentSize[PROTECTED] > protectedCapacity){
+			Entry demoted = removeOldest(PROTECTED);
+			demoted.segment = PROBATION;
+			add(demoted);
+		}
+	}
+
+	/**
+	 * Moves entries out of the window and evicts entries until the cache fits its capacity.
+	 * An entry leaving the window only replaces the oldest entry of the main area if it is
+	 * more popular.
+	 */
+	private void evict(List<Entry> evicted){
+		while(segmentSize[WINDOW] > windowCapacity){
+			Entry candidate = removeOldest(WINDOW);
+			candidate.segment = PROBATION;
+
+			int frequency = sketch.frequency(candidate.id.hashCode());
+			boolean admitted = true;
+			while(getSize() + candidate.size > capacity){
+				int segment = segments[PROBATION].isEmpty() ? PROTECTED : PROBATION;
+				if(segments[segment].isEmpty()){
+					break;
+				}
+				Entry victim = segments[segment].values().iterator().next();
+				if(frequency <= sketch.frequency(victim.id.hashCode())){
+					admitted = false;
+					break;
+				}
+				evicted.add(removeOldest(segment));
+			}
+
+			if(admitted){
+				add(candidate);
+			}else{
+				entries.remove(candidate.id);
+				evicted.add(candidate);
+				rejections.incrementAndGet();
+			}
+		}
+	}
+
+	private void add(Entry e){
+		segments[e.segment].put(e.id, e);
+		segmentSize[e.segment] += e.size;
+	}
+
+	private void remove(Entry e){
+		segments[e.segment].remove(e.id);
+		segmentSize[e.segment] -= e.size;
+	}
+
+	/**
+	 * Removes the least recently used entry of a segment from the index.
+	 */
+	private Entry removeOldest(int segment){
+		Iterator<Entry> it = segments[segment].values().iterator();
+		Entry e = it.next();
+		it.remove();
+		segmentSize[segment] -= e.size;
+		if(segment != WINDOW){
+			entries.remove(e.id);
+			evictions.incrementAndGet();
+		}
+		return e;
+	}
+
+	/**
+	 * Deletes the files of evicted entries. This is done outside of the lock.
+	 */
+	private void delete(List<Entry> evicted){
+		for(Entry e: evicted){
+			try{
+				Files.deleteIfExists(file(e.id));
+			}catch(IOException ex){
+				Logger.getLogger(LOGGER_NAME).warning("Evicted chunk "+e.id+" could not be deleted: "+ex.getMessage());
+			}
+		}
+	}
+
+	private Path file(String id){
+		return directory.resolve(id+SUFFIX);
+	}
+
+	/**
+	 * @return number of reads that were served from the cache
+	 */
+	public long getHits(){
+		return hits.get();
+	}
+
+	/**
+	 * @return number of reads that had to go to a storage backend
+	 */
+	public long getMisses(){
+		return misses.get();
+	}
+
+	/**
+	 * @return share of reads that were served from the cache (0 to 1)
+	 */
+	public double getHitRate(){
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * @return number of bytes that were served from the cache
+	 */
+	public long getHitBytes(){
+		return hitBytes.get();
+	}
+
+	/**
+	 * @return number of chunks that were evicted from the main area
+	 */
+	public long getEvictions(){
+		return evictions.get();
+	}
+
+	/**
+	 * @return number of chunks that were not admitted to the main area
+	 */
+	public long getRejections(){
+		return rejections.get();
+	}
+
+	/**
+	 * @return number of cached chunks
+	 */
+	public synchronized int getEntryCount(){
+		return entries.size();
+	}
+
+	/**
+	 * @return size of all cached chunks in bytes
+	 */
+	public synchronized long getSize(){
+		return segmentSize[WINDOW] + segmentSize[PROBATION] + segmentSize[PROTECTED];
+	}
+
+	/**
+	 * @return maximum size of all cached chunks in bytes
+	 */
+	public long getCapacity(){
+		return capacity;
+	}
+
+	/**
+	 * Changes the maximum size of the cache. If the cache shrinks, the least recently used
+	 * chunks of the probation and then of the protected segment are evicted. The frequency
+	 * sketch keeps the size it was created with.
+	 *
+	 * @param capacity maximum size of all cached chunks in bytes
+	 */
+	public void setCapacity(long capacity){
+		List<Entry> evicted = new ArrayList<Entry>();
+		synchronized(this){
+			this.capacity = capacity;
+			this.windowCapacity = capacity * WINDOW_PERCENT / 100;
+			this.protectedCapacity = (capacity - windowCapacity) * PROTECTED_PERCENT / 100;
+
+			while(segmentSize[PROTECTED] > protectedCapacity){
+				Entry demoted = removeOldest(PROTECTED);
+				demoted.segment = PROBATION;
+				add(demoted);
+			}
+			evict(evicted);
+			while(getSize() > capacity && !segments[PROBATION].isEmpty()){
+				evicted.add(removeOldest(PROBATION));
+			}
+		}
+		delete(evicted);
+	}
+}
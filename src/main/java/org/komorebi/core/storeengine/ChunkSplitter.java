@@ -0,0 +1,97 @@
+package org.komorebi.core.storeengine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits the data read from a channel into chunks of a fixed size. The data is read
+ * directly into buffers of a <code>ChunkBufferPool</code> so the whole file is never
+ * held in memory. Only the last chunk of a file may be smaller than the chunk size.
+ * 
+ * Subclasses may choose other cut points (see <code>ContentDefinedSplitter</code>).
+ * 
+ * @author lycis
+ *
+ */
+public class ChunkSplitter {
+	protected final ReadableByteChannel source;
+	protected final ChunkBufferPool pool;
+	private int nextIndex = 0;
+	private long position = 0;
+	protected boolean eof = false;
+	
+	/**
+	 * @param source channel to read the file data from
+	 * @param pool pool that provides the chunk buffers
+	 */
+	public ChunkSplitter(ReadableByteChannel source, ChunkBufferPool pool){
+		this.source = source;
+		this.pool = pool;
+	}
+	
+	/**
+	 * Reads the next chunk from the source. Blocks when no free buffer is available
+	 * in the pool.
+	 * 
+	 * @return the next chunk or <code>null</code> when the end of the data was reached
+	 * @throws IOException when reading from the source failed
+	 * @throws InterruptedException when the thread was interrupted while waiting for a buffer
+	 */
+	public Chunk next() throws IOException, InterruptedException{
+		if(eof){
+			return null;
+		}
+		
+		ByteBuffer buf = pool.acquire();
+		try{
+			fill(buf);
+		}catch(IOException e){
+			pool.release(buf);
+			throw e;
+		}
+		
+		buf.flip();
+		if(!buf.hasRemaining()){
+			// nothing left to read (data size is a multiple of the chunk size)
+			pool.release(buf);
+			return null;
+		}
+		
+		return createChunk(buf);
+	}
+	
+	/**
+	 * Reads from the source until the buffer is full or the end of the data was reached.
+	 * 
+	 * @param buf buffer to fill
+	 * @throws IOException when reading from the source failed
+	 */
+	protected void fill(ByteBuffer buf) throws IOException{
+		while(buf.hasRemaining()){
+			if(source.read(buf) < 0){
+				eof = true;
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Creates the next chunk of the file.
+	 * 
+	 * @param data flipped buffer holding the chunk data
+	 * @return the chunk
+	 */
+	protected Chunk createChunk(ByteBuffer data){
+		Chunk c = new Chunk(nextIndex++, position, data, pool);
+		position += c.getLength();
+		return c;
+	}
+	
+	/**
+	 * @return number of bytes that were read so far
+	 */
+	public long getPosition() {
+		return position;
+	}
+}
@@ -0,0 +1,130 @@
+package org.komorebi.core.storeengine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+
+/**
+ * Splits data at content defined cut points (FastCDC with a gear rolling hash). The cut points
+ * only depend on the bytes right before them, so inserting or removing data in a file only
+ * changes the chunks around the modification. All other chunks stay the same and can be
+ * deduplicated.
+ * 
+ * Chunks are at least <code>average/4</code> and at most the buffer size of the pool large.
+ * Normalised chunking (a stricter mask before the average size and a looser one after it)
+ * keeps most chunks close to the average size.
+ * 
+ * The data is read into a window that belongs to the splitter, not to the pool, because the
+ * bytes after a cut have to be kept for the next chunk. Only the finished chunk is copied into a
+ * pooled buffer, and a splitter never holds a pooled buffer while it waits for one, so any number
+ * of splitters can share a small pool. Every running splitter uses one chunk size of heap memory
+ * for its window.
+ * 
+ * @author lycis
+ *
+ */
+public class ContentDefinedSplitter extends ChunkSplitter {
+	
+	// gear table - has to be the same on every run, otherwise stored chunks would not match anymore
+	private static final long[] GEAR = new long[256];
+	static{
+		Random r = new Random(0x6b6f6d6f72656269L);
+		for(int i=0; i<GEAR.length; ++i){
+			GEAR[i] = r.nextLong();
+		}
+	}
+	
+	private final int minSize;
+	private final int averageSize;
+	private final long maskStrict;
+	private final long maskLoose;
+	private ByteBuffer window = null; // data that was read but not handed out yet (in write mode, from position 0)
+	
+	/**
+	 * @param source channel to read the file data from
+	 * @param pool pool that provides the chunk buffers (buffer size is the maximum chunk size)
+	 * @param averageSize desired average chunk size in bytes
+	 */
+	public ContentDefinedSplitter(ReadableByteChannel source, ChunkBufferPool pool, int averageSize){
+		super(source, pool);
+		
+		this.averageSize = Math.max(64, Math.min(averageSize, pool.getChunkSize()));
+		this.minSize = this.averageSize / 4;
+		
+		// masks use the upper bits of the hash as they depend on the last 64 bytes
+		int bits = 31 - Integer.numberOfLeadingZeros(this.averageSize);
+		this.maskStrict = -1L << (64 - (bits + 1));
+		this.maskLoose = -1L << (64 - (bits - 1));
+	}
+	
+	@Override
+	public Chunk next() throws IOException, InterruptedException{
+		if(window == null){
+			if(eof){
+				return null;
+			}
+			window = ByteBuffer.allocate(pool.getChunkSize());
+		}
+		
+		if(!eof){
+			fill(window);
+		}
+		
+		window.flip();
+		if(!window.hasRemaining()){
+			window = null; // all data was handed out
+			return null;
+		}
+		
+		int cut = findCut(window);
+		ByteBuffer buf = null;
+		try{
+			buf = pool.acquire();
+		}catch(InterruptedException e){
+			window.compact(); // keep the data for a retry
+			throw e;
+		}
+		
+		ByteBuffer data = window.duplicate();
+		data.limit(cut);
+		buf.put(data);
+		buf.flip();
+		
+		// keep the remainder for the next chunk
+		window.position(cut);
+		window.compact();
+		
+		return createChunk(buf);
+	}
+	
+	/**
+	 * Finds the end of the next chunk.
+	 * 
+	 * @param buf buffer holding the data (from position 0)
+	 * @return position after the last byte of the chunk
+	 */
+	private int findCut(ByteBuffer buf){
+		int limit = buf.limit();
+		if(limit <= minSize){
+			return limit;
+		}
+		
+		int normal = Math.min(averageSize, limit);
+		long hash = 0;
+		int i = minSize;
+		for(; i<normal; ++i){
+			hash = (hash << 1) + GEAR[buf.get(i) & 0xff];
+			if((hash & maskStrict) == 0){
+				return i + 1;
+			}
+		}
+		for(; i<limit; ++i){
+			hash = (hash << 1) + GEAR[buf.get(i) & 0xff];
+			if((hash & maskLoose) == 0){
+				return i + 1;
+			}
+		}
+		return limit;
+	}
+}
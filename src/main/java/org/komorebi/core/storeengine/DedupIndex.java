@@ -0,0 +1,251 @@
+package org.komorebi.core.storeengine;
+
+/**
+ * Index of the chunks that are stored at each location, used to avoid uploading a chunk to a
+ * location that already holds it. Entries are identified by the first 128 bit of the chunk 
+ * fingerprint and a numeric location reference and carry a reference count.
+ * 
+ * Chunks of removed files give their references back with {@link #retire(long, long, int)}. An
+ * entry without references is kept until the chunk was deleted from its location, a file that
+ * stores the same chunk meanwhile takes the entry over and the chunk is not deleted. Uploads of
+ * a chunk that is being deleted wait until the deletion ended.
+ * 
+ * The index is an open addressing hash table (linear probing, backward shift deletion) on plain
+ * arrays, so an entry takes 25 bytes and there is no object per entry.
+ * 
+ * @author lycis
+ *
+ */
+public class DedupIndex {
+	private static final float LOAD_FACTOR = 0.7f;
+	private static final byte EMPTY = 0;
+	private static final byte PENDING = 1; // referenced but the first upload did not finish yet
+	private static final byte STORED = 2;
+	private static final byte UNUSED = 3; // no references, waiting to be deleted from the location
+	private static final byte REMOVING = 4; // being deleted from the location
+	
+	private long[] hi;
+	private long[] lo;
+	private int[] location;
+	private int[] refs;
+	private byte[] state;
+	private int size = 0;
+	private int threshold;
+	
+	/**
+	 * @param expected number of entries the table is sized for initially
+	 */
+	public DedupIndex(int expected){
+		int capacity = Integer.highestOneBit(Math.max(16, (int) (expected / LOAD_FACTOR)) * 2 - 1);
+		allocate(capacity);
+	}
+	
+	private void allocate(int capacity){
+		hi = new long[capacity];
+		lo = new long[capacity];
+		location = new int[capacity];
+		refs = new int[capacity];
+		state = new byte[capacity];
+		threshold = (int) (capacity * LOAD_FACTOR);
+	}
+	
+	/**
+	 * Adds a reference to a chunk at a location.
+	 * 
+	 * @param fpHi upper 64 bit of the fingerprint
+	 * @param fpLo lower 64 bit of the fingerprint
+	 * @param loc location reference
+	 * @return <code>true</code> if the chunk is already stored there and does not need to be uploaded
+	 */
+	public synchronized boolean acquire(long fpHi, long fpLo, int loc){
+		int slot = find(fpHi, fpLo, loc);
+		boolean interrupted = false;
+		while(state[slot] == REMOVING){
+			try{
+				wait();
+			}catch(InterruptedException e){
+				interrupted = true; // the upload must not overlap the deletion
+			}
+			slot = find(fpHi, fpLo, loc);
+		}
+		if(interrupted){
+			Thread.currentThread().interrupt();
+		}
+		
+		if(state[slot] == UNUSED){
+			state[slot] = STORED; // the deletion is skipped
+		}
+		if(state[slot] != EMPTY){
+			++refs[slot];
+			return state[slot] == STORED;
+		}
+		
+		if(size >= threshold){
+			resize();
+			slot = find(fpHi, fpLo, loc);
+		}
+		
+		hi[slot] = fpHi;
+		lo[slot] = fpLo;
+		location[slot] = loc;
+		refs[slot] = 1;
+		state[slot] = PENDING;
+		++size;
+		return false;
+	}
+	
+	/**
+	 * Marks a chunk as completely uploaded to a location.
+	 */
+	public synchronized void stored(long fpHi, long fpLo, int loc){
+		int slot = find(fpHi, fpLo, loc);
+		if(state[slot] != EMPTY){
+			state[slot] = STORED;
+		}
+	}
+	
+	/**
+	 * Removes a reference to a chunk at a location.
+	 * 
+	 * @return <code>true</code> if this was the last reference (the chunk may be deleted from the location)
+	 */
+	public synchronized boolean release(long fpHi, long fpLo, int loc){
+		int slot = find(fpHi, fpLo, loc);
+		if(state[slot] == EMPTY){
+			return false;
+		}
+		if(--refs[slot] > 0){
+			return false;
+		}
+		
+		remove(slot);
+		return true;
+	}
+	
+	/**
+	 * Removes a reference of a chunk that was stored. The entry is kept after the last reference
+	 * until the chunk was deleted from the location, see {@link #startRemoval(long, long, int)}.
+	 * 
+	 * @return <code>true</code> if this was the last reference (the chunk has to be deleted from the location)
+	 */
+	public synchronized boolean retire(long fpHi, long fpLo, int loc){
+		int slot = find(fpHi, fpLo, loc);
+		if(state[slot] == EMPTY || state[slot] == UNUSED || state[slot] == REMOVING){
+			return false;
+		}
+		if(--refs[slot] > 0){
+			return false;
+		}
+		
+		state[slot] = UNUSED;
+		return true;
+	}
+	
+	/**
+	 * Starts the deletion of a retired chunk from its location. Uploads of the chunk to the
+	 * location wait until {@link #finishRemoval(long, long, int)} is called.
+	 * 
+	 * @return <code>false</code> if the chunk was referenced again and must not be deleted
+	 */
+	public synchronized boolean startRemoval(long fpHi, long fpLo, int loc){
+		int slot = find(fpHi, fpLo, loc);
+		if(state[slot] != UNUSED){
+			return false;
+		}
+		state[slot] = REMOVING;
+		return true;
+	}
+	
+	/**
+	 * Ends the deletion of a chunk from its location and removes its entry.
+	 */
+	public synchronized void finishRemoval(long fpHi, long fpLo, int loc){
+		int slot = find(fpHi, fpLo, loc);
+		if(state[slot] == REMOVING){
+			remove(slot);
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * @return number of entries
+	 */
+	public synchronized int size(){
+		return size;
+	}
+	
+	/**
+	 * @return number of references to a chunk at a location (<code>0</code> if unknown)
+	 */
+	public synchronized int getReferences(long fpHi, long fpLo, int loc){
+		int slot = find(fpHi, fpLo, loc);
+		return state[slot] == EMPTY ? 0 : refs[slot];
+	}
+	
+	/**
+	 * Gives the slot of an entry or the empty slot where it would be inserted.
+	 */
+	private int find(long fpHi, long fpLo, int loc){
+		int mask = state.length - 1;
+		int slot = hash(fpHi, fpLo, loc) & mask;
+		while(state[slot] != EMPTY){
+			if(hi[slot] == fpHi && lo[slot] == fpLo && location[slot] == loc){
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	private static int hash(long fpHi, long fpLo, int loc){
+		// the fingerprint is a cryptographic hash, its bits are already well distributed
+		long h = fpLo ^ (loc * 0x9E3779B97F4A7C15L);
+		return (int) (h ^ (h >>> 32));
+	}
+	
+	/**
+	 * Removes an entry and moves following entries of the probe sequence back so no
+	 * tombstones are needed.
+	 */
+	private void remove(int slot){
+		int mask = state.length - 1;
+		int gap = slot;
+		int next = (gap + 1) & mask;
+		while(state[next] != EMPTY){
+			int home = hash(hi[next], lo[next], location[next]) & mask;
+			// move the entry if its home is not between the gap and its current slot
+			if(((next - home) & mask) >= ((next - gap) & mask)){
+				hi[gap] = hi[next];
+				lo[gap] = lo[next];
+				location[gap] = location[next];
+				refs[gap] = refs[next];
+				state[gap] = state[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		state[gap] = EMPTY;
+		--size;
+	}
+	
+	private void resize(){
+		long[] oldHi = hi;
+		long[] oldLo = lo;
+		int[] oldLocation = location;
+		int[] oldRefs = refs;
+		byte[] oldState = state;
+		
+		allocate(oldState.length * 2);
+		for(int i=0; i<oldState.length; ++i){
+			if(oldState[i] == EMPTY){
+				continue;
+			}
+			int slot = find(oldHi[i], oldLo[i], oldLocation[i]);
+			hi[slot] = oldHi[i];
+			lo[slot] = oldLo[i];
+			location[slot] = oldLocation[i];
+			refs[slot] = oldRefs[i];
+			state[slot] = oldState[i];
+		}
+	}
+}
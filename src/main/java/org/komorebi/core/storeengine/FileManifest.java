@@ -0,0 +1,271 @@
+package org.komorebi.core.storeengine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Describes how a stored file was split and where each of its chunks went. Files that were
+ * stored with erasure coding additionally have parity shards for every stripe of <code>k</code>
+ * chunks.
+ * 
+ * When the file is replaced or its storage job failed the manifest is discarded, chunks that are
+ * written afterwards are not recorded any more and have to be removed by their writer.
+ * 
+ * @author lycis
+ *
+ */
+public class FileManifest {
+	
+	/**
+	 * Placement of a single chunk.
+	 * @author lycis
+	 *
+	 */
+	public static class ChunkRef{
+		private final int index;
+		private final long offset;
+		private final int length;
+		private final String id;
+		private final String[] locations;
+		private final long[] fingerprint; // null if the chunk is not deduplicated
+		private final int[] locationRefs; // references of the locations in the deduplication index
+		
+		ChunkRef(int index, long offset, int length, String id, String[] locations){
+			this(index, offset, length, id, locations, null, null);
+		}
+		
+		ChunkRef(int index, long offset, int length, String id, String[] locations, long[] fingerprint, int[] locationRefs){
+			this.index = index;
+			this.offset = offset;
+			this.length = length;
+			this.id = id;
+			this.locations = locations;
+			this.fingerprint = fingerprint;
+			this.locationRefs = locationRefs;
+		}
+		
+		/**
+		 * @return sequence number of the chunk within the file
+		 */
+		public int getIndex() {
+			return index;
+		}
+		
+		/**
+		 * @return position of the chunk within the file
+		 */
+		public long getOffset() {
+			return offset;
+		}
+		
+		/**
+		 * @return size of the chunk in bytes
+		 */
+		public int getLength() {
+			return length;
+		}
+		
+		/**
+		 * @return ID the chunk is saved under
+		 */
+		public String getId() {
+			return id;
+		}
+		
+		/**
+		 * @return all locations that hold a copy of the chunk
+		 */
+		public String[] getLocations() {
+			return locations.clone();
+		}
+		
+		/**
+		 * @return fingerprint in the deduplication index or <code>null</code> if the chunk is not deduplicated
+		 */
+		long[] getFingerprint() {
+			return fingerprint;
+		}
+		
+		/**
+		 * @return references of the locations in the deduplication index (in the order of the locations)
+		 */
+		int[] getLocationRefs() {
+			return locationRefs;
+		}
+	}
+	
+	private final String owner;
+	private final String filename;
+	private final String fileId = UUID.randomUUID().toString();
+	private final List<ChunkRef> chunks = new ArrayList<ChunkRef>();
+	private final List<ChunkRef> parity = new ArrayList<ChunkRef>();
+	private final int dataShards;
+	private final int parityShards;
+	private long size = 0;
+	private boolean discarded = false;
+	
+	/**
+	 * @param owner name of the user who owns the file
+	 * @param filename name of the file
+	 * @param dataShards number of chunks per stripe (erasure coding)
+	 * @param parityShards number of parity shards per stripe (<code>0</code> if no erasure coding is used)
+	 */
+	FileManifest(String owner, String filename, int dataShards, int parityShards){
+		this.owner = owner;
+		this.filename = filename;
+		this.dataShards = dataShards;
+		this.parityShards = parityShards;
+	}
+	
+	/**
+	 * Gives the ID the chunk with the given index will be saved under.
+	 */
+	String chunkId(int index){
+		return fileId+"-"+index;
+	}
+	
+	/**
+	 * Gives the ID a parity shard will be saved under.
+	 */
+	String parityId(int stripe, int shard){
+		return fileId+"-p"+stripe+"."+shard;
+	}
+	
+	/**
+	 * Records the placement of a parity shard.
+	 * 
+	 * @param stripe index of the stripe
+	 * @param shard index of the parity shard within the stripe
+	 * @param ref placement (the index of the reference is ignored)
+	 * @return <code>false</code> if the manifest was discarded
+	 */
+	synchronized boolean setParity(int stripe, int shard, ChunkRef ref){
+		if(discarded){
+			return false;
+		}
+		int pos = stripe * parityShards + shard;
+		while(parity.size() <= pos){
+			parity.add(null);
+		}
+		parity.set(pos, ref);
+		return true;
+	}
+	
+	/**
+	 * Records the placement of a chunk.
+	 * 
+	 * @return <code>false</code> if the manifest was discarded
+	 */
+	synchronized boolean setChunk(ChunkRef ref){
+		if(discarded){
+			return false;
+		}
+		while(chunks.size() <= ref.getIndex()){
+			chunks.add(null);
+		}
+		chunks.set(ref.getIndex(), ref);
+		return true;
+	}
+	
+	/**
+	 * Discards the manifest. No further chunks are recorded.
+	 * 
+	 * @return placements of all chunks and parity shards that were recorded
+	 */
+	synchronized List<ChunkRef> discard(){
+		discarded = true;
+		List<ChunkRef> refs = new ArrayList<ChunkRef>(chunks.size() + parity.size());
+		for(ChunkRef ref: chunks){
+			if(ref != null){
+				refs.add(ref);
+			}
+		}
+		for(ChunkRef ref: parity){
+			if(ref != null){
+				refs.add(ref);
+			}
+		}
+		return refs;
+	}
+	
+	/**
+	 * Sets the total size of the file.
+	 */
+	synchronized void setSize(long size){
+		this.size = size;
+	}
+	
+	/**
+	 * @return <code>true</code> if the file was stored with erasure coding
+	 */
+	public boolean isErasureCoded(){
+		return parityShards > 0;
+	}
+	
+	/**
+	 * @return number of chunks per stripe
+	 */
+	public int getDataShards() {
+		return dataShards;
+	}
+	
+	/**
+	 * @return number of parity shards per stripe
+	 */
+	public int getParityShards() {
+		return parityShards;
+	}
+	
+	/**
+	 * @return number of stripes (only meaningful for erasure coded files)
+	 */
+	public synchronized int getStripeCount(){
+		return (chunks.size() + dataShards - 1) / dataShards;
+	}
+	
+	/**
+	 * @param stripe index of the stripe
+	 * @param shard index of the parity shard within the stripe
+	 * @return placement of the parity shard
+	 */
+	public synchronized ChunkRef getParity(int stripe, int shard){
+		return parity.get(stripe * parityShards + shard);
+	}
+	
+	/**
+	 * @return name of the user who owns the file
+	 */
+	public String getOwner() {
+		return owner;
+	}
+	
+	/**
+	 * @return name of the file
+	 */
+	public String getFilename() {
+		return filename;
+	}
+	
+	/**
+	 * @return size of the file in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+	
+	/**
+	 * @return number of chunks
+	 */
+	public synchronized int getChunkCount(){
+		return chunks.size();
+	}
+	
+	/**
+	 * @param index sequence number of the chunk
+	 * @return placement of the chunk
+	 */
+	public synchronized ChunkRef getChunk(int index){
+		return chunks.get(index);
+	}
+}
@@ -0,0 +1,81 @@
+package org.komorebi.core.storeengine;
+
+/**
+ * Count-min sketch with 4 bit counters that estimates how often a key was seen recently.
+ * All counters are halved when the number of increments reaches the sample size so old
+ * popularity fades out (TinyLFU). Sixteen counters are packed into a long.
+ *
+ * This class is not thread safe.
+ *
+ * @author lycis
+ *
+ */
+class FrequencySketch {
+	private static final int DEPTH = 4;
+	private static final int MAX_COUNT = 15;
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+	private final long[][] table;
+	private final int mask;
+	private final int sampleSize;
+	private int additions = 0;
+
+	/**
+	 * @param expectedKeys number of keys the cache can hold
+	 */
+	FrequencySketch(int expectedKeys){
+		int width = Integer.highestOneBit(Math.max(64, expectedKeys - 1) << 1);
+		table = new long[DEPTH][width >>> 4];
+		mask = width - 1;
+		sampleSize = width * 10;
+	}
+
+	/**
+	 * Records an access to a key.
+	 */
+	void increment(int hash){
+		boolean added = false;
+		for(int d=0; d<DEPTH; ++d){
+			int i = index(hash, d);
+			int shift = (i & 15) << 2;
+			if(((table[d][i >>> 4] >>> shift) & MAX_COUNT) < MAX_COUNT){
+				table[d][i >>> 4] += 1L << shift;
+				added = true;
+			}
+		}
+
+		if(added && ++additions == sampleSize){
+			reset();
+		}
+	}
+
+	/**
+	 * Gives the estimated number of recent accesses to a key.
+	 */
+	int frequency(int hash){
+		int min = MAX_COUNT;
+		for(int d=0; d<DEPTH; ++d){
+			int i = index(hash, d);
+			min = Math.min(min, (int) (table[d][i >>> 4] >>> ((i & 15) << 2)) & MAX_COUNT);
+		}
+		return min;
+	}
+
+	/**
+	 * Halves all counters.
+	 */
+	private void reset(){
+		for(long[] row: table){
+			for(int i=0; i<row.length; ++i){
+				row[i] = (row[i] >>> 1) & RESET_MASK;
+			}
+		}
+		additions = sampleSize / 2;
+	}
+
+	private int index(int hash, int depth){
+		long h = ((hash & 0xffffffffL) + 1) * SEEDS[depth];
+		return (int) (h >>> 32) & mask;
+	}
+}
@@ -0,0 +1,96 @@
+package org.komorebi.core.storeengine;
+
+/**
+ * Arithmetic in GF(2^8) with the polynomial x^8 + x^4 + x^3 + x^2 + 1 (0x11D). Everything is
+ * based on precomputed tables, multiplication of a whole buffer with a constant only needs a
+ * single row of the multiplication table.
+ * 
+ * @author lycis
+ *
+ */
+public final class GaloisField {
+	private static final int POLYNOMIAL = 0x11D;
+	
+	private static final byte[] EXP = new byte[512]; // doubled so that log(a)+log(b) needs no modulo
+	private static final int[] LOG = new int[256];
+	
+	/**
+	 * Full multiplication table. <code>MUL[a][b] = a * b</code>
+	 */
+	static final byte[][] MUL = new byte[256][256];
+	
+	static{
+		int x = 1;
+		for(int i=0; i<255; ++i){
+			EXP[i] = (byte) x;
+			LOG[x] = i;
+			x <<= 1;
+			if(x >= 256){
+				x ^= POLYNOMIAL;
+			}
+		}
+		for(int i=255; i<EXP.length; ++i){
+			EXP[i] = EXP[i-255];
+		}
+		
+		for(int a=0; a<256; ++a){
+			for(int b=0; b<256; ++b){
+				MUL[a][b] = slowMultiply(a, b);
+			}
+		}
+	}
+	
+	private GaloisField(){
+	}
+	
+	private static byte slowMultiply(int a, int b){
+		if(a == 0 || b == 0){
+			return 0;
+		}
+		return EXP[LOG[a] + LOG[b]];
+	}
+	
+	/**
+	 * @return a + b (same as subtraction)
+	 */
+	public static int add(int a, int b){
+		return (a ^ b) & 0xff;
+	}
+	
+	/**
+	 * @return a * b
+	 */
+	public static int multiply(int a, int b){
+		return MUL[a & 0xff][b & 0xff] & 0xff;
+	}
+	
+	/**
+	 * @return a / b
+	 * @throws ArithmeticException if b is zero
+	 */
+	public static int divide(int a, int b){
+		a &= 0xff;
+		b &= 0xff;
+		if(b == 0){
+			throw new ArithmeticException("division by zero");
+		}
+		if(a == 0){
+			return 0;
+		}
+		return EXP[LOG[a] - LOG[b] + 255] & 0xff;
+	}
+	
+	/**
+	 * @return a to the power of n
+	 */
+	public static int power(int a, int n){
+		a &= 0xff;
+		if(n == 0){
+			return 1;
+		}
+		if(a == 0){
+			return 0;
+		}
+		return EXP[(LOG[a] * n) % 255] & 0xff;
+	}
+}
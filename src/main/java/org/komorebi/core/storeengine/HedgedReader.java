@@ -0,0 +1,228 @@
+package org.komorebi.core.storeengine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.komorebi.core.security.User;
+
+/**
+ * Reads replicated chunks with hedged requests. The chunk is requested from its first location
+ * and if this does not answer within the hedging delay the same chunk is requested from the next
+ * replica. Whichever answers first wins, the other requests are cancelled. Failed requests are
+ * retried at the next replica right away.
+ *
+ * The hedging delay is a percentile of the latencies that were recently measured for the PlugIn
+ * of the location, bounded by a minimum and maximum delay. As long as there are not enough samples
+ * for a PlugIn the maximum delay is used.
+ *
+ * If there is a {@link ChunkCache} it is asked before any location. Chunks that had to be read
+ * from a location are added to the cache in the background.
+ *
+ * @author lycis
+ *
+ */
+class HedgedReader {
+	private static final String LOGGER_NAME = "storagemanager";
+	private static final int MIN_SAMPLES = 32;
+	private static final int DECAY_INTERVAL = 4096;
+
+	private final ExecutorService executor;
+	private final double percentile;
+	private final long minDelay;
+	private final long maxDelay;
+	private final ChunkCache cache; // null if there is no cache
+	private final ExecutorService cacheWriter;
+	private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	/**
+	 * @param executor executor that runs the single requests, it must not queue them
+	 * @param percentile percentile of the latency after which a request is hedged (<code>0</code> disables hedging)
+	 * @param minDelay lower bound of the hedging delay in milliseconds
+	 * @param maxDelay upper bound of the hedging delay in milliseconds
+	 * @param cache local chunk cache or <code>null</code>
+	 * @param cacheWriter executor that adds chunks to the cache (may drop tasks if it is busy)
+	 */
+	HedgedReader(ExecutorService executor, double percentile, long minDelay, long maxDelay, ChunkCache cache, ExecutorService cacheWriter){
+		this.executor = executor;
+		this.cache = cache;
+		this.cacheWriter = cacheWriter;
+		this.percentile = percentile;
+		this.minDelay = minDelay;
+		this.maxDelay = Math.max(minDelay, maxDelay);
+	}
+
+	/**
+	 * Reads a chunk from the replica that answers first.
+	 *
+	 * @param user owner of the chunk
+	 * @param ref placement of the chunk
+	 * @return chunk data
+	 * @throws IOException if none of the locations could deliver the chunk
+	 */
+	ByteBuffer readChunk(User user, FileManifest.ChunkRef ref) throws IOException{
+		if(cache != null){
+			ByteBuffer data = cache.get(ref.getId(), ref.getLength());
+			if(data != null){
+				return data;
+			}
+		}
+		
+		ByteBuffer data = readFromLocations(user, ref);
+		if(cache != null){
+			cache(ref.getId(), data);
+		}
+		return data;
+	}
+	
+	/**
+	 * Adds a chunk to the cache in the background. Chunks are skipped if the cache can not keep up.
+	 */
+	private void cache(final String id, ByteBuffer data){
+		final ByteBuffer copy = data.asReadOnlyBuffer();
+		try{
+			cacheWriter.execute(new Runnable() {
+				public void run() {
+					try{
+						cache.put(id, copy);
+					}catch(IOException e){
+						Logger.getLogger(LOGGER_NAME).warning("Chunk "+id+" could not be cached: "+e.getMessage());
+					}
+				}
+			});
+		}catch(RejectedExecutionException e){
+			// the cache is filled on a best effort basis
+		}
+	}
+	
+	/**
+	 * Reads a chunk from its locations with hedged requests.
+	 */
+	private ByteBuffer readFromLocations(User user, FileManifest.ChunkRef ref) throws IOException{
+		String[] locations = ref.getLocations();
+		if(percentile <= 0 || locations.length < 2){
+			return StripeReader.readChunk(user, ref);
+		}
+
+		CompletionService<ByteBuffer> requests = new ExecutorCompletionService<ByteBuffer>(executor);
+		List<Future<ByteBuffer>> started = new ArrayList<Future<ByteBuffer>>(locations.length);
+		IOException last = null;
+		int next = 0;
+		int running = 0;
+		try{
+			started.add(requests.submit(new ReadRequest(user, ref, locations[next++])));
+			++running;
+
+			while(running > 0){
+				Future<ByteBuffer> answer = null;
+				if(next < locations.length){
+					String plugin = StorageLocations.getPluginName(user, locations[next-1]);
+					answer = requests.poll(getHedgingDelay(plugin), TimeUnit.MILLISECONDS);
+					if(answer == null){
+						Logger.getLogger(LOGGER_NAME).fine("Hedging read of chunk "+ref.getId()+" at '"+locations[next]+"'");
+						started.add(requests.submit(new ReadRequest(user, ref, locations[next++])));
+						++running;
+						continue;
+					}
+				}else{
+					answer = requests.take();
+				}
+
+				--running;
+				try{
+					return answer.get();
+				}catch(ExecutionException e){
+					last = e.getCause() instanceof IOException ? (IOException) e.getCause()
+					                                            : new IOException("reading chunk "+ref.getId()+" failed", e.getCause());
+					if(next < locations.length){
+						started.add(requests.submit(new ReadRequest(user, ref, locations[next++])));
+						++running;
+					}
+				}
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("reading chunk "+ref.getId()+" was interrupted");
+		}finally{
+			for(Future<ByteBuffer> f: started){
+				f.cancel(true);
+			}
+		}
+
+		throw last != null ? last : new IOException("chunk "+ref.getId()+" has no location");
+	}
+
+	/**
+	 * Gives the time after which a request to a PlugIn is hedged.
+	 *
+	 * @param plugin name of the storage PlugIn
+	 * @return delay in milliseconds
+	 */
+	long getHedgingDelay(String plugin){
+		long micros = getLatencies(plugin).getPercentile(percentile, MIN_SAMPLES);
+		if(micros < 0){
+			return maxDelay;
+		}
+		return Math.max(minDelay, Math.min(maxDelay, (micros + 999) / 1000));
+	}
+
+	/**
+	 * Gives the latency histogram of a PlugIn. Histograms are created on first use.
+	 */
+	private LatencyHistogram getLatencies(String plugin){
+		LatencyHistogram h = latencies.get(plugin);
+		if(h == null){
+			LatencyHistogram created = new LatencyHistogram(DECAY_INTERVAL);
+			h = latencies.putIfAbsent(plugin, created);
+			if(h == null){
+				h = created;
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Reads a chunk from a single location and records the latency of the PlugIn. Requests
+	 * that were cancelled after losing against a hedged request are recorded with the time
+	 * they ran so the slow tail stays visible.
+	 */
+	private class ReadRequest implements Callable<ByteBuffer> {
+		private final User user;
+		private final FileManifest.ChunkRef ref;
+		private final String location;
+
+		ReadRequest(User user, FileManifest.ChunkRef ref, String location){
+			this.user = user;
+			this.ref = ref;
+			this.location = location;
+		}
+
+		public ByteBuffer call() throws IOException {
+			LatencyHistogram histogram = getLatencies(StorageLocations.getPluginName(user, location));
+			long start = System.nanoTime();
+			try{
+				ByteBuffer data = StripeReader.readChunk(user, ref, location);
+				histogram.record((System.nanoTime() - start) / 1000);
+				return data;
+			}catch(IOException e){
+				if(Thread.currentThread().isInterrupted()){
+					// cancelled after losing, the request took at least this long
+					histogram.record((System.nanoTime() - start) / 1000);
+				}
+				throw e;
+			}
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package org.komorebi.core.storeengine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.komorebi.core.security.User;
+
+/**
+ * Optional extension of {@link IChunkStorage} for storage PlugIns that can handle several chunks
+ * with one call (e.g. one request to a remote backend). The scatter engine collects chunks that
+ * wait for the same location and hands them over in one batch, so small chunks do not pay the
+ * round trip of a single call each. Chunks that are cleaned up are removed in batches as well.
+ *
+ * A batch either succeeds or fails as a whole. PlugIns that do not implement this interface are
+ * called once per chunk.
+ *
+ * @author lycis
+ *
+ */
+public interface IBatchChunkStorage extends IChunkStorage {
+
+	/**
+	 * Saves several chunks of a location.
+	 *
+	 * @param user user who owns the chunks (provides the credentials for the location)
+	 * @param location name of the location of the user that is written to
+	 * @param chunkIds unique IDs of the chunks
+	 * @param data chunk data (between position and limit) in the order of the IDs, suited for gathering writes
+	 * @throws IOException when any of the chunks could not be saved
+	 */
+	void writeChunks(User user, String location, String[] chunkIds, ByteBuffer[] data) throws IOException;
+
+	/**
+	 * Removes several chunks of a location.
+	 *
+	 * @param user user who owns the chunks (provides the credentials for the location)
+	 * @param location name of the location of the user
+	 * @param chunkIds unique IDs of the chunks
+	 * @throws IOException when any of the chunks could not be removed
+	 */
+	void deleteChunks(User user, String location, String[] chunkIds) throws IOException;
+}
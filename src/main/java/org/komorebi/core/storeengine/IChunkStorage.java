@@ -0,0 +1,50 @@
+package org.komorebi.core.storeengine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.komorebi.core.security.User;
+
+/**
+ * Chunk level access to a storage backend. Storage PlugIns (<code>IKomorebiStorage</code>) implement
+ * this interface to be used by the storage manager as target for scattered chunks.
+ * 
+ * Implementations must be thread safe as chunks are written in parallel.
+ * 
+ * @author lycis
+ *
+ */
+public interface IChunkStorage {
+	
+	/**
+	 * Saves a chunk.
+	 * 
+	 * @param user user who owns the chunk (provides the credentials for the location)
+	 * @param location name of the location of the user that is written to
+	 * @param chunkId unique ID of the chunk
+	 * @param data chunk data (between position and limit)
+	 * @throws IOException when the chunk could not be saved
+	 */
+	void writeChunk(User user, String location, String chunkId, ByteBuffer data) throws IOException;
+	
+	/**
+	 * Reads a chunk.
+	 * 
+	 * @param user user who owns the chunk (provides the credentials for the location)
+	 * @param location name of the location of the user that is read from
+	 * @param chunkId unique ID of the chunk
+	 * @return chunk data (between position and limit)
+	 * @throws IOException when the chunk could not be read
+	 */
+	ByteBuffer readChunk(User user, String location, String chunkId) throws IOException;
+	
+	/**
+	 * Removes a chunk.
+	 * 
+	 * @param user user who owns the chunk (provides the credentials for the location)
+	 * @param location name of the location of the user
+	 * @param chunkId unique ID of the chunk
+	 * @throws IOException when the chunk could not be removed
+	 */
+	void deleteChunk(User user, String location, String chunkId) throws IOException;
+}
@@ -0,0 +1,111 @@
+package org.komorebi.core.storeengine;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in microseconds. Buckets grow exponentially with eight
+ * linear sub-buckets per power of two, so percentiles are accurate to 12.5%.
+ *
+ * To follow the current behaviour of a backend all counts are halved after every
+ * <code>decayInterval</code> samples. Concurrent updates during the halving may get lost,
+ * which only blurs the histogram slightly.
+ *
+ * @author lycis
+ *
+ */
+class LatencyHistogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_EXPONENT = 40; // about 12 days
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicInteger sinceDecay = new AtomicInteger(0);
+	private final int decayInterval;
+
+	/**
+	 * @param decayInterval number of samples after which all counts are halved
+	 */
+	LatencyHistogram(int decayInterval){
+		this.decayInterval = decayInterval;
+	}
+
+	/**
+	 * Adds a sample.
+	 *
+	 * @param micros latency in microseconds
+	 */
+	void record(long micros){
+		counts.incrementAndGet(bucket(micros));
+
+		// exactly one thread sees the interval being reached
+		if(sinceDecay.incrementAndGet() == decayInterval){
+			for(int i=0; i<BUCKETS; ++i){
+				long c = counts.get(i);
+				if(c > 0){
+					counts.addAndGet(i, -(c / 2));
+				}
+			}
+			sinceDecay.set(0);
+		}
+	}
+
+	/**
+	 * Gives the latency that the given share of samples did not exceed.
+	 *
+	 * @param percentile share of the samples (0 to 100)
+	 * @param minSamples number of samples that are needed for a meaningful answer
+	 * @return the latency in microseconds or <code>-1</code> if there are less than <code>minSamples</code> samples
+	 */
+	long getPercentile(double percentile, long minSamples){
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for(int i=0; i<BUCKETS; ++i){
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if(total == 0 || total < minSamples){
+			return -1;
+		}
+
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for(int i=0; i<BUCKETS; ++i){
+			seen += snapshot[i];
+			if(seen >= Math.max(1, rank)){
+				return upperBound(i);
+			}
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	/**
+	 * Gives the bucket of a value.
+	 */
+	static int bucket(long value){
+		if(value < SUB_BUCKETS){
+			return (int) Math.max(0, value);
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if(exponent > MAX_EXPONENT){
+			return BUCKETS - 1;
+		}
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Gives the highest value of a bucket.
+	 */
+	static long upperBound(int bucket){
+		if(bucket < SUB_BUCKETS){
+			return bucket;
+		}
+
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+		return lower + (1L << (exponent - SUB_BITS)) - 1;
+	}
+}
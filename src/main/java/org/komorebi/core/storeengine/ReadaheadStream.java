@@ -0,0 +1,129 @@
+package org.komorebi.core.storeengine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.komorebi.core.security.User;
+
+/**
+ * Reassembles a stored file from its chunks. Upcoming chunks are fetched in parallel while
+ * the current one is written so the latency of the storage backends is hidden on sequential
+ * downloads. The number of chunks that are fetched ahead is bounded by the readahead window.
+ *
+ * Erasure coded files are read in whole stripes so missing chunks can be restored. In this case
+ * the window counts stripes.
+ *
+ * @author lycis
+ *
+ */
+class ReadaheadStream implements StreamingOutput {
+	private final User user;
+	private final FileManifest manifest;
+	private final ReedSolomon coder; // null if the chunks are replicated
+	private final HedgedReader reader;
+	private final ExecutorService executor;
+	private final int window;
+
+	/**
+	 * @param user owner of the file
+	 * @param manifest manifest of the file
+	 * @param coder erasure code of the file or <code>null</code> for replicated files
+	 * @param reader reader for the single chunks
+	 * @param executor executor that fetches the chunks
+	 * @param window number of chunks (or stripes) that may be fetched at once
+	 */
+	ReadaheadStream(User user, FileManifest manifest, ReedSolomon coder, HedgedReader reader, ExecutorService executor, int window){
+		this.user = user;
+		this.manifest = manifest;
+		this.coder = coder;
+		this.reader = reader;
+		this.executor = executor;
+		this.window = Math.max(1, window);
+	}
+
+	/**
+	 * @return number of units (chunks or stripes) the file is read in
+	 */
+	private int getUnitCount(){
+		if(coder == null){
+			return manifest.getChunkCount();
+		}
+		return manifest.getStripeCount();
+	}
+
+	/**
+	 * Starts fetching a unit of the file.
+	 */
+	private Future<ByteBuffer[]> fetch(final int unit){
+		return executor.submit(new Callable<ByteBuffer[]>() {
+			public ByteBuffer[] call() throws IOException {
+				if(coder == null){
+					return new ByteBuffer[]{ reader.readChunk(user, manifest.getChunk(unit)) };
+				}
+				return StripeReader.readStripe(user, manifest, coder, reader, unit);
+			}
+		});
+	}
+
+	public void write(OutputStream output) throws IOException, WebApplicationException {
+		WritableByteChannel channel = Channels.newChannel(output);
+		int units = getUnitCount();
+		int next = 0;
+		ArrayDeque<Future<ByteBuffer[]>> pending = new ArrayDeque<Future<ByteBuffer[]>>(window);
+
+		try{
+			while(next < units && pending.size() < window){
+				pending.add(fetch(next++));
+			}
+
+			while(!pending.isEmpty()){
+				ByteBuffer[] data = await(pending.poll());
+
+				// refill the window before writing so the backends keep busy
+				if(next < units){
+					pending.add(fetch(next++));
+				}
+
+				for(ByteBuffer b: data){
+					while(b.hasRemaining()){
+						channel.write(b);
+					}
+				}
+				output.flush(); // the client gets every chunk as soon as it is there
+			}
+		}finally{
+			// aborted downloads must not keep the readers busy
+			for(Future<ByteBuffer[]> f: pending){
+				f.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Waits for a fetched unit.
+	 */
+	private ByteBuffer[] await(Future<ByteBuffer[]> f) throws IOException{
+		try{
+			return f.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("reading of '"+manifest.getFilename()+"' was interrupted");
+		}catch(ExecutionException e){
+			if(e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("reading of '"+manifest.getFilename()+"' failed", e.getCause());
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package org.komorebi.core.storeengine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reed-Solomon erasure code with <code>k</code> data shards and <code>m</code> parity shards. The
+ * code is systematic, so the data shards are stored unchanged and any <code>k</code> of the 
+ * <code>k+m</code> shards are enough to restore all others.
+ * 
+ * The encoding matrix is derived from a Vandermonde matrix. All calculations on shard data use rows
+ * of the multiplication table of <code>GaloisField</code> and work on byte arrays. Shards that are
+ * not backed by an array (direct or read-only buffers) are copied in blocks through scratch arrays
+ * of the calling thread, which is much faster than accessing them byte by byte.
+ * 
+ * Shards are buffers whose data starts at their position. A shard that has less than the requested
+ * length of bytes remaining is treated as padded with zeros.
+ * 
+ * @author lycis
+ *
+ */
+public class ReedSolomon {
+	private static final int BLOCK = 8192; // bytes copied at once from buffers without array
+	private static final byte[] ZEROS = new byte[BLOCK];
+	private static final ThreadLocal<byte[][]> SCRATCH = new ThreadLocal<byte[][]>(){
+		@Override
+		protected byte[][] initialValue() {
+			return new byte[][]{ new byte[BLOCK], new byte[BLOCK] };
+		}
+	};
+	
+	private final int dataShards;
+	private final int parityShards;
+	private final int[][] matrix; // (k+m) x k, the upper k rows are the identity
+	
+	/**
+	 * @param dataShards number of data shards (k)
+	 * @param parityShards number of parity shards (m)
+	 */
+	public ReedSolomon(int dataShards, int parityShards){
+		if(dataShards <= 0 || parityShards < 0 || dataShards + parityShards > 256){
+			throw new IllegalArgumentException("invalid number of shards ("+dataShards+"+"+parityShards+")");
+		}
+		
+		this.dataShards = dataShards;
+		this.parityShards = parityShards;
+		
+		// vandermonde matrix made systematic: V * inverse(top square of V)
+		int rows = dataShards + parityShards;
+		int[][] vandermonde = new int[rows][dataShards];
+		for(int r=0; r<rows; ++r){
+			for(int c=0; c<dataShards; ++c){
+				vandermonde[r][c] = GaloisField.power(r, c);
+			}
+		}
+		
+		int[][] top = new int[dataShards][];
+		for(int r=0; r<dataShards; ++r){
+			top[r] = vandermonde[r].clone();
+		}
+		matrix = multiply(vandermonde, invert(top));
+	}
+	
+	/**
+	 * @return number of data shards
+	 */
+	public int getDataShards() {
+		return dataShards;
+	}
+	
+	/**
+	 * @return number of parity shards
+	 */
+	public int getParityShards() {
+		return parityShards;
+	}
+	
+	/**
+	 * Calculates all parity shards from the data shards.
+	 * 
+	 * @param data data shards (<code>k</code> buffers, missing ones count as zero)
+	 * @param parity parity shards (<code>m</code> buffers with at least <code>length</code> bytes remaining)
+	 * @param length shard size in bytes
+	 */
+	public void encodeParity(ByteBuffer[] data, ByteBuffer[] parity, int length){
+		for(int p=0; p<parityShards; ++p){
+			clear(parity[p], length);
+		}
+		for(int d=0; d<dataShards; ++d){
+			if(data[d] != null){
+				addToParity(data[d], d, parity);
+			}
+		}
+	}
+	
+	/**
+	 * Adds a single data shard to the parity shards. Starting with zeroed parity shards and
+	 * adding every data shard once gives the same result as <code>encodeParity</code>. Data shards
+	 * may be added in any order.
+	 * 
+	 * @param data data shard
+	 * @param index index of the data shard (<code>0 &lt;= index &lt; k</code>)
+	 * @param parity parity shards
+	 */
+	public void addToParity(ByteBuffer data, int index, ByteBuffer[] parity){
+		for(int p=0; p<parityShards; ++p){
+			multiplyAdd(GaloisField.MUL[matrix[dataShards + p][index]], data, data.remaining(), parity[p]);
+		}
+	}
+	
+	/**
+	 * Restores missing shards. At least <code>k</code> shards have to be present.
+	 * 
+	 * @param shards all <code>k+m</code> shards (data shards first), missing shards have to be writable 
+	 *               buffers with at least <code>length</code> bytes remaining or <code>null</code> 
+	 *               if they should not be restored
+	 * @param present tells which shards are available
+	 * @param length shard size in bytes
+	 * @throws IllegalArgumentException if less than <code>k</code> shards are present
+	 */
+	public void reconstruct(ByteBuffer[] shards, boolean[] present, int length){
+		int[] used = new int[dataShards];
+		int count = 0;
+		for(int i=0; i<shards.length && count<dataShards; ++i){
+			if(present[i]){
+				used[count++] = i;
+			}
+		}
+		if(count < dataShards){
+			throw new IllegalArgumentException("not enough shards to reconstruct ("+count+" of "+dataShards+")");
+		}
+		
+		// data shards: invert the rows of the encoding matrix that belong to the used shards
+		int[][] decode = null;
+		for(int d=0; d<dataShards; ++d){
+			if(present[d] || shards[d] == null){
+				continue;
+			}
+			
+			if(decode == null){
+				int[][] sub = new int[dataShards][];
+				for(int r=0; r<dataShards; ++r){
+					sub[r] = matrix[used[r]].clone();
+				}
+				decode = invert(sub);
+			}
+			
+			clear(shards[d], length);
+			for(int j=0; j<dataShards; ++j){
+				ByteBuffer src = shards[used[j]];
+				multiplyAdd(GaloisField.MUL[decode[d][j]], src, Math.min(src.remaining(), length), shards[d]);
+			}
+		}
+		
+		// parity shards: encode again from the now complete data
+		for(int p=0; p<parityShards; ++p){
+			ByteBuffer target = shards[dataShards + p];
+			if(present[dataShards + p] || target == null){
+				continue;
+			}
+			
+			clear(target, length);
+			for(int d=0; d<dataShards; ++d){
+				if(!present[d] && shards[d] == null){
+					throw new IllegalArgumentException("data shard "+d+" is required to restore parity shard "+p);
+				}
+				ByteBuffer src = shards[d];
+				multiplyAdd(GaloisField.MUL[matrix[dataShards + p][d]], src, Math.min(src.remaining(), length), target);
+			}
+		}
+	}
+	
+	/**
+	 * out[i] ^= table[in[i]] for the first <code>length</code> bytes after the positions.
+	 */
+	private static void multiplyAdd(byte[] table, ByteBuffer in, int length, ByteBuffer out){
+		if(in.hasArray() && out.hasArray()){
+			multiplyAdd(table, in.array(), in.arrayOffset() + in.position(), out.array(), out.arrayOffset() + out.position(), length);
+			return;
+		}
+		
+		// bulk copies through the scratch arrays, the positions of the shards are not changed
+		byte[][] scratch = SCRATCH.get();
+		ByteBuffer src = in.duplicate();
+		ByteBuffer dst = out.duplicate();
+		int op = out.position();
+		for(int done=0; done<length; ){
+			int n = Math.min(BLOCK, length - done);
+			src.get(scratch[0], 0, n);
+			dst.position(op + done);
+			dst.get(scratch[1], 0, n);
+			multiplyAdd(table, scratch[0], 0, scratch[1], 0, n);
+			dst.position(op + done);
+			dst.put(scratch[1], 0, n);
+			done += n;
+		}
+	}
+	
+	private static void multiplyAdd(byte[] table, byte[] in, int io, byte[] out, int oo, int length){
+		for(int i=0; i<length; ++i){
+			out[oo+i] ^= table[in[io+i] & 0xff];
+		}
+	}
+	
+	/**
+	 * Sets the first <code>length</code> bytes after the position to zero.
+	 */
+	static void clear(ByteBuffer buf, int length){
+		ByteBuffer dst = buf.duplicate();
+		for(int done=0; done<length; ){
+			int n = Math.min(BLOCK, length - done);
+			dst.put(ZEROS, 0, n);
+			done += n;
+		}
+	}
+	
+	private static int[][] multiply(int[][] a, int[][] b){
+		int[][] result = new int[a.length][b[0].length];
+		for(int r=0; r<a.length; ++r){
+			for(int c=0; c<b[0].length; ++c){
+				int v = 0;
+				for(int i=0; i<b.length; ++i){
+					v ^= GaloisField.multiply(a[r][i], b[i][c]);
+				}
+				result[r][c] = v;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Inverts a square matrix using Gauss-Jordan elimination. The given matrix is changed.
+	 */
+	private static int[][] invert(int[][] m){
+		int n = m.length;
+		int[][] inv = new int[n][n];
+		for(int i=0; i<n; ++i){
+			inv[i][i] = 1;
+		}
+		
+		for(int col=0; col<n; ++col){
+			// find pivot
+			int pivot = col;
+			while(pivot < n && m[pivot][col] == 0){
+				++pivot;
+			}
+			if(pivot == n){
+				throw new IllegalArgumentException("matrix is singular");
+			}
+			int[] tmp = m[col]; m[col] = m[pivot]; m[pivot] = tmp;
+			tmp = inv[col]; inv[col] = inv[pivot]; inv[pivot] = tmp;
+			
+			// scale pivot row to 1
+			int scale = m[col][col];
+			for(int c=0; c<n; ++c){
+				m[col][c] = GaloisField.divide(m[col][c], scale);
+				inv[col][c] = GaloisField.divide(inv[col][c], scale);
+			}
+			
+			// eliminate column in all other rows
+			for(int r=0; r<n; ++r){
+				if(r == col || m[r][col] == 0){
+					continue;
+				}
+				int factor = m[r][col];
+				for(int c=0; c<n; ++c){
+					m[r][c] ^= GaloisField.multiply(factor, m[col][c]);
+					inv[r][c] ^= GaloisField.multiply(factor, inv[col][c]);
+				}
+			}
+		}
+		return inv;
+	}
+}
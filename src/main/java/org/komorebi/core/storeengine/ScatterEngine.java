@@ -0,0 +1,384 @@
+package org.komorebi.core.storeengine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.komorebi.core.security.User;
+
+/**
+ * Writes chunks to the storage locations of a user. Every storage backend (PlugIn) has its own
+ * threads, so the number of parallel writes is limited per backend and a slow backend does not
+ * hold back the others. The time to store a file therefore depends on the slowest backend and not
+ * on the sum of all of them.
+ * 
+ * The chunk buffers are only read by the backends, so all copies of a chunk are written from the
+ * same buffer.
+ * 
+ * Writes wait in a queue per location of a user. If the PlugIn implements
+ * {@link IBatchChunkStorage} a location only gets a few threads (one by default), so further
+ * chunks queue up while a write is running. They are collected and written with one call (up to
+ * a maximum number of chunks and bytes). An idle location gets single chunks at once, so
+ * batching never delays a write. Other PlugIns may use all threads of their backend for a
+ * location.
+ * 
+ * @author lycis
+ *
+ */
+public class ScatterEngine {
+	
+	/**
+	 * Gets informed when all copies of a chunk were handled.
+	 * @author lycis
+	 *
+	 */
+	public interface Listener{
+		/**
+		 * All copies of the chunk were written.
+		 * @param chunk the chunk
+		 * @param locations locations the chunk was written to
+		 */
+		void chunkWritten(Chunk chunk, String[] locations);
+		
+		/**
+		 * At least one copy of the chunk could not be written. Called after all writes
+		 * of the chunk ended.
+		 * @param chunk the chunk
+		 * @param reason description of the first error
+		 */
+		void chunkFailed(Chunk chunk, String reason);
+	}
+	
+	/**
+	 * Writes of one chunk to all its locations.
+	 */
+	private static class Scatter{
+		final Chunk chunk;
+		final String[] locations;
+		final Listener listener;
+		final AtomicInteger remaining;
+		final AtomicReference<String> error = new AtomicReference<String>(null);
+		
+		Scatter(Chunk chunk, String[] locations, Listener listener){
+			this.chunk = chunk;
+			this.locations = locations;
+			this.listener = listener;
+			this.remaining = new AtomicInteger(locations.length);
+		}
+		
+		/**
+		 * Ends the write to one location.
+		 * @param failure description of the error or <code>null</code> if the copy was written
+		 */
+		void done(String failure){
+			if(failure != null){
+				error.compareAndSet(null, failure);
+			}
+			if(remaining.decrementAndGet() == 0){
+				if(error.get() == null){
+					listener.chunkWritten(chunk, locations);
+				}else{
+					listener.chunkFailed(chunk, error.get());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A copy of a chunk that waits to be written.
+	 */
+	private static class PendingWrite{
+		final User user;
+		final String chunkId;
+		final Scatter scatter;
+		
+		PendingWrite(User user, String chunkId, Scatter scatter){
+			this.user = user;
+			this.chunkId = chunkId;
+			this.scatter = scatter;
+		}
+	}
+	
+	/**
+	 * Writes that wait for a location of a user.
+	 */
+	private static class Lane{
+		final String plugin;
+		final String location;
+		final ConcurrentLinkedQueue<PendingWrite> queue = new ConcurrentLinkedQueue<PendingWrite>();
+		final AtomicInteger active = new AtomicInteger(0); // threads that write for this lane
+		volatile int limit = 1; // threads the lane may use, known after the storage was seen
+		
+		Lane(String plugin, String location){
+			this.plugin = plugin;
+			this.location = location;
+		}
+	}
+	
+	private final int backendThreads;
+	private final int batchThreads;
+	private final int maxBatchChunks;
+	private final long maxBatchBytes;
+	private final ConcurrentMap<String, ExecutorService> backends = new ConcurrentHashMap<String, ExecutorService>();
+	private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+	
+	/**
+	 * @param backendThreads maximum number of parallel writes per backend
+	 * @param batchThreads maximum number of parallel writes per location if the PlugIn supports batches
+	 * @param maxBatchChunks maximum number of chunks that are written with one call
+	 * @param maxBatchBytes maximum size of the chunks that are written with one call (a single chunk may be larger)
+	 */
+	public ScatterEngine(int backendThreads, int batchThreads, int maxBatchChunks, long maxBatchBytes){
+		this.backendThreads = backendThreads;
+		this.batchThreads = Math.max(1, Math.min(batchThreads, backendThreads));
+		this.maxBatchChunks = Math.max(1, maxBatchChunks);
+		this.maxBatchBytes = maxBatchBytes;
+	}
+	
+	/**
+	 * Chooses the locations for a chunk. The chunks of a file are spread round robin over the
+	 * locations, every copy of a chunk goes to a different location.
+	 * 
+	 * @param locations all usable locations
+	 * @param index index of the chunk
+	 * @param replicas number of copies
+	 * @return target locations
+	 */
+	public static String[] place(List<String> locations, int index, int replicas){
+		int n = Math.min(replicas, locations.size());
+		String[] targets = new String[n];
+		for(int i=0; i<n; ++i){
+			targets[i] = locations.get((index + i) % locations.size());
+		}
+		return targets;
+	}
+	
+	/**
+	 * Chooses the location of a shard of an erasure coded stripe. Every shard of a stripe goes to
+	 * a different location (as long as there are at least <code>k+m</code> locations) and the
+	 * stripes are rotated over the locations.
+	 * 
+	 * @param locations all usable locations
+	 * @param stripe index of the stripe
+	 * @param shard index of the shard within the stripe (data shards first, then parity)
+	 * @return target location
+	 */
+	public static String[] placeShard(List<String> locations, int stripe, int shard){
+		return new String[]{ locations.get((stripe + shard) % locations.size()) };
+	}
+	
+	/**
+	 * Writes a chunk to all given locations in parallel. This method returns immediately, the
+	 * listener is called as soon as all writes have ended.
+	 * 
+	 * @param user owner of the chunk
+	 * @param chunkId ID the chunk is saved under
+	 * @param chunk the chunk
+	 * @param locations locations to write to
+	 * @param listener is informed about the result
+	 */
+	public void scatter(User user, String chunkId, Chunk chunk, String[] locations, Listener listener){
+		Scatter scatter = new Scatter(chunk, locations, listener);
+		for(String location: locations){
+			String plugin = StorageLocations.getPluginName(user, location);
+			Lane lane = lane(plugin, user, location);
+			lane.queue.add(new PendingWrite(user, chunkId, scatter));
+			if(activate(lane)){
+				start(lane);
+			} // else the threads of the lane will take it
+		}
+	}
+	
+	/**
+	 * Starts a thread for a lane that was activated.
+	 */
+	private void start(Lane lane){
+		try{
+			backend(lane.plugin).execute(drainer(lane));
+		}catch(RejectedExecutionException e){
+			lane.active.decrementAndGet();
+			PendingWrite w;
+			while((w = lane.queue.poll()) != null){
+				w.scatter.done("backend '"+lane.plugin+"' is shut down");
+			}
+		}
+	}
+	
+	/**
+	 * Gives the lane of a location. Lanes are created on first use.
+	 */
+	private Lane lane(String plugin, User user, String location){
+		String key = plugin+"/"+user.getName()+"/"+location;
+		Lane lane = lanes.get(key);
+		if(lane == null){
+			Lane created = new Lane(plugin, location);
+			lane = lanes.putIfAbsent(key, created);
+			if(lane == null){
+				lane = created;
+			}
+		}
+		return lane;
+	}
+	
+	/**
+	 * Reserves a thread for a lane if it has less than it may use.
+	 */
+	private boolean activate(Lane lane){
+		for(;;){
+			int active = lane.active.get();
+			if(active >= lane.limit){
+				return false;
+			}
+			if(lane.active.compareAndSet(active, active + 1)){
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Writes the queued chunks of a lane until its queue is empty.
+	 */
+	private Runnable drainer(final Lane lane){
+		return new Runnable() {
+			public void run() {
+				PendingWrite next = null; // did not fit into the last batch
+				for(;;){
+					if(next == null){
+						next = lane.queue.poll();
+					}
+					if(next == null){
+						lane.active.decrementAndGet();
+						if(lane.queue.isEmpty() || !activate(lane)){
+							return; // a write that was queued meanwhile has its own thread
+						}
+						continue;
+					}
+					next = write(lane, next);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Writes a chunk to the location of a lane. If the storage supports batches further queued
+	 * chunks of the lane are written with it.
+	 * 
+	 * @return a queued write that was taken but did not fit into the batch or <code>null</code>
+	 */
+	private PendingWrite write(Lane lane, PendingWrite first){
+		List<PendingWrite> batch = new ArrayList<PendingWrite>();
+		batch.add(first);
+		PendingWrite carry = null;
+		String error = null;
+		try{
+			IChunkStorage storage = acquireStorage(lane.plugin);
+			if(storage == null){
+				throw new IOException("storage PlugIn '"+lane.plugin+"' is not available");
+			}
+			boolean failed = true;
+			try{
+				boolean batching = storage instanceof IBatchChunkStorage && maxBatchChunks > 1;
+				int limit = batching ? batchThreads : backendThreads;
+				if(lane.limit != limit){
+					lane.limit = limit;
+					// writes that queued up while the lane had less threads get their own
+					while(!lane.queue.isEmpty() && activate(lane)){
+						start(lane);
+					}
+				}
+				
+				if(batching){
+					long bytes = first.scatter.chunk.getLength();
+					while(batch.size() < maxBatchChunks){
+						PendingWrite w = lane.queue.poll();
+						if(w == null){
+							break;
+						}
+						if(bytes + w.scatter.chunk.getLength() > maxBatchBytes){
+							carry = w;
+							break;
+						}
+						batch.add(w);
+						bytes += w.scatter.chunk.getLength();
+					}
+				}
+				
+				if(batch.size() == 1){
+					storage.writeChunk(first.user, lane.location, first.chunkId, first.scatter.chunk.getData());
+				}else{
+					String[] ids = new String[batch.size()];
+					ByteBuffer[] data = new ByteBuffer[batch.size()];
+					for(int i=0; i<ids.length; ++i){
+						ids[i] = batch.get(i).chunkId;
+						data[i] = batch.get(i).scatter.chunk.getData();
+					}
+					((IBatchChunkStorage) storage).writeChunks(first.user, lane.location, ids, data);
+				}
+				failed = false;
+			}finally{
+				releaseStorage(lane.plugin, storage, failed);
+			}
+		}catch(IOException | RuntimeException e){
+			error = e.getMessage();
+		}
+		
+		for(PendingWrite w: batch){
+			w.scatter.done(error == null ? null : "writing chunk "+w.chunkId+" to '"+lane.location+"' failed: "+error);
+		}
+		return carry;
+	}
+	
+	/**
+	 * Gives the chunk storage of a PlugIn (see {@link StorageLocations#acquireStorage(String)}).
+	 */
+	IChunkStorage acquireStorage(String plugin){
+		return StorageLocations.acquireStorage(plugin);
+	}
+	
+	/**
+	 * Gives back a chunk storage (see {@link StorageLocations#releaseStorage(String, IChunkStorage, boolean)}).
+	 */
+	void releaseStorage(String plugin, IChunkStorage storage, boolean failed){
+		StorageLocations.releaseStorage(plugin, storage, failed);
+	}
+	
+	/**
+	 * Gives the executor of a backend. Executors are created on first use.
+	 */
+	private ExecutorService backend(final String plugin){
+		ExecutorService ex = backends.get(plugin);
+		if(ex == null){
+			ThreadPoolExecutor created = new ThreadPoolExecutor(backendThreads, backendThreads, 30, TimeUnit.SECONDS, 
+			                                                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() { // queued writes are bounded by the chunk buffer pool
+				private final AtomicInteger count = new AtomicInteger(0);
+				
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "storage-"+plugin+"-"+count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			created.allowCoreThreadTimeOut(true);
+			
+			ex = backends.putIfAbsent(plugin, created);
+			if(ex == null){
+				ex = created;
+			}else{
+				created.shutdown();
+			}
+		}
+		return ex;
+	}
+}
@@ -0,0 +1,28 @@
+package org.komorebi.core.storeengine;
+
+/**
+ * Thrown when the storage manager can not accept any further jobs at the moment.
+ * 
+ * @author lycis
+ *
+ */
+public class StorageBusyException extends Exception {
+	private static final long serialVersionUID = 1L;
+	
+	private final int retryAfter;
+	
+	/**
+	 * @param retryAfter estimated number of seconds until a new job may be accepted
+	 */
+	public StorageBusyException(int retryAfter){
+		super("Storage queue is full. Retry in "+retryAfter+" seconds.");
+		this.retryAfter = retryAfter;
+	}
+	
+	/**
+	 * @return estimated number of seconds until a new job may be accepted
+	 */
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+}
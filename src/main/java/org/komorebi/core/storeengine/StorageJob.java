@@ -1,6 +1,353 @@
 package org.komorebi.core.storeengine;
 
-// TODO implement
-public class StorageJob {
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.komorebi.core.security.User;
 
+/**
+ * Record of a single storage request. A job runs through the states <code>QUEUED</code>,
+ * <code>SPLITTING</code> (the file is read and split into chunks), <code>UPLOADING</code>
+ * (all chunks were read, some are still being saved) and ends in either <code>DONE</code> or 
+ * <code>FAILED</code>. The time spent in each state is recorded so it can be seen where the
+ * time of an upload goes.
+ * 
+ * Listeners are informed about every change of the state. The final state is announced when the
+ * job is completed, i.e. after the storage manager made the file visible (or gave up on it).
+ * 
+ * @author lycis
+ *
+ */
+public class StorageJob {
+	private static final String LOGGER_NAME = "storagemanager";
+	
+	/**
+	 * Gets informed when the state of a job changed.
+	 * @author lycis
+	 *
+	 */
+	public interface Listener{
+		/**
+		 * The job reached a new state. Called on the thread that changed the state, so it
+		 * should return quickly.
+		 * @param job the job
+		 */
+		void statusChanged(StorageJob job);
+	}
+	
+	/**
+	 * States of a storage job.
+	 * @author lycis
+	 *
+	 */
+	public enum Status{
+		QUEUED,
+		SPLITTING,
+		UPLOADING,
+		DONE,
+		FAILED,
+	};
+	
+	private final long id;
+	private final String owner;
+	private final String filename;
+	private final long created = System.currentTimeMillis();
+	private final long[] stageStart = new long[Status.values().length]; // System.nanoTime() when the state was entered
+	private final AtomicInteger pendingChunks = new AtomicInteger(0);
+	private volatile Status status = Status.QUEUED;
+	private volatile boolean splitFinished = false;
+	private volatile long size = 0;
+	private final AtomicLong deduplicated = new AtomicLong(0);
+	private volatile String error = null;
+	private FileManifest manifest = null;
+	private User user = null;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private volatile boolean completed = false;
+	
+	/**
+	 * Creates a new job in state <code>QUEUED</code>.
+	 * 
+	 * @param id ID of the job
+	 * @param owner name of the user who requested the job
+	 * @param filename name of the stored file
+	 */
+	StorageJob(long id, String owner, String filename){
+		this.id = id;
+		this.owner = owner;
+		this.filename = filename;
+		stageStart[Status.QUEUED.ordinal()] = System.nanoTime();
+	}
+	
+	/**
+	 * Switches to the given state. Finished jobs can not change their state anymore.
+	 * 
+	 * @param next new state
+	 * @return <code>true</code> if the state was changed
+	 */
+	boolean setStatus(Status next){
+		synchronized(this){
+			if(!changeStatus(next)){
+				return false;
+			}
+		}
+		
+		if(next != Status.DONE && next != Status.FAILED){
+			for(Listener l: listeners){
+				inform(l);
+			}
+		}
+		return true;
+	}
+	
+	private boolean changeStatus(Status next){
+		if(isFinished() || next.ordinal() <= status.ordinal()){
+			return false;
+		}
+		
+		stageStart[next.ordinal()] = System.nanoTime();
+		status = next;
+		return true;
+	}
+	
+	/**
+	 * Marks that the storage manager finished the job and informs the listeners about the final
+	 * state. Listeners are removed afterwards.
+	 */
+	void completed(){
+		completed = true;
+		for(Listener l: listeners){
+			if(listeners.remove(l)){ // only once, also if a listener is added at the same time
+				inform(l);
+			}
+		}
+	}
+	
+	/**
+	 * Adds a listener for state changes. If the job is already completed the listener is
+	 * called at once.
+	 * 
+	 * @param l the listener
+	 */
+	public void addListener(Listener l){
+		listeners.add(l);
+		if(completed && listeners.remove(l)){
+			inform(l);
+		}
+	}
+	
+	/**
+	 * Removes a listener.
+	 * 
+	 * @param l the listener
+	 */
+	public void removeListener(Listener l){
+		listeners.remove(l);
+	}
+	
+	private void inform(Listener l){
+		try{
+			l.statusChanged(this);
+		}catch(RuntimeException e){
+			Logger.getLogger(LOGGER_NAME).warning("Listener of job "+id+" failed: "+e);
+		}
+	}
+	
+	/**
+	 * Marks that a chunk was handed over for saving.
+	 */
+	void chunkQueued(){
+		pendingChunks.incrementAndGet();
+	}
+	
+	/**
+	 * Marks that a chunk was saved.
+	 * 
+	 * @return <code>true</code> if this finished the job
+	 */
+	boolean chunkStored(){
+		if(pendingChunks.decrementAndGet() == 0 && splitFinished){
+			return setStatus(Status.DONE);
+		}
+		return false;
+	}
+	
+	/**
+	 * Marks that the whole file was read and split.
+	 * 
+	 * @param size size of the file in bytes
+	 * @return <code>true</code> if this finished the job (no chunks pending)
+	 */
+	boolean splitFinished(long size){
+		this.size = size;
+		setStatus(Status.UPLOADING);
+		splitFinished = true;
+		if(pendingChunks.get() == 0){
+			return setStatus(Status.DONE);
+		}
+		return false;
+	}
+	
+	/**
+	 * Records bytes that did not have to be uploaded because a location already had them.
+	 */
+	void addDeduplicated(long bytes){
+		deduplicated.addAndGet(bytes);
+	}
+	
+	/**
+	 * Lets the job fail.
+	 * 
+	 * @param reason description of the error
+	 * @return <code>true</code> if this finished the job
+	 */
+	synchronized boolean fail(String reason){
+		if(isFinished()){
+			return false;
+		}
+		error = reason;
+		return changeStatus(Status.FAILED);
+	}
+	
+	/**
+	 * @return manifest of the stored file
+	 */
+	FileManifest getManifest() {
+		return manifest;
+	}
+	
+	/**
+	 * Sets the manifest of the stored file.
+	 */
+	void setManifest(FileManifest manifest) {
+		this.manifest = manifest;
+	}
+	
+	/**
+	 * @return user whose credentials the chunks are written with
+	 */
+	User getUser() {
+		return user;
+	}
+	
+	/**
+	 * Sets the user whose credentials the chunks are written with.
+	 */
+	void setUser(User user) {
+		this.user = user;
+	}
+	
+	/**
+	 * @return ID of the job
+	 */
+	public long getId() {
+		return id;
+	}
+	
+	/**
+	 * @return name of the user who requested the job
+	 */
+	public String getOwner() {
+		return owner;
+	}
+	
+	/**
+	 * @return name of the stored file
+	 */
+	public String getFilename() {
+		return filename;
+	}
+	
+	/**
+	 * @return time the job was created (milliseconds since epoch)
+	 */
+	public long getCreated() {
+		return created;
+	}
+	
+	/**
+	 * @return current state of the job
+	 */
+	public Status getStatus() {
+		return status;
+	}
+	
+	/**
+	 * @return <code>true</code> if the job is either done or failed
+	 */
+	public boolean isFinished(){
+		return status == Status.DONE || status == Status.FAILED;
+	}
+	
+	/**
+	 * @return <code>true</code> if the job is finished and the storage manager is done with it
+	 *         (the file of a successful job is visible)
+	 */
+	public boolean isCompleted(){
+		return completed;
+	}
+	
+	/**
+	 * @return size of the file in bytes (only known after it was split completely)
+	 */
+	public long getSize() {
+		return size;
+	}
+	
+	/**
+	 * @return number of bytes that were not uploaded because of deduplication
+	 */
+	public long getDeduplicated() {
+		return deduplicated.get();
+	}
+	
+	/**
+	 * @return description of the error in case the job failed or <code>null</code>
+	 */
+	public String getError() {
+		return error;
+	}
+	
+	/**
+	 * Gives the time the job spent in the given state. If the job is still in this state the time
+	 * until now is returned.
+	 * 
+	 * @param s state
+	 * @return time in milliseconds or <code>-1</code> if the job never was in this state
+	 */
+	public synchronized long getStageTime(Status s){
+		long start = stageStart[s.ordinal()];
+		if(start == 0 || s == Status.DONE || s == Status.FAILED){
+			return -1;
+		}
+		
+		// the stage ends when the next reached stage starts
+		long end = 0;
+		for(int i=s.ordinal()+1; i<stageStart.length; ++i){
+			if(stageStart[i] != 0){
+				end = stageStart[i];
+				break;
+			}
+		}
+		if(end == 0){
+			end = System.nanoTime();
+		}
+		
+		return (end - start) / 1000000;
+	}
+	
+	/**
+	 * @return time from creation until the job finished (or until now) in milliseconds
+	 */
+	public synchronized long getTotalTime(){
+		long end = 0;
+		if(status == Status.DONE || status == Status.FAILED){
+			end = stageStart[status.ordinal()];
+		}else{
+			end = System.nanoTime();
+		}
+		return (end - stageStart[Status.QUEUED.ordinal()]) / 1000000;
+	}
 }
@@ -0,0 +1,88 @@
+package org.komorebi.core.storeengine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.komorebi.core.plugin.PluginManager;
+import org.komorebi.core.plugin.PluginManager.PluginType;
+import org.komorebi.core.security.User;
+import org.komorebi.plugin.IKomorebiPlugin;
+
+/**
+ * Resolves the storage locations of a user to the storage PlugIns that serve them.
+ * 
+ * A location uses the PlugIn that is named in its credential <code>plugin</code>. If this
+ * credential is not set the name of the location is taken as name of the PlugIn.
+ * 
+ * @author lycis
+ *
+ */
+public class StorageLocations {
+	/**
+	 * Credential key that names the PlugIn of a location.
+	 */
+	public static final String PLUGIN_KEY = "plugin";
+	
+	private StorageLocations(){
+	}
+	
+	/**
+	 * Gives the name of the PlugIn that serves a location.
+	 * 
+	 * @param user owner of the location
+	 * @param location name of the location
+	 * @return name of the storage PlugIn
+	 */
+	public static String getPluginName(User user, String location){
+		String plugin = null;
+		if(user.getCredentials(location) != null){
+			plugin = user.getCredentialValue(location, PLUGIN_KEY);
+		}
+		return plugin != null ? plugin : location;
+	}
+	
+	/**
+	 * Gives the chunk storage of a PlugIn from its pool. It has to be given back with
+	 * {@link #releaseStorage(String, IChunkStorage, boolean)} after use.
+	 * 
+	 * @param plugin name of the storage PlugIn
+	 * @return the PlugIn or <code>null</code> if it does not exist, does not support chunks or no instance is available
+	 */
+	public static IChunkStorage acquireStorage(String plugin){
+		IKomorebiPlugin pi = PluginManager.acquirePlugin(PluginType.STORAGE, plugin);
+		if(!(pi instanceof IChunkStorage)){
+			PluginManager.releasePlugin(PluginType.STORAGE, plugin, pi, false);
+			return null;
+		}
+		return (IChunkStorage) pi;
+	}
+	
+	/**
+	 * Gives back a chunk storage that was acquired.
+	 * 
+	 * @param plugin name of the storage PlugIn
+	 * @param storage the chunk storage
+	 * @param failed <code>true</code> if the storage failed, it is not reused then
+	 */
+	public static void releaseStorage(String plugin, IChunkStorage storage, boolean failed){
+		PluginManager.releasePlugin(PluginType.STORAGE, plugin, (IKomorebiPlugin) storage, failed);
+	}
+	
+	/**
+	 * Gives all locations of a user that can store chunks in a stable order.
+	 * 
+	 * @param user user
+	 * @return names of the usable locations
+	 */
+	public static List<String> getLocations(User user){
+		List<String> locations = new ArrayList<String>();
+		for(String location: user.getLocations()){
+			if(PluginManager.resolveName(PluginType.STORAGE, getPluginName(user, location)) != null){
+				locations.add(location);
+			}
+		}
+		Collections.sort(locations);
+		return locations;
+	}
+}
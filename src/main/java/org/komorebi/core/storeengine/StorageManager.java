@@ -1,11 +1,43 @@
 package org.komorebi.core.storeengine;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import javax.ws.rs.core.StreamingOutput;
+
+import org.komorebi.core.configuration.ConfigListener;
+import org.komorebi.core.configuration.ConfigSnapshot;
 import org.komorebi.core.configuration.KomorebiCoreConfig;
 import org.komorebi.core.security.User;
 
@@ -18,10 +50,38 @@ import org.komorebi.core.security.User;
  * that each storage request will be accepted and processed but this won't happen instantly. 
  * The status of each storage request can be polled by using the returned request number.
  * Files will be queued for saving when there are not enough resources available and then be
- * processed as soon as resources are available again.
+ * processed as soon as resources are available again. The number of active jobs is limited 
+ * (<code>storage.queueSize</code>), further requests are rejected with a hint when to retry.
+ * 
+ * Chunks are either replicated to <code>storage.replicas</code> locations or, when 
+ * <code>storage.placement</code> is set to <code>erasure</code>, grouped into stripes of 
+ * <code>k</code> chunks that get <code>m</code> Reed-Solomon parity shards. Every shard of
+ * a stripe goes to a different location so a file survives the loss of any <code>m</code>
+ * locations.
+ * 
+ * Files can be split at fixed offsets or at content defined cut points. With deduplication
+ * enabled replicated chunks are saved under an ID derived from their content and are only
+ * uploaded to locations that do not hold them yet (also across users).
+ * 
+ * Read access to files is granted synchronously as this needs to be done faster. The chunks
+ * of a file are fetched in parallel by the read threads (<code>storage.readThreads</code>) and
+ * streamed to the client in order. Every download fetches up to <code>storage.readahead</code>
+ * chunks ahead of the one that is being sent. Reads of replicated chunks are hedged: if a location
+ * is slower than the <code>storage.hedge.percentile</code> of the latencies recently seen for its
+ * PlugIn, the chunk is requested from the next replica as well. Chunks that were read are kept
+ * in a local cache of <code>storage.cache.size</code> bytes (<code>0</code> disables the cache).
+ * 
+ * The chunks of failed jobs and of files that were replaced by a new upload are deleted from their
+ * locations in the background. Deduplicated chunks are only deleted from a location when no other
+ * file references them there. Downloads of a replaced file that are still running may fail.
  * 
- * Read access to files will be ranted synchronously as this needs to be done faster.
- * TODO flash this out
+ * The register of stored files (their manifests) and the deduplication index are only kept in
+ * memory. Files that were stored before a restart can not be read afterwards and their chunks
+ * stay at the locations.
+ * 
+ * The number of storage and read threads, the job slots, the readahead, the number of replicas,
+ * the job retention time and the size of the chunk cache follow changes of the configuration
+ * while the server is running. All other settings are applied on restart.
  * 
  * This part of the code will be highly multi-threaded.
  * 
@@ -31,47 +91,350 @@ import org.komorebi.core.security.User;
 public class StorageManager {
 	// constants
 	private static final String LOGGER_NAME = "storagemanager";
+	private static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024; // 4 MiB
+	private static final int DEFAULT_QUEUE_SIZE = 64;
+	private static final int RETENTION_WHEEL_SLOTS = 512; // one slot per second
+	private static final int DEFAULT_LOCATION_THREADS = 4;
+	private static final int DEFAULT_BATCH_CHUNKS = 32;
+	private static final int DEFAULT_BATCH_THREADS = 1;
+	private static final int DEFAULT_READAHEAD = 4;
+	private static final Set<String> LIVE_KEYS = new HashSet<String>(Arrays.asList(
+			"storage.threads", "storage.readThreads", "storage.queueSize", "storage.readahead", "storage.replicas",
+			"storage.retentionTime", "storage.retentionTime[@unit]", "storage.cache.size"));
 	
 	// singleton (again)
 	private static StorageManager instance = new StorageManager();
 	
 	// private members
 	private int threadCounter = 0;
-	private ExecutorService executor = null;
-	private int jobRetentionTime = 0;
-	private Map<Long, StorageJob> jobRegister = null;
+	private ThreadPoolExecutor executor = null;
+	private volatile int jobRetentionTime = 0; // seconds
+	private ConcurrentMap<Long, StorageJob> jobRegister = null;
+	private AtomicLong jobIdCounter = new AtomicLong(0);
+	private TimingWheel retentionWheel = null;
+	private ChunkBufferPool bufferPool = null;
+	private volatile int maxActiveJobs = 0;
+	private AtomicInteger activeJobs = new AtomicInteger(0);
+	private volatile long averageJobTime = 0; // moving average of the job duration in milliseconds
+	private ScatterEngine scatterEngine = null;
+	private volatile int replicas = 1;
+	private ReedSolomon erasureCoder = null; // null if chunks are replicated
+	private ChunkBufferPool parityPool = null;
+	private Semaphore stripeSlots = null;
+	private boolean contentDefinedChunking = false;
+	private int averageChunkSize = 0;
+	private DedupIndex dedupIndex = null; // null if deduplication is disabled
+	private ConcurrentMap<String, Integer> locationRefs = new ConcurrentHashMap<String, Integer>();
+	private AtomicInteger locationRefCounter = new AtomicInteger(0);
+	private ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>(){
+		@Override
+		protected MessageDigest initialValue() {
+			try{
+				return MessageDigest.getInstance("SHA-256");
+			}catch(NoSuchAlgorithmException e){
+				throw new IllegalStateException("SHA-256 is not supported by the JVM", e);
+			}
+		}
+	};
+	private ThreadPoolExecutor readExecutor = null;
+	private volatile int readahead = DEFAULT_READAHEAD;
+	private HedgedReader hedgedReader = null;
+	private ChunkCache chunkCache = null; // null if there is no cache
+	private ConcurrentMap<String, FileManifest> files = new ConcurrentHashMap<String, FileManifest>();
+	private ThreadPoolExecutor cleanupExecutor = null;
+	private int maxBatchChunks = 1;
 	
 	/**
 	 * Creates and initialises the store manager. This constructor is called
 	 * on first access.
 	 */
 	private StorageManager(){
-		KomorebiCoreConfig config = new KomorebiCoreConfig();
-		threadCounter = config.getInt("storage.threads");
-		try{
-			executor = Executors.newFixedThreadPool(threadCounter);
-			Logger.getLogger(LOGGER_NAME).warning("Storage Manager initialised with "+threadCounter+" threads.");
-		}catch(IllegalArgumentException e){
+		ConfigSnapshot config = KomorebiCoreConfig.getSnapshot();
+		threadCounter = config.getInt("storage.threads", 1);
+		if(threadCounter <= 0){
 			Logger.getLogger(LOGGER_NAME).warning("Invalid thread count for storage jobs were given. Assuming 1 as default.");
 			threadCounter = 1;
-			executor = Executors.newFixedThreadPool(threadCounter);
 		}
 		
-		jobRetentionTime = config.getInt("storage.retentionTime");
+		jobRetentionTime = getRetentionTime(config);
+		
+		maxActiveJobs = config.getInt("storage.queueSize", DEFAULT_QUEUE_SIZE);
+		if(maxActiveJobs <= 0){
+			Logger.getLogger(LOGGER_NAME).warning("Invalid queue size for storage jobs was given. Assuming "+DEFAULT_QUEUE_SIZE+" as default.");
+			maxActiveJobs = DEFAULT_QUEUE_SIZE;
+		}
+		
+		jobRegister = new ConcurrentHashMap<Long, StorageJob>(maxActiveJobs * 4, 0.75f, threadCounter * 4);
+		
+		// records of finished jobs are purged after the retention time
+		retentionWheel = new TimingWheel("storage-retention", RETENTION_WHEEL_SLOTS, 1000, new TimingWheel.ExpiryHandler() {
+			public void expired(long id) {
+				jobRegister.remove(id);
+			}
+		});
+		
+		// chunk buffers - the pipeline depth limits how many chunks of all uploads may be in memory
+		int chunkSize = config.getInt("storage.chunkSize", DEFAULT_CHUNK_SIZE);
+		if(chunkSize <= 0){
+			Logger.getLogger(LOGGER_NAME).warning("Invalid chunk size was given. Assuming "+DEFAULT_CHUNK_SIZE+" bytes as default.");
+			chunkSize = DEFAULT_CHUNK_SIZE;
+		}
+		
+		int pipelineDepth = config.getInt("storage.pipelineDepth", threadCounter * 2);
+		if(pipelineDepth < threadCounter){
+			Logger.getLogger(LOGGER_NAME).warning("Pipeline depth is lower than the number of storage threads. Assuming "+(threadCounter*2)+" as default.");
+			pipelineDepth = threadCounter * 2;
+		}
+		
+		// content defined chunking (the chunk size becomes the maximum size)
+		String chunking = config.getString("storage.chunking", "fixed");
+		if("cdc".equals(chunking)){
+			contentDefinedChunking = true;
+			averageChunkSize = config.getInt("storage.chunkAverage", chunkSize / 4);
+			if(averageChunkSize <= 0 || averageChunkSize > chunkSize){
+				Logger.getLogger(LOGGER_NAME).warning("Invalid average chunk size was given. Assuming "+(chunkSize/4)+" bytes as default.");
+				averageChunkSize = chunkSize / 4;
+			}
+			
+			Logger.getLogger(LOGGER_NAME).info("Content defined chunking with an average chunk size of "+averageChunkSize+" bytes.");
+		}else if(!"fixed".equals(chunking)){
+			Logger.getLogger(LOGGER_NAME).warning("Unknown chunking '"+chunking+"'. Using fixed size chunks instead.");
+		}
+		
+		if(config.getBoolean("storage.deduplicate", false)){
+			dedupIndex = new DedupIndex(config.getInt("storage.deduplicateExpected", 1 << 16));
+			Logger.getLogger(LOGGER_NAME).info("Chunks are deduplicated.");
+		}
+		
+		bufferPool = new ChunkBufferPool(chunkSize, pipelineDepth);
+		Logger.getLogger(LOGGER_NAME).info("Storage chunks are "+chunkSize+" bytes with a pipeline depth of "+pipelineDepth+".");
+		
+		// scattering
+		int locationThreads = config.getInt("storage.locationThreads", DEFAULT_LOCATION_THREADS);
+		if(locationThreads <= 0){
+			Logger.getLogger(LOGGER_NAME).warning("Invalid thread count per storage location was given. Assuming "+DEFAULT_LOCATION_THREADS+" as default.");
+			locationThreads = DEFAULT_LOCATION_THREADS;
+		}
+		int batchChunks = config.getInt("storage.batch.maxChunks", DEFAULT_BATCH_CHUNKS);
+		long batchBytes = config.getLong("storage.batch.maxBytes", (long) Math.max(1, batchChunks) * chunkSize);
+		int batchThreads = config.getInt("storage.batch.laneThreads", DEFAULT_BATCH_THREADS);
+		if(batchThreads <= 0){
+			Logger.getLogger(LOGGER_NAME).warning("Invalid thread count per batched location was given. Assuming "+DEFAULT_BATCH_THREADS+" as default.");
+			batchThreads = DEFAULT_BATCH_THREADS;
+		}
+		scatterEngine = new ScatterEngine(locationThreads, batchThreads, batchChunks, batchBytes);
+		maxBatchChunks = Math.max(1, batchChunks);
+		if(batchChunks > 1){
+			// a batch can not hold more chunks than the pipeline
+			Logger.getLogger(LOGGER_NAME).info("Chunks are written in batches of up to "+Math.min(batchChunks, pipelineDepth)+" chunks and "+batchBytes+" bytes with "+batchThreads+" thread(s) per location.");
+		}
+		
+		replicas = config.getInt("storage.replicas", 1);
+		if(replicas <= 0){
+			Logger.getLogger(LOGGER_NAME).warning("Invalid number of replicas was given. Assuming 1 as default.");
+			replicas = 1;
+		}
+		
+		// erasure coding
+		String placement = config.getString("storage.placement", "replicate");
+		if("erasure".equals(placement)){
+			int k = config.getInt("storage.erasure.data", 4);
+			int m = config.getInt("storage.erasure.parity", 2);
+			if(k <= 0 || m <= 0 || k + m > 256){
+				Logger.getLogger(LOGGER_NAME).warning("Invalid erasure coding parameters ("+k+"+"+m+") were given. Using replication instead.");
+			}else{
+				erasureCoder = new ReedSolomon(k, m);
+				
+				// every stripe that is being written holds m parity buffers
+				int slots = Math.max(1, pipelineDepth / k);
+				parityPool = new ChunkBufferPool(chunkSize, slots * m);
+				stripeSlots = new Semaphore(slots);
+				Logger.getLogger(LOGGER_NAME).info("Storing files erasure coded with "+k+" data and "+m+" parity shards per stripe.");
+			}
+		}else if(!"replicate".equals(placement)){
+			Logger.getLogger(LOGGER_NAME).warning("Unknown placement '"+placement+"'. Using replication instead.");
+		}
+		
+		// reading
+		int readThreads = config.getInt("storage.readThreads", threadCounter * 4);
+		if(readThreads <= 0){
+			Logger.getLogger(LOGGER_NAME).warning("Invalid thread count for reading was given. Assuming "+(threadCounter*4)+" as default.");
+			readThreads = threadCounter * 4;
+		}
+		
+		readahead = config.getInt("storage.readahead", DEFAULT_READAHEAD);
+		if(readahead <= 0){
+			Logger.getLogger(LOGGER_NAME).warning("Invalid readahead was given. Assuming "+DEFAULT_READAHEAD+" chunks as default.");
+			readahead = DEFAULT_READAHEAD;
+		}
+		
+		// the readahead window of each download bounds the queue
+		readExecutor = new ThreadPoolExecutor(readThreads, readThreads, 30, TimeUnit.SECONDS, 
+		                                      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+			
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "storage-read-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		readExecutor.allowCoreThreadTimeOut(true);
+		
+		// hedged requests - every read thread runs at most one request per replica
+		double hedgePercentile = config.getDouble("storage.hedge.percentile", 95);
+		if(hedgePercentile < 0 || hedgePercentile >= 100){
+			Logger.getLogger(LOGGER_NAME).warning("Invalid hedging percentile was given. Assuming 95 as default.");
+			hedgePercentile = 95;
+		}
+		ThreadPoolExecutor fetchExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, 
+		                                                          new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+			
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "storage-fetch-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// local chunk cache
+		long cacheSize = config.getLong("storage.cache.size", 0);
+		ThreadPoolExecutor cacheWriter = null;
+		if(cacheSize > 0){
+			String cacheDirectory = config.getString("storage.cache.directory", "cache");
+			try{
+				chunkCache = new ChunkCache(Paths.get(cacheDirectory), cacheSize, contentDefinedChunking ? averageChunkSize : chunkSize);
+				
+				// chunks are added in the background, if the writer falls behind they are skipped
+				cacheWriter = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(pipelineDepth), 
+				                                     new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "storage-cache");
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.DiscardPolicy());
+				Logger.getLogger(LOGGER_NAME).info("Chunks are cached in '"+cacheDirectory+"' ("+cacheSize+" bytes).");
+			}catch(IOException e){
+				Logger.getLogger(LOGGER_NAME).warning("Chunk cache directory '"+cacheDirectory+"' is not usable, chunks will not be cached: "+e.getMessage());
+				chunkCache = null;
+			}
+		}
+		
+		hedgedReader = new HedgedReader(fetchExecutor, hedgePercentile, 
+		                                config.getLong("storage.hedge.minDelay", 5), config.getLong("storage.hedge.maxDelay", 1000), 
+		                                chunkCache, cacheWriter);
+		
+		// chunks that are not referenced any more are deleted one location after the other
+		cleanupExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "storage-cleanup");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		cleanupExecutor.allowCoreThreadTimeOut(true);
+		
+		// every queued chunk holds a pooled buffer so the work queue never needs to be larger than the pool
+		executor = new ThreadPoolExecutor(threadCounter, threadCounter, 0L, TimeUnit.MILLISECONDS, 
+		                                  new ArrayBlockingQueue<Runnable>(pipelineDepth));
+		Logger.getLogger(LOGGER_NAME).info("Storage Manager initialised with "+threadCounter+" threads and "+maxActiveJobs+" job slots.");
+		
+		KomorebiCoreConfig.addListener(new ConfigListener() {
+			public void configChanged(ConfigSnapshot previous, ConfigSnapshot current, Set<String> changedKeys) {
+				applyConfig(current, changedKeys);
+			}
+		});
+	}
+	
+	/**
+	 * Reads the retention time of finished jobs.
+	 * 
+	 * @return retention time in seconds
+	 */
+	private static int getRetentionTime(ConfigSnapshot config){
+		int retention = config.getInt("storage.retentionTime", 5);
 		String retentionUnit = config.getString("storage.retentionTime[@unit]");
 		if(retentionUnit == null || "minutes".equals(retentionUnit)){
-			jobRetentionTime *= 60;
+			retention *= 60;
 		}else if("seconds".equals(retentionUnit)){
 			// do nothing
 		}else if("hours".equals(retentionUnit)){
-			jobRetentionTime *= 3600;
+			retention *= 3600;
 		}
 		
-		if(jobRetentionTime <= 0){
+		if(retention <= 0){
 			Logger.getLogger(LOGGER_NAME).warning("Invalid retention time for storage jobs were given. Assuming 5 minutes as default.");
-			jobRetentionTime = 300;
+			retention = 300;
+		}else{
+			Logger.getLogger(LOGGER_NAME).warning("Retention time for storage jobs set to "+retention+" seconds.");
+		}
+		return retention;
+	}
+	
+	/**
+	 * Applies changed settings while the server is running. Invalid values are ignored.
+	 */
+	private void applyConfig(ConfigSnapshot config, Set<String> changed){
+		if(changed.contains("storage.threads")){
+			int threads = config.getInt("storage.threads", threadCounter);
+			if(threads > 0){
+				resize(executor, threads);
+				threadCounter = threads;
+				Logger.getLogger(LOGGER_NAME).info("Storage threads set to "+threads+".");
+			}
+		}
+		
+		if(changed.contains("storage.readThreads")){
+			int threads = config.getInt("storage.readThreads", 0);
+			if(threads > 0){
+				resize(readExecutor, threads);
+				Logger.getLogger(LOGGER_NAME).info("Read threads set to "+threads+".");
+			}
+		}
+		
+		if(changed.contains("storage.queueSize")){
+			int slots = config.getInt("storage.queueSize", 0);
+			if(slots > 0){
+				maxActiveJobs = slots; // running jobs are not affected
+				Logger.getLogger(LOGGER_NAME).info("Storage job slots set to "+slots+".");
+			}
+		}
+		
+		if(changed.contains("storage.readahead") && config.getInt("storage.readahead", 0) > 0){
+			readahead = config.getInt("storage.readahead", 0);
+		}
+		
+		if(changed.contains("storage.replicas") && config.getInt("storage.replicas", 0) > 0){
+			replicas = config.getInt("storage.replicas", 0);
+		}
+		
+		if(changed.contains("storage.retentionTime") || changed.contains("storage.retentionTime[@unit]")){
+			jobRetentionTime = getRetentionTime(config);
+		}
+		
+		if(changed.contains("storage.cache.size") && chunkCache != null && config.getLong("storage.cache.size", 0) > 0){
+			chunkCache.setCapacity(config.getLong("storage.cache.size", 0));
+			Logger.getLogger(LOGGER_NAME).info("Chunk cache size set to "+chunkCache.getCapacity()+" bytes.");
+		}
+		
+		for(String key: changed){
+			if(key.startsWith("storage.") && !LIVE_KEYS.contains(key)){
+				Logger.getLogger(LOGGER_NAME).info("Changed setting '"+key+"' is applied on restart.");
+			}
+		}
+	}
+	
+	/**
+	 * Changes the number of threads of a pool. Surplus threads end when they are idle.
+	 */
+	private static void resize(ThreadPoolExecutor pool, int threads){
+		if(threads > pool.getMaximumPoolSize()){
+			pool.setMaximumPoolSize(threads);
+			pool.setCorePoolSize(threads);
 		}else{
-			Logger.getLogger(LOGGER_NAME).warning("Retention time for storage jobs set to "+jobRetentionTime+" seconds.");
+			pool.setCorePoolSize(threads);
+			pool.setMaximumPoolSize(threads);
 		}
 	}
 	
@@ -84,24 +447,644 @@ public class StorageManager {
 	 * @param filename name of the file (absolute path within the storage)
 	 * @param data this array contains the whole data of the file
 	 * @return ID of the storage job (can be used for polling the status) 
+	 * @throws IOException when the data could not be split into chunks
+	 * @throws StorageBusyException when no further jobs can be accepted at the moment
+	 */
+	public static long storeFile(User user, String filename, byte[] data) throws IOException, StorageBusyException{
+		return storeFile(user, filename, new ByteArrayInputStream(data));
+	}
+	
+	/**
+	 * Stores a file that is read from a stream. The stream is split into chunks while it is read
+	 * so the file never has to be held in memory as a whole. This method returns as soon as the
+	 * stream was read completely, the chunks are then saved asynchronously.
+	 * 
+	 * When all chunk buffers are in use the reading blocks until the storage threads have caught
+	 * up. The stream will not be closed.
+	 * 
+	 * @param user the user who wishes to store a file
+	 * @param filename name of the file (absolute path within the storage)
+	 * @param data stream that provides the file data
+	 * @return ID of the storage job (can be used for polling the status) 
+	 * @throws IOException when reading the stream failed
+	 * @throws StorageBusyException when no further jobs can be accepted at the moment
+	 */
+	public static long storeFile(User user, String filename, InputStream data) throws IOException, StorageBusyException{
+		return storeFile(user, filename, Channels.newChannel(data));
+	}
+	
+	/**
+	 * Stores a file that is read from a channel. See {@link #storeFile(User, String, InputStream)}.
+	 * 
+	 * @param user the user who wishes to store a file
+	 * @param filename name of the file (absolute path within the storage)
+	 * @param data channel that provides the file data
+	 * @return ID of the storage job (can be used for polling the status) 
+	 * @throws IOException when reading the channel failed
+	 * @throws StorageBusyException when no further jobs can be accepted at the moment
+	 * @throws IllegalStateException when the user has not enough usable storage locations
+	 */
+	public static long storeFile(User user, String filename, ReadableByteChannel data) throws IOException, StorageBusyException{
+		List<String> locations = StorageLocations.getLocations(user);
+		if(locations.isEmpty()){
+			throw new IllegalStateException("user '"+user.getName()+"' has no usable storage location");
+		}
+		
+		ReedSolomon coder = instance.erasureCoder;
+		if(coder != null && locations.size() < coder.getDataShards() + coder.getParityShards()){
+			throw new IllegalStateException("erasure coding needs "+(coder.getDataShards() + coder.getParityShards())+
+			                                " storage locations but user '"+user.getName()+"' has only "+locations.size());
+		}
+		
+		StorageJob job = instance.createJob(user, filename);
+		
+		ChunkSplitter splitter = null;
+		if(instance.contentDefinedChunking){
+			splitter = new ContentDefinedSplitter(data, instance.bufferPool, instance.averageChunkSize);
+		}else{
+			splitter = new ChunkSplitter(data, instance.bufferPool);
+		}
+		Stripe stripe = null;
+		int index = 0;
+		try{
+			job.setStatus(StorageJob.Status.SPLITTING);
+			for(;;){
+				// the parity buffers of a stripe are taken before its first chunk is read
+				if(coder != null && index % coder.getDataShards() == 0){
+					stripe = instance.openStripe(index / coder.getDataShards());
+				}
+				
+				Chunk chunk = splitter.next();
+				if(chunk == null){
+					break;
+				}
+				
+				job.chunkQueued();
+				try{
+					instance.executor.execute(instance.new ChunkStoreTask(user, job, locations, chunk, stripe));
+				}catch(RejectedExecutionException e){
+					chunk.release();
+					throw new IOException("chunk could not be queued");
+				}
+				++index;
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			instance.failJob(job, "interrupted while splitting");
+			instance.closeStripe(user, job, locations, stripe, index);
+			throw new IOException("Storing of '"+filename+"' was interrupted");
+		}catch(IOException e){
+			instance.failJob(job, e.getMessage());
+			instance.closeStripe(user, job, locations, stripe, index);
+			throw e;
+		}
+		
+		instance.closeStripe(user, job, locations, stripe, index);
+		job.getManifest().setSize(splitter.getPosition());
+		if(job.splitFinished(splitter.getPosition())){
+			instance.jobFinished(job);
+		}
+		
+		Logger.getLogger(LOGGER_NAME).fine("Job "+job.getId()+": read "+splitter.getPosition()+" bytes of '"+filename+"'");
+		return job.getId();
+	}
+	
+	/**
+	 * Gives the manifest of a stored file. Files are only visible after their storage job
+	 * was finished successfully.
+	 * 
+	 * @param user owner of the file
+	 * @param filename name of the file
+	 * @return the manifest or <code>null</code> if there is no such file
+	 */
+	public static FileManifest getManifest(User user, String filename){
+		return instance.files.get(fileKey(user.getName(), filename));
+	}
+	
+	/**
+	 * Reads a stored file. The returned output fetches the chunks of the file in parallel
+	 * from their locations when it is written and sends them in order. The first bytes are
+	 * sent as soon as the first chunk was read. Chunks of erasure coded files that can not be
+	 * read are restored from the parity of their stripe.
+	 * 
+	 * @param user owner of the file
+	 * @param filename name of the file
+	 * @return output that writes the content of the file
+	 * @throws FileNotFoundException if the user has no such file
+	 */
+	public static StreamingOutput readFile(User user, String filename) throws FileNotFoundException{
+		FileManifest manifest = getManifest(user, filename);
+		if(manifest == null){
+			throw new FileNotFoundException("user '"+user.getName()+"' has no file '"+filename+"'");
+		}
+		
+		ReedSolomon coder = null;
+		if(manifest.isErasureCoded()){
+			coder = instance.erasureCoder;
+			if(coder == null || coder.getDataShards() != manifest.getDataShards() 
+			   || coder.getParityShards() != manifest.getParityShards()){
+				// stored with a different configuration
+				coder = new ReedSolomon(manifest.getDataShards(), manifest.getParityShards());
+			}
+		}
+		
+		int window = instance.readahead;
+		if(coder != null){
+			window = Math.max(1, window / coder.getDataShards());
+		}
+		return new ReadaheadStream(user, manifest, coder, instance.hedgedReader, instance.readExecutor, window);
+	}
+	
+	/**
+	 * Gives the local chunk cache.
+	 * 
+	 * @return the cache or <code>null</code> if chunks are not cached
+	 */
+	public static ChunkCache getChunkCache(){
+		return instance.chunkCache;
+	}
+	
+	/**
+	 * Gives the key of a file in the file register.
+	 */
+	private static String fileKey(String owner, String filename){
+		return owner+"/"+filename;
+	}
+	
+	/**
+	 * Gives the job with the given ID.
+	 * 
+	 * @param id ID of the job
+	 * @return the job or <code>null</code> if there is no such job
 	 */
-	public static long storeFile(User user, String filename, byte[] data){
-		// TODO implement
-		return instance.nextJobId();
+	public static StorageJob getJob(long id){
+		return instance.jobRegister.get(id);
 	}
 	
 	/**
-	 * Gives the ID for the next job.
-	 * @return next free job id or -1 in case all ids are taken
+	 * Creates and registers a new job if there is a free job slot.
 	 */
-	synchronized private long nextJobId(){
-		Set<Long> takenIds = jobRegister.keySet();
-		for(long l=0; l<Long.MAX_VALUE; ++l){
-			if(!takenIds.contains(l)){
-				return l;
+	private StorageJob createJob(User user, String filename) throws StorageBusyException{
+		for(;;){
+			int active = activeJobs.get();
+			if(active >= maxActiveJobs){
+				throw new StorageBusyException(estimateRetryAfter());
 			}
+			if(activeJobs.compareAndSet(active, active+1)){
+				break;
+			}
+		}
+		
+		StorageJob job = new StorageJob(nextJobId(), user.getName(), filename);
+		job.setUser(user);
+		if(erasureCoder != null){
+			job.setManifest(new FileManifest(user.getName(), filename, erasureCoder.getDataShards(), erasureCoder.getParityShards()));
+		}else{
+			job.setManifest(new FileManifest(user.getName(), filename, 1, 0));
+		}
+		jobRegister.put(job.getId(), job);
+		return job;
+	}
+	
+	/**
+	 * Lets a job fail and frees its slot.
+	 */
+	private void failJob(StorageJob job, String reason){
+		if(job.fail(reason)){
+			Logger.getLogger(LOGGER_NAME).warning("Job "+job.getId()+" failed: "+reason);
+			jobFinished(job);
+		}
+	}
+	
+	/**
+	 * Frees the slot of a finished job and schedules the removal of its record. The file of
+	 * a successful job becomes visible and replaces the file with the same name, whose chunks
+	 * are removed. The chunks of a failed job are removed, chunks that are written later are
+	 * removed by their tasks.
+	 */
+	private void jobFinished(StorageJob job){
+		if(job.getStatus() == StorageJob.Status.DONE){
+			FileManifest replaced = files.put(fileKey(job.getOwner(), job.getFilename()), job.getManifest());
+			if(replaced != null){
+				removeChunks(job.getUser(), replaced.discard());
+			}
+		}else{
+			removeChunks(job.getUser(), job.getManifest().discard());
+		}
+		
+		activeJobs.decrementAndGet();
+		retentionWheel.schedule(job.getId(), jobRetentionTime * 1000L);
+		averageJobTime = (averageJobTime * 7 + job.getTotalTime()) / 8; // lost updates only blur the estimate
+		job.completed();
+	}
+	
+	/**
+	 * A chunk that is deleted from a location.
+	 */
+	private static class Removal{
+		final String chunkId;
+		final long[] fingerprint; // null if the chunk is not deduplicated
+		final int locationRef;
+		
+		Removal(String chunkId, long[] fingerprint, int locationRef){
+			this.chunkId = chunkId;
+			this.fingerprint = fingerprint;
+			this.locationRef = locationRef;
+		}
+	}
+	
+	/**
+	 * Deletes chunks from their locations in the background. The references of deduplicated
+	 * chunks are given back, they are only deleted from the locations where this was the last
+	 * reference.
+	 * 
+	 * @param user user whose credentials the chunks were written with
+	 * @param refs placements of the chunks
+	 */
+	private void removeChunks(final User user, List<FileManifest.ChunkRef> refs){
+		final Map<String, List<Removal>> byLocation = new HashMap<String, List<Removal>>();
+		for(FileManifest.ChunkRef ref: refs){
+			String[] locations = ref.getLocations();
+			long[] fingerprint = ref.getFingerprint();
+			for(int i=0; i<locations.length; ++i){
+				int locationRef = fingerprint != null ? ref.getLocationRefs()[i] : -1;
+				if(fingerprint != null && !dedupIndex.retire(fingerprint[0], fingerprint[1], locationRef)){
+					continue; // still referenced by another file
+				}
+				
+				List<Removal> removals = byLocation.get(locations[i]);
+				if(removals == null){
+					removals = new ArrayList<Removal>();
+					byLocation.put(locations[i], removals);
+				}
+				removals.add(new Removal(ref.getId(), fingerprint, locationRef));
+			}
+		}
+		if(byLocation.isEmpty()){
+			return;
+		}
+		
+		cleanupExecutor.execute(new Runnable() {
+			public void run() {
+				for(Map.Entry<String, List<Removal>> e: byLocation.entrySet()){
+					deleteChunks(user, e.getKey(), e.getValue());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Deletes chunks from a location. Deduplicated chunks that were referenced again meanwhile
+	 * are kept. PlugIns that implement {@link IBatchChunkStorage} get the chunks in batches of
+	 * up to <code>storage.batch.maxChunks</code>. Errors are logged.
+	 */
+	private void deleteChunks(User user, String location, List<Removal> removals){
+		// uploads of deduplicated chunks wait until they are removed
+		List<Removal> pending = new ArrayList<Removal>(removals.size());
+		for(Removal r: removals){
+			if(r.fingerprint == null || dedupIndex.startRemoval(r.fingerprint[0], r.fingerprint[1], r.locationRef)){
+				pending.add(r);
+			}
+		}
+		
+		String plugin = StorageLocations.getPluginName(user, location);
+		IChunkStorage storage = StorageLocations.acquireStorage(plugin);
+		boolean failed = false;
+		int errors = 0;
+		String error = null;
+		try{
+			if(storage == null){
+				errors = pending.size();
+				error = "storage PlugIn '"+plugin+"' is not available";
+			}else if(storage instanceof IBatchChunkStorage && maxBatchChunks > 1){
+				for(int from = 0; from < pending.size(); from += maxBatchChunks){
+					List<Removal> batch = pending.subList(from, Math.min(pending.size(), from + maxBatchChunks));
+					String[] ids = new String[batch.size()];
+					for(int i = 0; i < ids.length; ++i){
+						ids[i] = batch.get(i).chunkId;
+					}
+					try{
+						((IBatchChunkStorage) storage).deleteChunks(user, location, ids);
+					}catch(IOException | RuntimeException e){
+						failed = true;
+						errors += ids.length;
+						error = e.getMessage();
+					}
+				}
+			}else{
+				for(Removal r: pending){
+					try{
+						storage.deleteChunk(user, location, r.chunkId);
+					}catch(IOException | RuntimeException e){
+						failed = true;
+						++errors;
+						error = e.getMessage();
+					}
+				}
+			}
+		}finally{
+			for(Removal r: pending){
+				if(r.fingerprint != null){
+					dedupIndex.finishRemoval(r.fingerprint[0], r.fingerprint[1], r.locationRef);
+				}
+			}
+			if(storage != null){
+				StorageLocations.releaseStorage(plugin, storage, failed);
+			}
+		}
+		
+		if(errors > 0){
+			Logger.getLogger(LOGGER_NAME).warning(errors+" chunk(s) could not be removed from location '"+location+"' of user '"+user.getName()+"': "+error);
+		}
+	}
+	
+	/**
+	 * Estimates when a job slot will be free again based on the average duration of the jobs
+	 * that finished recently.
+	 * 
+	 * @return time in seconds
+	 */
+	private int estimateRetryAfter(){
+		long seconds = (averageJobTime + 999) / 1000;
+		return (int) Math.max(1, Math.min(seconds, 3600));
+	}
+	
+	/**
+	 * Takes a stripe slot and the parity buffers for a new stripe. Blocks until a slot is free.
+	 */
+	private Stripe openStripe(int index) throws InterruptedException{
+		stripeSlots.acquire();
+		
+		// the slots guarantee that enough parity buffers are free
+		ByteBuffer[] parity = new ByteBuffer[erasureCoder.getParityShards()];
+		for(int p=0; p<parity.length; ++p){
+			parity[p] = parityPool.acquire();
+			ReedSolomon.clear(parity[p], parity[p].capacity());
+		}
+		return new Stripe(index, parity, erasureCoder.getDataShards());
+	}
+	
+	/**
+	 * Tells the last stripe of a file how many chunks it got. Stripes without any chunks are
+	 * released right away.
+	 * 
+	 * @param index number of chunks that were handed to the storage threads
+	 */
+	private void closeStripe(User user, StorageJob job, List<String> locations, Stripe stripe, int index){
+		if(stripe == null){
+			return;
+		}
+		
+		int count = index - stripe.getIndex() * erasureCoder.getDataShards();
+		if(count == 0){
+			releaseStripe(stripe);
+		}else if(stripe.close(count)){
+			stripeCompleted(user, job, locations, stripe);
+		}
+	}
+	
+	/**
+	 * Writes the parity shards of a complete stripe.
+	 */
+	private void stripeCompleted(User user, StorageJob job, List<String> locations, Stripe stripe){
+		if(job.isFinished()){
+			releaseStripe(stripe); // job already failed
+			return;
 		}
-		return -1;
+		
+		ByteBuffer[] parity = stripe.getParity();
+		for(int p=0; p<parity.length; ++p){
+			job.chunkQueued();
+			Chunk shard = new Chunk(p, -1, parity[p], null); // buffers are released with the stripe
+			String[] targets = ScatterEngine.placeShard(locations, stripe.getIndex(), erasureCoder.getDataShards() + p);
+			scatterEngine.scatter(user, job.getManifest().parityId(stripe.getIndex(), p), shard, targets, 
+			                      new ParityListener(user, job, stripe));
+		}
+	}
+	
+	/**
+	 * Gives the parity buffers and the slot of a stripe back.
+	 */
+	private void releaseStripe(Stripe stripe){
+		for(ByteBuffer p: stripe.getParity()){
+			parityPool.release(p);
+		}
+		stripeSlots.release();
+	}
+	
+	/**
+	 * Records written parity shards and releases the stripe when all of them were handled.
+	 */
+	private class ParityListener implements ScatterEngine.Listener {
+		private final User user;
+		private final StorageJob job;
+		private final Stripe stripe;
+		
+		ParityListener(User user, StorageJob job, Stripe stripe){
+			this.user = user;
+			this.job = job;
+			this.stripe = stripe;
+		}
+		
+		public void chunkWritten(Chunk c, String[] targets) {
+			FileManifest manifest = job.getManifest();
+			FileManifest.ChunkRef ref = new FileManifest.ChunkRef(c.getIndex(), -1, c.getLength(), 
+			                                                      manifest.parityId(stripe.getIndex(), c.getIndex()), targets);
+			if(!manifest.setParity(stripe.getIndex(), c.getIndex(), ref)){
+				removeChunks(user, Collections.singletonList(ref)); // the job failed meanwhile
+			}
+			if(stripe.parityDone()){
+				releaseStripe(stripe);
+			}
+			
+			if(job.chunkStored()){
+				jobFinished(job);
+			}
+		}
+		
+		public void chunkFailed(Chunk c, String reason) {
+			if(stripe.parityDone()){
+				releaseStripe(stripe);
+			}
+			failJob(job, reason);
+		}
+	}
+	
+	/**
+	 * Places a single chunk and hands it to the scatter engine. The buffer of the chunk
+	 * is given back to the pool as soon as all copies were written. Chunks of erasure coded
+	 * files are added to the parity of their stripe first.
+	 */
+	private class ChunkStoreTask implements Runnable, ScatterEngine.Listener {
+		private final User user;
+		private final StorageJob job;
+		private final List<String> locations;
+		private final Chunk chunk;
+		private final Stripe stripe;
+		private String chunkId = null;
+		private String[] targets = null;
+		private long[] fingerprint = null; // only set if the chunk is deduplicated
+		private int[] locationRefs = null;
+		
+		ChunkStoreTask(User user, StorageJob job, List<String> locations, Chunk chunk, Stripe stripe){
+			this.user = user;
+			this.job = job;
+			this.locations = locations;
+			this.chunk = chunk;
+			this.stripe = stripe;
+		}
+		
+		public void run() {
+			if(stripe == null){
+				targets = ScatterEngine.place(locations, chunk.getIndex(), replicas);
+			}else{
+				int shard = chunk.getIndex() % erasureCoder.getDataShards();
+				if(stripe.add(erasureCoder, job.isFinished() ? null : chunk, shard)){
+					stripeCompleted(user, job, locations, stripe);
+				}
+				targets = ScatterEngine.placeShard(locations, stripe.getIndex(), shard);
+			}
+			
+			if(job.isFinished()){
+				chunk.release(); // job already failed
+				return;
+			}
+			
+			// stripes are coded per file, so only replicated chunks can be shared
+			if(dedupIndex == null || stripe != null){
+				chunkId = job.getManifest().chunkId(chunk.getIndex());
+				scatterEngine.scatter(user, chunkId, chunk, targets, this);
+				return;
+			}
+			
+			byte[] digest = fingerprint(chunk);
+			ByteBuffer fp = ByteBuffer.wrap(digest);
+			fingerprint = new long[]{ fp.getLong(0), fp.getLong(8) };
+			chunkId = contentId(digest);
+			
+			// only upload to the locations that do not have the chunk yet
+			locationRefs = new int[targets.length];
+			List<String> missing = new ArrayList<String>(targets.length);
+			for(int i=0; i<targets.length; ++i){
+				locationRefs[i] = locationRef(user, targets[i]);
+				if(!dedupIndex.acquire(fingerprint[0], fingerprint[1], locationRefs[i])){
+					missing.add(targets[i]);
+				}
+			}
+			
+			if(missing.isEmpty()){
+				job.addDeduplicated(chunk.getLength());
+				chunkWritten(chunk, targets);
+				return;
+			}
+			
+			if(missing.size() < targets.length){
+				job.addDeduplicated((long) chunk.getLength() * (targets.length - missing.size()));
+			}
+			scatterEngine.scatter(user, chunkId, chunk, missing.toArray(new String[missing.size()]), this);
+		}
+		
+		public void chunkWritten(Chunk c, String[] written) {
+			if(fingerprint != null){
+				for(int ref: locationRefs){
+					dedupIndex.stored(fingerprint[0], fingerprint[1], ref);
+				}
+			}
+			
+			// the chunk is at all targets, also those that already had it
+			FileManifest.ChunkRef ref = new FileManifest.ChunkRef(c.getIndex(), c.getOffset(), c.getLength(), chunkId, targets, 
+			                                                      fingerprint, locationRefs);
+			if(!job.getManifest().setChunk(ref)){
+				removeChunks(user, Collections.singletonList(ref)); // the job failed meanwhile
+			}
+			c.release();
+			
+			if(job.chunkStored()){
+				jobFinished(job);
+			}
+		}
+		
+		public void chunkFailed(Chunk c, String reason) {
+			if(fingerprint != null){
+				for(int ref: locationRefs){
+					dedupIndex.release(fingerprint[0], fingerprint[1], ref);
+				}
+			}else if(targets.length > 1){
+				// copies that were written before the error are not referenced by the file
+				removeChunks(user, Collections.singletonList(new FileManifest.ChunkRef(c.getIndex(), c.getOffset(), c.getLength(), chunkId, targets)));
+			}
+			
+			c.release();
+			failJob(job, reason);
+		}
+	}
+	
+	/**
+	 * Calculates the SHA-256 fingerprint of a chunk.
+	 */
+	private byte[] fingerprint(Chunk chunk){
+		MessageDigest md = digests.get();
+		md.reset();
+		md.update(chunk.getData());
+		return md.digest();
+	}
+	
+	/**
+	 * Gives the ID a deduplicated chunk is saved under. It only depends on the content.
+	 */
+	private static String contentId(byte[] digest){
+		StringBuilder sb = new StringBuilder("c-");
+		for(byte b: digest){
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Gives the numeric reference of a location for the deduplication index. Locations of
+	 * different users are only the same if they have the same name, use the same PlugIn and
+	 * have the same credentials (i.e. point to the same place in the backend).
+	 */
+	private int locationRef(User user, String location){
+		String key = locationKey(user, location, digests.get());
+		Integer ref = locationRefs.get(key);
+		if(ref == null){
+			Integer created = locationRefCounter.getAndIncrement();
+			ref = locationRefs.putIfAbsent(key, created);
+			if(ref == null){
+				ref = created;
+			}
+		}
+		return ref;
+	}
+	
+	/**
+	 * Gives the key that identifies a location in the backend. The credentials are only kept
+	 * as a hash.
+	 */
+	static String locationKey(User user, String location, MessageDigest md){
+		md.reset();
+		Set<String> keys = user.getCredentials(location);
+		if(keys != null){
+			for(String key: new TreeSet<String>(keys)){
+				String value = user.getCredentialValue(location, key);
+				if(value == null){
+					value = "";
+				}
+				// length prefixes keep the encoding unambiguous
+				md.update((key.length()+":"+key+value.length()+":"+value).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		return StorageLocations.getPluginName(user, location)+"/"+location+"/"+contentId(md.digest());
+	}
+	
+	/**
+	 * Gives the ID for the next job. IDs are never reused while the server is running
+	 * (a 64 bit counter does not wrap in practice).
+	 * @return next free job id
+	 */
+	private long nextJobId(){
+		return jobIdCounter.getAndIncrement();
 	}
 	
 	
@@ -0,0 +1,100 @@
+package org.komorebi.core.storeengine;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stripe of <code>k</code> consecutive chunks of an erasure coded file. The parity of the stripe
+ * is calculated incrementally: every chunk is added to the parity shards as soon as it was read,
+ * so chunk buffers do not have to wait until the whole stripe is there.
+ * 
+ * @author lycis
+ *
+ */
+class Stripe {
+	private final int index;
+	private final ByteBuffer[] parity;
+	private final int expectedDefault;
+	private int expected = -1;
+	private int added = 0;
+	private int length = 0;
+	private boolean completed = false;
+	private final AtomicInteger openParity;
+	
+	/**
+	 * @param index index of the stripe within the file
+	 * @param parity zeroed buffers for the parity shards
+	 * @param dataShards number of chunks of a full stripe
+	 */
+	Stripe(int index, ByteBuffer[] parity, int dataShards){
+		this.index = index;
+		this.parity = parity;
+		this.expectedDefault = dataShards;
+		this.openParity = new AtomicInteger(parity.length);
+	}
+	
+	/**
+	 * @return index of the stripe within the file
+	 */
+	int getIndex() {
+		return index;
+	}
+	
+	/**
+	 * Adds a chunk to the parity.
+	 * 
+	 * @param coder the erasure code
+	 * @param chunk chunk of this stripe or <code>null</code> if the chunk is skipped (job failed)
+	 * @param shard index of the chunk within the stripe
+	 * @return <code>true</code> if this completed the stripe
+	 */
+	synchronized boolean add(ReedSolomon coder, Chunk chunk, int shard){
+		if(chunk != null){
+			coder.addToParity(chunk.getData(), shard, parity);
+			length = Math.max(length, chunk.getLength());
+		}
+		++added;
+		return checkComplete();
+	}
+	
+	/**
+	 * Tells how many chunks this stripe has. Only needed for the last stripe of a file.
+	 * 
+	 * @param count number of chunks
+	 * @return <code>true</code> if this completed the stripe
+	 */
+	synchronized boolean close(int count){
+		expected = count;
+		return checkComplete();
+	}
+	
+	private boolean checkComplete(){
+		if(completed || added < (expected < 0 ? expectedDefault : expected)){
+			return false;
+		}
+		completed = true;
+		return true;
+	}
+	
+	/**
+	 * Gives the parity shards. Only valid after the stripe was completed.
+	 * 
+	 * @return buffers limited to the shard length
+	 */
+	synchronized ByteBuffer[] getParity(){
+		for(ByteBuffer p: parity){
+			p.position(0);
+			p.limit(length);
+		}
+		return parity;
+	}
+	
+	/**
+	 * Marks a parity shard as handled.
+	 * 
+	 * @return <code>true</code> if this was the last open parity shard
+	 */
+	boolean parityDone(){
+		return openParity.decrementAndGet() == 0;
+	}
+}
@@ -0,0 +1,160 @@
+package org.komorebi.core.storeengine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+import org.komorebi.core.security.User;
+
+/**
+ * Reads chunks from their storage locations. For erasure coded files whole stripes are read
+ * and chunks that can not be read from their location are restored from the parity shards.
+ * 
+ * @author lycis
+ *
+ */
+class StripeReader {
+	private static final String LOGGER_NAME = "storagemanager";
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	
+	private StripeReader(){
+	}
+	
+	/**
+	 * Reads a chunk from the first of its locations that delivers it.
+	 * 
+	 * @param user owner of the chunk
+	 * @param ref placement of the chunk
+	 * @return chunk data
+	 * @throws IOException if none of the locations could deliver the chunk
+	 */
+	static ByteBuffer readChunk(User user, FileManifest.ChunkRef ref) throws IOException{
+		IOException last = null;
+		for(String location: ref.getLocations()){
+			try{
+				return readChunk(user, ref, location);
+			}catch(IOException e){
+				last = e;
+			}
+		}
+		
+		throw last != null ? last : new IOException("chunk "+ref.getId()+" has no location");
+	}
+	
+	/**
+	 * Reads a chunk from one of its locations.
+	 * 
+	 * @param user owner of the chunk
+	 * @param ref placement of the chunk
+	 * @param location location that is read from
+	 * @return chunk data
+	 * @throws IOException if the location could not deliver the chunk
+	 */
+	static ByteBuffer readChunk(User user, FileManifest.ChunkRef ref, String location) throws IOException{
+		String plugin = StorageLocations.getPluginName(user, location);
+		IChunkStorage storage = StorageLocations.acquireStorage(plugin);
+		if(storage == null){
+			throw new IOException("storage PlugIn '"+plugin+"' is not available");
+		}
+		
+		ByteBuffer data;
+		boolean failed = true;
+		try{
+			data = storage.readChunk(user, location, ref.getId());
+			failed = false;
+		}finally{
+			StorageLocations.releaseStorage(plugin, storage, failed);
+		}
+		if(data.remaining() != ref.getLength()){
+			throw new IOException("chunk "+ref.getId()+" has "+data.remaining()+" instead of "+ref.getLength()+" bytes");
+		}
+		return data;
+	}
+	
+	/**
+	 * Reads all chunks of a stripe of an erasure coded file. Missing chunks are restored from the
+	 * parity shards, which are only read if needed.
+	 * 
+	 * @param user owner of the file
+	 * @param manifest manifest of the file
+	 * @param coder erasure code matching the manifest
+	 * @param reader reader for the single shards
+	 * @param stripe index of the stripe
+	 * @return the data chunks of the stripe in order
+	 * @throws IOException if more than <code>m</code> shards of the stripe could not be read
+	 */
+	static ByteBuffer[] readStripe(User user, FileManifest manifest, ReedSolomon coder, HedgedReader reader, int stripe) throws IOException{
+		int k = manifest.getDataShards();
+		int m = manifest.getParityShards();
+		int first = stripe * k;
+		int count = Math.min(k, manifest.getChunkCount() - first);
+		
+		ByteBuffer[] shards = new ByteBuffer[k+m];
+		boolean[] present = new boolean[k+m];
+		int available = 0;
+		int length = 0;
+		
+		// data shards
+		for(int d=0; d<k; ++d){
+			if(d >= count){
+				// the last stripe is padded with empty chunks
+				shards[d] = EMPTY;
+				present[d] = true;
+				++available;
+				continue;
+			}
+			
+			FileManifest.ChunkRef ref = manifest.getChunk(first + d);
+			length = Math.max(length, ref.getLength());
+			try{
+				shards[d] = reader.readChunk(user, ref);
+				present[d] = true;
+				++available;
+			}catch(IOException e){
+				Logger.getLogger(LOGGER_NAME).warning("Chunk "+ref.getId()+" is not readable and will be restored ("+e.getMessage()+")");
+			}
+		}
+		
+		// parity shards are only needed if data is missing
+		for(int p=0; p<m && available<k; ++p){
+			FileManifest.ChunkRef ref = manifest.getParity(stripe, p);
+			try{
+				shards[k+p] = reader.readChunk(user, ref);
+				present[k+p] = true;
+				++available;
+			}catch(IOException e){
+				Logger.getLogger(LOGGER_NAME).warning("Parity shard "+ref.getId()+" is not readable ("+e.getMessage()+")");
+			}
+		}
+		
+		if(available < k){
+			throw new IOException("stripe "+stripe+" of '"+manifest.getFilename()+"' can not be restored (only "+available+" of "+k+" shards readable)");
+		}
+		
+		if(hasMissing(present, count)){
+			for(int d=0; d<count; ++d){
+				if(!present[d]){
+					shards[d] = ByteBuffer.allocate(length);
+				}
+			}
+			coder.reconstruct(shards, present, length);
+		}
+		
+		ByteBuffer[] result = new ByteBuffer[count];
+		for(int d=0; d<count; ++d){
+			ByteBuffer b = shards[d].duplicate();
+			b.limit(b.position() + manifest.getChunk(first + d).getLength());
+			result[d] = b;
+		}
+		return result;
+	}
+	
+	private static boolean hasMissing(boolean[] present, int count){
+		for(int d=0; d<count; ++d){
+			if(!present[d]){
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,156 @@
+package org.komorebi.core.storeengine;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel that notifies about expired IDs. Timeouts are put into one of a fixed
+ * number of slots depending on their deadline. A single thread advances the wheel one slot per
+ * tick and only looks at the entries of this slot, so the cost of a tick does not depend on the
+ * total number of pending timeouts. Timeouts longer than one revolution of the wheel simply stay
+ * in their slot until the wheel reaches their deadline.
+ * 
+ * Timeouts are not exact: an entry expires at the earliest after the requested delay and at most
+ * one tick later.
+ * 
+ * New timeouts are handed to the wheel thread, which puts them into their slots at the start of
+ * the next tick. Only the wheel thread touches the slots, so a timeout can not be added to the
+ * slot that is just being expired and miss it.
+ * 
+ * @author lycis
+ *
+ */
+public class TimingWheel {
+	private static final String LOGGER_NAME = "storagemanager";
+	
+	/**
+	 * Gets informed about expired IDs.
+	 * @author lycis
+	 *
+	 */
+	public interface ExpiryHandler{
+		/**
+		 * Called by the wheel thread when the timeout of an ID expired.
+		 * @param id expired ID
+		 */
+		void expired(long id);
+	}
+	
+	/**
+	 * Single timeout.
+	 */
+	private static class Entry{
+		final long id;
+		final long ticks; // delay in ticks
+		long deadline; // tick on which the entry expires, set by the wheel thread
+		
+		Entry(long id, long ticks){
+			this.id = id;
+			this.ticks = ticks;
+		}
+	}
+	
+	private final Queue<Entry>[] slots; // only used by the wheel thread
+	private final Queue<Entry> added = new ConcurrentLinkedQueue<Entry>();
+	private final int mask;
+	private final long tickMillis;
+	private final ExpiryHandler handler;
+	private final ScheduledExecutorService ticker;
+	private long currentTick = 0; // only used by the wheel thread
+	
+	/**
+	 * Creates a wheel and starts its thread.
+	 * 
+	 * @param name name of the wheel thread
+	 * @param slotCount number of slots (rounded up to the next power of two)
+	 * @param tickMillis duration of a tick in milliseconds
+	 * @param handler is called for every expired ID
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimingWheel(final String name, int slotCount, long tickMillis, ExpiryHandler handler){
+		if(slotCount <= 0 || tickMillis <= 0){
+			throw new IllegalArgumentException("slot count and tick duration have to be positive");
+		}
+		
+		int size = Integer.highestOneBit(slotCount);
+		if(size < slotCount){
+			size <<= 1;
+		}
+		
+		slots = new Queue[size];
+		for(int i=0; i<size; ++i){
+			slots[i] = new ArrayDeque<Entry>();
+		}
+		mask = size - 1;
+		this.tickMillis = tickMillis;
+		this.handler = handler;
+		
+		ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		ticker.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				tick();
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Schedules the expiry of an ID.
+	 * 
+	 * @param id ID that will be handed to the handler
+	 * @param delayMillis time until the ID expires in milliseconds
+	 */
+	public void schedule(long id, long delayMillis){
+		long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+		added.add(new Entry(id, ticks));
+	}
+	
+	/**
+	 * Advances the wheel by one slot and expires all due entries of this slot. Only called by the
+	 * wheel thread (and by tests with a wheel whose thread does not tick).
+	 */
+	void tick(){
+		long now = ++currentTick;
+		
+		// the delay counts from the first tick after scheduling, so an entry never expires early
+		Entry a;
+		while((a = added.poll()) != null){
+			a.deadline = now + a.ticks;
+			slots[(int) (a.deadline & mask)].add(a);
+		}
+		
+		Iterator<Entry> it = slots[(int) (now & mask)].iterator();
+		while(it.hasNext()){
+			Entry e = it.next();
+			if(e.deadline > now){
+				continue; // due in a later revolution
+			}
+			
+			it.remove();
+			try{
+				handler.expired(e.id);
+			}catch(RuntimeException ex){
+				Logger.getLogger(LOGGER_NAME).warning("Expiry of "+e.id+" failed: "+ex.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Stops the wheel thread. Pending timeouts will not expire anymore.
+	 */
+	public void stop(){
+		ticker.shutdownNow();
+	}
+}
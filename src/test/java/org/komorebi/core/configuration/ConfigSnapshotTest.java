@@ -0,0 +1,64 @@
+package org.komorebi.core.configuration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Test;
+
+public class ConfigSnapshotTest {
+
+	/**
+	 * Changed, added and removed settings must be reported, unchanged ones not.
+	 */
+	@Test
+	public void testChangedKeys(){
+		BaseConfiguration config = new BaseConfiguration();
+		config.addProperty("storage.threads", "4");
+		config.addProperty("storage.replicas", "2");
+		config.addProperty("users.encrypted", "yes");
+		ConfigSnapshot first = new ConfigSnapshot(config, 1);
+		
+		config.setProperty("storage.threads", "8");
+		config.clearProperty("users.encrypted");
+		config.addProperty("storage.readahead", "6");
+		ConfigSnapshot second = new ConfigSnapshot(config, 2);
+		
+		Set<String> changed = first.getChangedKeys(second);
+		assertEquals(3, changed.size());
+		assertTrue(changed.contains("storage.threads"));
+		assertTrue(changed.contains("storage.readahead"));
+		assertTrue(changed.contains("users.encrypted"));
+		
+		assertTrue(first.getBoolean("users.encrypted", false));
+		assertEquals(8, second.getInt("storage.threads", 1));
+		assertEquals(5, second.getInt("storage.missing", 5));
+	}
+	
+	/**
+	 * Typed values are parsed when the snapshot is created, invalid ones return the default.
+	 */
+	@Test
+	public void testTypedValues(){
+		BaseConfiguration config = new BaseConfiguration();
+		config.addProperty("a", " 42 ");
+		config.addProperty("b", "5000000000");
+		config.addProperty("c", "0.5");
+		config.addProperty("d", "Off");
+		ConfigSnapshot snapshot = new ConfigSnapshot(config, 1);
+		
+		assertEquals(" 42 ", snapshot.getString("a"));
+		assertEquals(42, snapshot.getInt("a", 0));
+		assertEquals(42L, snapshot.getLong("a", 0));
+		assertEquals(7, snapshot.getInt("b", 7)); // does not fit into an int
+		assertEquals(5000000000L, snapshot.getLong("b", 0));
+		assertEquals(0.5, snapshot.getDouble("c", 0), 0.0);
+		assertEquals(3, snapshot.getInt("c", 3));
+		assertFalse(snapshot.getBoolean("d", true));
+		assertTrue(snapshot.getBoolean("a", true));
+		assertEquals(1.5, snapshot.getDouble("d", 1.5), 0.0);
+	}
+}
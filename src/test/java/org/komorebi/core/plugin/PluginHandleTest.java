@@ -0,0 +1,79 @@
+package org.komorebi.core.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+import org.komorebi.plugin.IKomorebiPlugin;
+
+public class PluginHandleTest {
+
+	@SuppressWarnings("unchecked")
+	private static PluginHandle handle(Path jar) throws NoSuchMethodException{
+		Class<IKomorebiPlugin> c = (Class<IKomorebiPlugin>) (Class<?>) PluginPoolTest.CountingPlugin.class;
+		Constructor<IKomorebiPlugin> constructor = c.getConstructor();
+		return new PluginHandle("test", "1.0", 1, new URLClassLoader(new URL[0]), c, new PluginPool("test", constructor, 0, 10, null), jar, 10, 20);
+	}
+
+	/**
+	 * A retired handle must not accept new calls and must be drained when the running ones end.
+	 */
+	@Test
+	public void testRetire() throws Exception{
+		final PluginHandle handle = handle(null);
+		assertTrue(handle.enter());
+		assertTrue(handle.enter());
+		handle.retire();
+		assertFalse(handle.enter());
+		assertEquals(2, handle.getInFlight());
+		assertFalse(handle.awaitDrained(10));
+
+		handle.leave();
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try{
+					Thread.sleep(20);
+				}catch(InterruptedException e){
+				}
+				handle.leave();
+			}
+		});
+		t.start();
+		assertTrue(handle.awaitDrained(5000));
+		t.join();
+		handle.close();
+	}
+
+	/**
+	 * A handle must tell if its JAR changed and which instances it created.
+	 */
+	@Test
+	public void testIdentity() throws Exception{
+		PluginHandle handle = handle(null);
+		assertFalse(handle.isOutdated("1.0", 10, 20));
+		assertTrue(handle.isOutdated("1.0", 10, 21));
+		assertTrue(handle.isOutdated("1.0", 11, 20));
+		assertTrue(handle.isOutdated("1.1", 10, 20));
+		assertTrue(handle.owns(new PluginPoolTest.CountingPlugin()));
+		assertFalse(handle.owns(new PluginScannerTest.DirectPlugin()));
+		handle.close();
+	}
+
+	/**
+	 * The private copy of the JAR must be deleted with the handle.
+	 */
+	@Test
+	public void testCloseDeletesCopy() throws Exception{
+		Path jar = Files.createTempFile("plugin", ".jar");
+		PluginHandle handle = handle(jar);
+		handle.close();
+		assertFalse(Files.exists(jar));
+	}
+}
@@ -0,0 +1,84 @@
+package org.komorebi.core.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.lang.reflect.Constructor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.komorebi.plugin.IKomorebiPlugin;
+
+public class PluginPoolTest {
+
+	public static class CountingPlugin implements IKomorebiPlugin, Closeable{
+		static final AtomicInteger created = new AtomicInteger(0);
+		boolean closed = false;
+
+		public CountingPlugin(){
+			created.incrementAndGet();
+		}
+
+		public boolean isConfigConsumer(){
+			return false;
+		}
+
+		public void close(){
+			closed = true;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Constructor<IKomorebiPlugin> constructor() throws NoSuchMethodException{
+		return (Constructor<IKomorebiPlugin>) (Constructor<?>) CountingPlugin.class.getConstructor();
+	}
+
+	/**
+	 * A shared pool must hand out the same instance to every caller.
+	 */
+	@Test
+	public void testShared() throws Exception{
+		CountingPlugin first = new CountingPlugin();
+		PluginPool pool = new PluginPool("test", constructor(), 0, 10, first);
+		int created = CountingPlugin.created.get();
+		for(int i=0; i<10; ++i){
+			assertSame(first, pool.acquire());
+			pool.release(first, true); // shared instance is never discarded
+		}
+		assertEquals(created, CountingPlugin.created.get());
+
+		pool.close();
+		assertTrue(first.closed);
+		assertNull(pool.acquire());
+	}
+
+	/**
+	 * Exclusive instances must be reused, limited to the size of the pool and discarded if broken.
+	 */
+	@Test
+	public void testExclusive() throws Exception{
+		PluginPool pool = new PluginPool("test", constructor(), 2, 10, null);
+		IKomorebiPlugin a = pool.acquire();
+		IKomorebiPlugin b = pool.acquire();
+		assertNotNull(a);
+		assertNotNull(b);
+		assertFalse(a == b);
+		assertNull(pool.acquire()); // pool is exhausted
+
+		pool.release(a, false);
+		assertSame(a, pool.acquire());
+		pool.release(a, false);
+
+		pool.release(b, true);
+		assertTrue(((CountingPlugin) b).closed);
+		assertEquals(1, pool.getIdle());
+
+		pool.close();
+		assertTrue(((CountingPlugin) a).closed);
+	}
+}
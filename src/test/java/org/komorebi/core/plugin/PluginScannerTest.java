@@ -0,0 +1,159 @@
+package org.komorebi.core.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import org.junit.Test;
+import org.komorebi.plugin.IKomorebiPlugin;
+
+public class PluginScannerTest {
+
+	public static abstract class AbstractPlugin implements IKomorebiPlugin{
+		public boolean isConfigConsumer(){
+			return false;
+		}
+	}
+
+	public static class DirectPlugin implements IKomorebiPlugin{
+		public boolean isConfigConsumer(){
+			return false;
+		}
+	}
+
+	public static class IndirectPlugin extends AbstractPlugin{
+	}
+
+	public static class NoPlugin{
+	}
+
+	/**
+	 * Concrete classes that implement the PlugIn interface directly or through a class of the
+	 * JAR have to be found, other classes not.
+	 */
+	@Test
+	public void testScanHeaders() throws IOException{
+		Path jar = createJar(null, AbstractPlugin.class, DirectPlugin.class, IndirectPlugin.class, NoPlugin.class);
+		try{
+			JarFile file = new JarFile(jar.toFile());
+			try{
+				assertEquals(new HashSet<String>(Arrays.asList(DirectPlugin.class.getName(), IndirectPlugin.class.getName())), new HashSet<String>(PluginScanner.scan(file)));
+			}finally{
+				file.close();
+			}
+		}finally{
+			Files.delete(jar);
+		}
+	}
+
+	/**
+	 * A service index replaces scanning the classes.
+	 */
+	@Test
+	public void testServiceIndex() throws IOException{
+		Path jar = createJar("# plugins\n"+DirectPlugin.class.getName()+"\n\n"+DirectPlugin.class.getName()+" # twice\n", DirectPlugin.class, IndirectPlugin.class);
+		try{
+			JarFile file = new JarFile(jar.toFile());
+			try{
+				assertEquals(Arrays.asList(DirectPlugin.class.getName()), PluginScanner.scan(file));
+			}finally{
+				file.close();
+			}
+		}finally{
+			Files.delete(jar);
+		}
+	}
+
+	/**
+	 * A cached result must be used as long as the JAR is unchanged and be written to the cache file.
+	 */
+	@Test
+	public void testDiscoveryCache() throws IOException{
+		Path jar = createJar(null, DirectPlugin.class);
+		Path cacheFile = Files.createTempFile("plugins", ".cache");
+		Files.delete(cacheFile);
+		try{
+			DiscoveryCache cache = new DiscoveryCache(cacheFile);
+			List<String> plugins = cache.discover(jar);
+			assertEquals(Arrays.asList(DirectPlugin.class.getName()), plugins);
+			assertTrue(plugins == cache.discover(jar));
+			cache.save();
+			assertTrue(Files.exists(cacheFile));
+
+			// a new cache reads the result from the file
+			assertEquals(plugins, new DiscoveryCache(cacheFile).discover(jar));
+
+			// a changed JAR is scanned again
+			Path other = createJar(null, DirectPlugin.class, IndirectPlugin.class, AbstractPlugin.class);
+			Files.move(other, jar, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+			assertEquals(2, new DiscoveryCache(cacheFile).discover(jar).size());
+		}finally{
+			Files.deleteIfExists(jar);
+			Files.deleteIfExists(cacheFile);
+		}
+	}
+
+	/**
+	 * Class files that are no class files are ignored.
+	 */
+	@Test
+	public void testReadHeader() throws IOException{
+		InputStream in = getClass().getResourceAsStream("PluginScannerTest$IndirectPlugin.class");
+		try{
+			PluginScanner.ClassHeader header = PluginScanner.readHeader(in);
+			assertEquals(IndirectPlugin.class.getName(), header.name);
+			assertEquals(Arrays.asList(AbstractPlugin.class.getName()), header.supertypes);
+			assertTrue(header.isConcrete());
+		}finally{
+			in.close();
+		}
+
+		assertEquals(null, PluginScanner.readHeader(new java.io.ByteArrayInputStream(new byte[]{'P', 'K', 3, 4})));
+		assertFalse(new PluginScanner.ClassHeader("x", 0x0400).isConcrete());
+	}
+
+	private Path createJar(String index, Class<?>... classes) throws IOException{
+		Path jar = Files.createTempFile("plugin", ".jar");
+		JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar));
+		try{
+			if(index != null){
+				out.putNextEntry(new JarEntry(PluginScanner.SERVICE_INDEX));
+				out.write(index.getBytes("UTF-8"));
+				out.closeEntry();
+			}
+			for(Class<?> c: classes){
+				String name = c.getName().replace('.', '/')+".class";
+				out.putNextEntry(new JarEntry(name));
+				copy(getClass().getClassLoader().getResourceAsStream(name), out);
+				out.closeEntry();
+			}
+		}finally{
+			out.close();
+		}
+		return jar;
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException{
+		try{
+			byte[] buffer = new byte[4096];
+			int read;
+			while((read = in.read(buffer)) >= 0){
+				out.write(buffer, 0, read);
+			}
+		}finally{
+			in.close();
+		}
+	}
+}
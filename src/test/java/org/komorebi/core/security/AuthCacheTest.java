@@ -0,0 +1,51 @@
+package org.komorebi.core.security;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class AuthCacheTest {
+
+	/**
+	 * Verified credentials must be found until the cache is invalidated.
+	 */
+	@Test
+	public void testInvalidate(){
+		AuthCache cache = new AuthCache(16, 60);
+		ByteBuffer digest = cache.digest("Basic Zm9vOmJhcg==");
+		assertFalse("header is stored in plain text", digest.equals(ByteBuffer.wrap("Basic Zm9vOmJhcg==".getBytes())));
+		
+		long epoch = cache.getEpoch();
+		cache.put(digest, "foo", epoch);
+		assertTrue("verified credential not found", "foo".equals(cache.get(cache.digest("Basic Zm9vOmJhcg=="))));
+		assertNull("other credential found", cache.get(cache.digest("Basic Zm9vOmJheg==")));
+		
+		cache.invalidate();
+		assertNull("credential found after invalidation", cache.get(digest));
+		
+		// verified before the invalidation
+		cache.put(digest, "foo", epoch);
+		assertNull("stale credential was cached", cache.get(digest));
+	}
+	
+	/**
+	 * The cache must not grow beyond its size and entries must expire.
+	 */
+	@Test
+	public void testBounds(){
+		AuthCache cache = new AuthCache(4, 60);
+		for(int i=0; i<100; ++i){
+			cache.put(cache.digest("header"+i), "user"+i, cache.getEpoch());
+		}
+		assertTrue("cache grew to "+cache.size()+" entries", cache.size() <= 4);
+		assertTrue("last credential not found", "user99".equals(cache.get(cache.digest("header99"))));
+		
+		AuthCache expiring = new AuthCache(4, 0);
+		expiring.put(expiring.digest("header"), "user", expiring.getEpoch());
+		assertNull("credential did not expire", expiring.get(expiring.digest("header")));
+	}
+}
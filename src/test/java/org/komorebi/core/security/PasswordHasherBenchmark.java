@@ -0,0 +1,51 @@
+package org.komorebi.core.security;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long verifying a password takes at different costs, including the hand-off to
+ * the verification pool. Compare with the cost the calibrator logs on startup.
+ * 
+ * Run with:
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main -Dexec.args=PasswordHasherBenchmark</code>
+ * 
+ * @author lycis
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PasswordHasherBenchmark {
+	
+	@Param({"10000", "50000", "100000", "200000", "500000"})
+	public int iterations;
+	
+	private PasswordHasher hasher;
+	private byte[] block;
+	
+	@Setup
+	public void setup(){
+		hasher = new PasswordHasher(iterations, Runtime.getRuntime().availableProcessors(), 64);
+		block = hasher.hash("benchmark".toCharArray(), 1024);
+	}
+	
+	@Benchmark
+	public boolean verify(){
+		return hasher.verify(block, "benchmark".toCharArray());
+	}
+}
@@ -0,0 +1,40 @@
+package org.komorebi.core.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PasswordHasherTest {
+
+	/**
+	 * A hashed password must be accepted, any other password not. The cost is taken from the block.
+	 */
+	@Test
+	public void testVerify(){
+		PasswordHasher hasher = new PasswordHasher(1000, 1, 4);
+		byte[] block = hasher.hash("secret".toCharArray(), 1024);
+		assertEquals(1024, block.length);
+		assertTrue(PasswordHasher.isHashed(block));
+		assertFalse(PasswordHasher.isHashed("secret".getBytes()));
+		
+		assertTrue("password was not accepted", hasher.verify(block, "secret".toCharArray()));
+		assertFalse("wrong password was accepted", hasher.verify(block, "secreT".toCharArray()));
+		assertTrue("hash of another cost was not accepted", new PasswordHasher(2000, 1, 4).verify(block, "secret".toCharArray()));
+		
+		char[] password = "secret".toCharArray();
+		hasher.verify(block, password);
+		assertFalse("password was not cleared", "secret".equals(new String(password)));
+	}
+	
+	/**
+	 * The calibrated cost must respect the lower limit.
+	 */
+	@Test
+	public void testCalibrate(){
+		int cost = PasswordHasher.calibrate(1, 5000);
+		assertTrue(cost >= 5000);
+		assertEquals(0, cost % 1000);
+	}
+}
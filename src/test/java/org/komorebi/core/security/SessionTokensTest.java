@@ -0,0 +1,53 @@
+package org.komorebi.core.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SessionTokensTest {
+
+	/**
+	 * Issued tokens must be accepted until they are revoked, tampered tokens never.
+	 */
+	@Test
+	public void testVerify(){
+		SessionTokens tokens = new SessionTokens(60);
+		for(String name: new String[]{"a", "ab", "abc", "administrator", "\u00fcser"}){
+			String token = tokens.issue(name);
+			assertTrue("token for '"+name+"' was not accepted", name.equals(tokens.verify(token)));
+		}
+		
+		String token = tokens.issue("admin");
+		char[] tampered = token.toCharArray();
+		tampered[5] = tampered[5] == 'A' ? 'B' : 'A';
+		assertNull("tampered token was accepted", tokens.verify(new String(tampered)));
+		assertNull("token of another key was accepted", new SessionTokens(60).verify(token));
+		assertNull("garbage was accepted", tokens.verify("no.token"));
+		
+		tokens.revokeAll();
+		assertNull("revoked token was accepted", tokens.verify(token));
+	}
+	
+	/**
+	 * Revoking the tokens of a user must not end the sessions of other users.
+	 */
+	@Test
+	public void testRevokeUser(){
+		SessionTokens tokens = new SessionTokens(60);
+		String alice = tokens.issue("alice");
+		String bob = tokens.issue("bob");
+		
+		tokens.revoke("alice");
+		assertNull("revoked token was accepted", tokens.verify(alice));
+		assertEquals("token of another user was revoked", "bob", tokens.verify(bob));
+		String renewed = tokens.issue("alice");
+		assertEquals("token issued after the revocation was not accepted", "alice", tokens.verify(renewed));
+		
+		tokens.revokeAll();
+		assertNull("revoked token was accepted", tokens.verify(renewed));
+		assertNull("revoked token was accepted", tokens.verify(bob));
+		assertEquals("bob", tokens.verify(tokens.issue("bob")));
+	}
+}
@@ -0,0 +1,96 @@
+package org.komorebi.core.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class UserJournalTest {
+
+	/**
+	 * Concurrent changes must be committed in batches and be restored from the journal.
+	 */
+	@Test
+	public void testGroupCommit() throws Exception{
+		Path file = Files.createTempFile("userjournal", ".journal");
+		try{
+			final UserJournal journal = new UserJournal(file, 5, new HashMap<String, User>());
+			final AtomicInteger failed = new AtomicInteger(0);
+			List<Thread> threads = new ArrayList<Thread>();
+			for(int t=0; t<8; ++t){
+				final int thread = t;
+				threads.add(new Thread(new Runnable() {
+					public void run() {
+						for(int i=0; i<20; ++i){
+							User u = new User();
+							u.setName("user"+thread);
+							u.setCredentialValue("location", "counter", Integer.toString(i));
+							if(!journal.append(u).await()){
+								failed.incrementAndGet();
+							}
+						}
+					}
+				}));
+			}
+			for(Thread t: threads){
+				t.start();
+			}
+			for(Thread t: threads){
+				t.join();
+			}
+			journal.close();
+
+			assertEquals("changes were not committed", 0, failed.get());
+			assertTrue("every change was synced on its own", journal.getSyncCount() < 160);
+
+			Map<String, User> users = new HashMap<String, User>();
+			new UserJournal(file, 0, users).close();
+			assertEquals(8, users.size());
+			for(int t=0; t<8; ++t){
+				assertEquals("19", users.get("user"+t).getCredentialValue("location", "counter"));
+			}
+		}finally{
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * An incomplete record at the end of the journal must be ignored and cut off.
+	 */
+	@Test
+	public void testTornRecord() throws IOException{
+		Path file = Files.createTempFile("userjournal", ".journal");
+		try{
+			UserJournal journal = new UserJournal(file, 0, new HashMap<String, User>());
+			User u = new User();
+			u.setName("admin");
+			assertTrue(journal.append(u).await());
+			journal.close();
+			long size = Files.size(file);
+
+			FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			fc.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 1, 0, 0}));
+			fc.close();
+
+			Map<String, User> users = new HashMap<String, User>();
+			new UserJournal(file, 0, users).close();
+			assertEquals(1, users.size());
+			assertEquals(-1, users.get("admin").getPosition());
+			assertEquals(size, Files.size(file));
+		}finally{
+			Files.deleteIfExists(file);
+		}
+	}
+}
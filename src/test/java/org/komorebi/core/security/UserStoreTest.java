@@ -0,0 +1,108 @@
+package org.komorebi.core.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UserStoreTest {
+	private Path directory = null;
+	private File storeFile = null;
+	
+	@Before
+	public void setUp() throws IOException{
+		directory = Files.createTempDirectory("userstore");
+		storeFile = directory.resolve("user.str").toFile();
+		
+		User admin = new User();
+		admin.setName("admin");
+		FileChannel out = FileChannel.open(storeFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		try{
+			UserStoreV2.write(out, Collections.singletonList(admin), null, 0);
+		}finally{
+			out.close();
+		}
+	}
+	
+	@After
+	public void tearDown() throws IOException{
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	/**
+	 * A plain text password that does not fit into the hash slot must not be cut, otherwise
+	 * every password that starts the same way would be accepted.
+	 */
+	@Test
+	public void testLongPlainPassword(){
+		UserStore store = new UserStore();
+		assertTrue(store.load(storeFile, "PLAIN"));
+		
+		StringBuilder password = new StringBuilder();
+		for(int i=0; i<100; ++i){
+			password.append((char) ('a' + i % 26));
+		}
+		assertTrue(store.setPassword(store.getUser("admin"), password.toString().toCharArray()));
+		
+		assertFalse("cut password was accepted", store.checkPassword(store.getUser("admin"), password.substring(0, UserStoreV2.SLOT_LEN).toCharArray()));
+		assertTrue("password was not accepted", store.checkPassword(store.getUser("admin"), password.toString().toCharArray()));
+		
+		assertTrue(store.setPassword(store.getUser("admin"), "short".toCharArray()));
+		assertTrue("short password was not accepted", store.checkPassword(store.getUser("admin"), "short".toCharArray()));
+		assertFalse(store.checkPassword(store.getUser("admin"), "shor".toCharArray()));
+	}
+	
+	/**
+	 * Passwords must be set in the password block the user has now, also for users that were
+	 * read before a compaction or that were added after the last one.
+	 */
+	@Test
+	public void testMovedPasswordBlock() throws IOException{
+		UserStore store = new UserStore();
+		assertTrue(store.load(storeFile, "PLAIN"));
+		User admin = store.getUser("admin");
+		
+		for(int i=0; i<10; ++i){
+			User u = new User();
+			u.setName("user"+i);
+			u.setCredentialValue("location", "key", "value "+i);
+			assertEquals(UserStore.UpdateResult.UPDATED, store.updateUser(null, u));
+		}
+		User added = store.getUser("user5");
+		assertTrue("password of a new user was not set", store.setPassword(added, "secret".toCharArray()));
+		assertTrue("store was not compacted", store.getUser("admin").getPosition() != admin.getPosition());
+		assertTrue("password of a moved user was not set", store.setPassword(admin, "admin".toCharArray()));
+		
+		UserStore reloaded = new UserStore();
+		assertTrue("store was corrupted", reloaded.load(storeFile, "PLAIN"));
+		assertTrue(reloaded.checkPassword(reloaded.getUser("user5"), "secret".toCharArray()));
+		assertTrue(reloaded.checkPassword(reloaded.getUser("admin"), "admin".toCharArray()));
+		assertEquals("value 3", reloaded.getUser("user3").getCredentialValue("location", "key"));
+	}
+}
@@ -0,0 +1,170 @@
+package org.komorebi.core.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Checksum;
+
+import org.junit.Test;
+
+public class UserStoreV2Test {
+
+	/**
+	 * Users must be read back as they were written, with their hash slots at the returned positions.
+	 */
+	@Test
+	public void testRoundTrip() throws IOException{
+		List<User> users = new ArrayList<User>();
+		for(int i=0; i<200; ++i){
+			User u = new User();
+			u.setName("user"+i);
+			u.setCredentialValue("location", "key", "value "+i);
+			u.setCredentialValue("\u00fcber", "k", "");
+			u.setPrivilegeWord(0, i == 0 ? -1L : i);
+			if(i == 1){
+				u.setPrivilegeWord(1, 1L << 63); // privilege 127
+			}
+			users.add(u);
+		}
+
+		Path file = Files.createTempFile("userstore", ".str");
+		try{
+			Map<String, User> written = write(file, users);
+			MappedByteBuffer map = map(file);
+			assertEquals(UserStoreV2.VERSION, map.getInt());
+			Map<String, User> read = new HashMap<String, User>();
+			assertEquals(UserStoreV2.SLOT_LEN, UserStoreV2.read(map, read));
+
+			assertEquals(200, read.size());
+			for(int i=0; i<200; ++i){
+				User u = read.get("user"+i);
+				assertEquals("value "+i, u.getCredentialValue("location", "key"));
+				assertEquals("", u.getCredentialValue("\u00fcber", "k"));
+				assertEquals(i == 0 ? -1L : i, u.getPrivilegeWord(0));
+				assertEquals(i == 1 ? 1L << 63 : 0, u.getPrivilegeWord(1));
+				assertEquals(written.get("user"+i).getPosition(), u.getPosition());
+			}
+
+			// damaged user data must be detected
+			User last = read.get("user199");
+			map.put((int) last.getPosition() + UserStoreV2.SLOT_LEN + 2, (byte) 'X');
+			try{
+				UserStoreV2.read((ByteBuffer) map.position(4), new HashMap<String, User>());
+				fail("damaged record was accepted");
+			}catch(IOException e){
+				assertTrue(e.getMessage().contains("checksum"));
+			}
+		}finally{
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Plain text passwords of version 1 that do not fit into a hash slot must be hashed, not cut.
+	 */
+	@Test
+	public void testLongPlainPassword() throws IOException{
+		StringBuilder longPassword = new StringBuilder();
+		for(int i=0; i<100; ++i){
+			longPassword.append((char) ('a' + i % 26));
+		}
+		ByteBuffer old = ByteBuffer.allocate(2 * 1024);
+		for(int i=0; i<longPassword.length(); ++i){
+			old.put(i, (byte) longPassword.charAt(i));
+		}
+		old.put(1024, (byte) 's').put(1025, (byte) 'h').put(1026, (byte) 'o');
+
+		List<User> users = new ArrayList<User>();
+		for(int i=0; i<2; ++i){
+			User u = new User();
+			u.setName(i == 0 ? "long" : "short");
+			u.setPosition(1024 * i);
+			users.add(u);
+		}
+
+		Path file = Files.createTempFile("userstore", ".str");
+		try{
+			PasswordHasher hasher = new PasswordHasher(1000, 1, 4);
+			FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			Map<String, User> written;
+			try{
+				written = UserStoreV2.write(out, users, old, 1024, hasher);
+			}finally{
+				out.close();
+			}
+
+			MappedByteBuffer map = map(file);
+			byte[] slot = new byte[UserStoreV2.SLOT_LEN];
+			((ByteBuffer) map.duplicate().position((int) written.get("long").getPosition())).get(slot);
+			assertTrue("long password was not hashed", PasswordHasher.isHashed(slot));
+			assertTrue("hashed password was not accepted", hasher.verify(slot, longPassword.toString().toCharArray()));
+			assertFalse("cut password was accepted", hasher.verify(slot, longPassword.substring(0, UserStoreV2.SLOT_LEN).toCharArray()));
+
+			((ByteBuffer) map.duplicate().position((int) written.get("short").getPosition())).get(slot);
+			assertEquals("short password was changed", "sho", new String(slot, 0, 3, "US-ASCII"));
+			assertEquals(0, slot[3]);
+		}finally{
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Varints must cover the whole range of a long.
+	 */
+	@Test
+	public void testVarint() throws IOException{
+		long[] values = {0, 1, 127, 128, 300, Integer.MAX_VALUE, Long.MAX_VALUE, -1L};
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for(long v: values){
+			UserStoreV2.writeVarint(v, out);
+		}
+		ByteBuffer in = ByteBuffer.wrap(out.toByteArray());
+		for(long v: values){
+			assertEquals(v, UserStoreV2.readVarint(in));
+		}
+	}
+
+	/**
+	 * Known CRC-32C check value.
+	 */
+	@Test
+	public void testCrc32c(){
+		Checksum crc = new Crc32c();
+		byte[] check = "123456789".getBytes();
+		crc.update(check, 0, check.length);
+		assertEquals(0xE3069283L, crc.getValue());
+	}
+
+	private static Map<String, User> write(Path file, List<User> users) throws IOException{
+		FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try{
+			return UserStoreV2.write(out, users, null, 0);
+		}finally{
+			out.close();
+		}
+	}
+
+	private static MappedByteBuffer map(Path file) throws IOException{
+		FileChannel fc = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try{
+			return fc.map(MapMode.READ_WRITE, 0, fc.size());
+		}finally{
+			fc.close();
+		}
+	}
+}
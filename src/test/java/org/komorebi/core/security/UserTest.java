@@ -75,4 +75,41 @@ public class UserTest {
 		assertTrue("test credentials #2 were not added", "0".equals(user.getCredentialValue("testlocation1", "kA")));
 		assertTrue("test credentials #3 were not added", "1".equals(user.getCredentialValue("testlocation1", "kB")));
 	}
+	
+	/**
+	 * Changing a copy of a user must not change the original.
+	 */
+	@Test
+	public void testCopy(){
+		User user = new User();
+		user.setName("original");
+		user.setCredentialValue("testlocation", "k0", "0");
+		
+		User copy = new User(user);
+		copy.setCredentialValue("testlocation", "k0", "1");
+		copy.setCredentialValue("testlocation", "k1", "2");
+		copy.setPrivilege(Privilege.getPrivileges()[0], true);
+		
+		assertTrue("name was not copied", "original".equals(copy.getName()));
+		assertTrue("original credentials were changed", "0".equals(user.getCredentialValue("testlocation", "k0")));
+		assertTrue("original locations were changed", user.getCredentials("testlocation").size() == 1);
+		assertFalse("original privileges were changed", user.getPrivilegeWord(0) != 0);
+	}
+	
+	/**
+	 * Privileges given by name and by type must be the same bits, undefined role names are no privileges.
+	 */
+	@Test
+	public void testPrivilegeTypes(){
+		User user = new User();
+		user.setPrivilege(Privilege.GRANT_LOCATION, true);
+		assertTrue(user.hasPrivilege(Privilege.Type.GRANT_LOCATION));
+		assertFalse(user.hasPrivilege(Privilege.Type.ADMINISTRATOR));
+		assertTrue("bit does not match the ordinal", user.getPrivilegeWord(0) == 1L << Privilege.Type.GRANT_LOCATION.ordinal());
+		
+		KomorebiSecurityContext context = new KomorebiSecurityContext(user);
+		assertTrue(context.isUserInRole(Privilege.GRANT_LOCATION));
+		assertFalse(context.isUserInRole(Privilege.ADMINISTRATOR));
+		assertFalse(context.isUserInRole("NoSuchRole"));
+	}
 }
@@ -0,0 +1,93 @@
+package org.komorebi.core.storeengine;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChunkCacheTest {
+	private static final int CHUNK = 1000;
+	private Path directory = null;
+	
+	@Before
+	public void setUp() throws IOException{
+		directory = Files.createTempDirectory("chunkcache");
+	}
+	
+	@After
+	public void tearDown() throws IOException{
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	/**
+	 * Popular chunks must survive a scan of chunks that are read only once.
+	 */
+	@Test
+	public void testScanResistance() throws IOException{
+		ChunkCache cache = new ChunkCache(directory, 10 * CHUNK, CHUNK);
+		for(int round=0; round<5; ++round){
+			for(int i=0; i<5; ++i){
+				read(cache, "hot-"+i);
+			}
+		}
+		for(int i=0; i<100; ++i){
+			read(cache, "scan-"+i);
+		}
+		
+		for(int i=0; i<5; ++i){
+			assertNotNull("popular chunk "+i+" was evicted", cache.get("hot-"+i, CHUNK));
+		}
+		assertTrue("cache is too large", cache.getSize() <= 10 * CHUNK);
+	}
+	
+	/**
+	 * The index must be rebuilt from the directory.
+	 */
+	@Test
+	public void testRebuild() throws IOException{
+		ChunkCache cache = new ChunkCache(directory, 10 * CHUNK, CHUNK);
+		read(cache, "a");
+		read(cache, "b");
+		
+		ChunkCache reopened = new ChunkCache(directory, 10 * CHUNK, CHUNK);
+		assertTrue("chunks got lost", reopened.getEntryCount() == cache.getEntryCount());
+		ByteBuffer data = reopened.get("a", CHUNK);
+		assertNotNull("chunk was not found", data);
+		assertTrue("chunk has wrong content", data.get(0) == (byte) "a".hashCode());
+		assertNull("chunk with wrong size was returned", reopened.get("b", CHUNK + 1));
+	}
+	
+	/**
+	 * Reads a chunk like the read path does: look it up and add it on a miss.
+	 */
+	private void read(ChunkCache cache, String id) throws IOException{
+		if(cache.get(id, CHUNK) == null){
+			byte[] data = new byte[CHUNK];
+			data[0] = (byte) id.hashCode();
+			cache.put(id, ByteBuffer.wrap(data));
+		}
+	}
+}
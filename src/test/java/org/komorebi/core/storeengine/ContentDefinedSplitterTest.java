@@ -0,0 +1,116 @@
+package org.komorebi.core.storeengine;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ContentDefinedSplitterTest {
+	private static final int MAX = 16 * 1024;
+	private static final int AVERAGE = 4 * 1024;
+
+	/**
+	 * Inserting bytes at the start of a file must only change the first chunks.
+	 */
+	@Test
+	public void testInsertKeepsChunks() throws Exception{
+		byte[] data = new byte[512 * 1024];
+		new Random(7).nextBytes(data);
+		
+		byte[] shifted = new byte[data.length + 100];
+		System.arraycopy(data, 0, shifted, 100, data.length);
+		
+		Set<ByteBuffer> original = split(data);
+		Set<ByteBuffer> modified = split(shifted);
+		
+		int shared = 0;
+		for(ByteBuffer b: modified){
+			if(original.contains(b)){
+				++shared;
+			}
+		}
+		assertTrue("only "+shared+" of "+original.size()+" chunks survived the insert", shared >= original.size() - 3);
+	}
+	
+	/**
+	 * More splitters than pool buffers must not block each other for good. Every splitter holds
+	 * at most one pooled buffer (the chunk it hands out) at a time.
+	 */
+	@Test
+	public void testMoreSplittersThanBuffers() throws Exception{
+		final ChunkBufferPool pool = new ChunkBufferPool(MAX, 2);
+		final byte[] data = new byte[256 * 1024];
+		new Random(11).nextBytes(data);
+		
+		int uploads = 6;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(uploads);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>(null);
+		for(int i=0; i<uploads; ++i){
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try{
+						start.await();
+						ContentDefinedSplitter splitter = new ContentDefinedSplitter(Channels.newChannel(new ByteArrayInputStream(data)), pool, AVERAGE);
+						long length = 0;
+						Chunk c;
+						while((c = splitter.next()) != null){
+							length += c.getLength();
+							Thread.yield(); // hold the chunk for a moment like a storage task
+							c.release();
+						}
+						if(length != data.length){
+							throw new AssertionError("data was lost");
+						}
+					}catch(Throwable e){
+						error.compareAndSet(null, e);
+					}finally{
+						done.countDown();
+					}
+				}
+			});
+			t.setDaemon(true);
+			t.start();
+		}
+		
+		start.countDown();
+		assertTrue("splitters are deadlocked", done.await(30, TimeUnit.SECONDS));
+		assertTrue("splitting failed: "+error.get(), error.get() == null);
+	}
+	
+	/**
+	 * Splits data and returns copies of all chunks. Also checks the size limits and that no bytes are lost.
+	 */
+	private Set<ByteBuffer> split(byte[] data) throws Exception{
+		ChunkBufferPool pool = new ChunkBufferPool(MAX, 4);
+		ContentDefinedSplitter splitter = new ContentDefinedSplitter(Channels.newChannel(new ByteArrayInputStream(data)), pool, AVERAGE);
+		
+		Set<ByteBuffer> chunks = new HashSet<ByteBuffer>();
+		long offset = 0;
+		Chunk c = null;
+		while((c = splitter.next()) != null){
+			assertTrue("chunk offset is wrong", c.getOffset() == offset);
+			assertTrue("chunk too large", c.getLength() <= MAX);
+			
+			ByteBuffer copy = ByteBuffer.allocate(c.getLength());
+			copy.put(c.getData());
+			copy.flip();
+			assertTrue("chunk data does not match", copy.equals(ByteBuffer.wrap(data, (int) offset, c.getLength())));
+			
+			chunks.add(copy);
+			offset += c.getLength();
+			c.release();
+		}
+		assertTrue("data was lost", offset == data.length);
+		return chunks;
+	}
+}
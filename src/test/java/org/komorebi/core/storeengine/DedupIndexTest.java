@@ -0,0 +1,108 @@
+package org.komorebi.core.storeengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.komorebi.core.security.User;
+
+public class DedupIndexTest {
+
+	/**
+	 * A chunk may only be skipped after it was stored and is removed with its last reference.
+	 */
+	@Test
+	public void testReferences(){
+		DedupIndex index = new DedupIndex(16);
+		assertFalse("unknown chunk reported as stored", index.acquire(1, 2, 0));
+		assertFalse("pending chunk reported as stored", index.acquire(1, 2, 0));
+		index.stored(1, 2, 0);
+		assertTrue("stored chunk not found", index.acquire(1, 2, 0));
+		assertFalse("chunk reported as stored at other location", index.acquire(1, 2, 1));
+		
+		assertFalse("chunk removed while referenced", index.release(1, 2, 0));
+		assertFalse("chunk removed while referenced", index.release(1, 2, 0));
+		assertTrue("last reference did not remove the chunk", index.release(1, 2, 0));
+		assertTrue("removed chunk still referenced", index.getReferences(1, 2, 0) == 0);
+	}
+	
+	/**
+	 * A retired chunk must only be deleted if it was not referenced again, and uploads must wait
+	 * until a running deletion ended.
+	 */
+	@Test
+	public void testRemoval() throws Exception{
+		final DedupIndex index = new DedupIndex(16);
+		index.acquire(1, 2, 0);
+		index.stored(1, 2, 0);
+		assertTrue("last reference was not retired", index.retire(1, 2, 0));
+		assertTrue("retired chunk is not reused", index.acquire(1, 2, 0));
+		assertFalse("chunk that is referenced again was deleted", index.startRemoval(1, 2, 0));
+		
+		assertTrue(index.retire(1, 2, 0));
+		assertTrue(index.startRemoval(1, 2, 0));
+		final AtomicBoolean stored = new AtomicBoolean(true);
+		Thread upload = new Thread(new Runnable() {
+			public void run() {
+				stored.set(index.acquire(1, 2, 0));
+			}
+		});
+		upload.start();
+		upload.join(100);
+		assertTrue("upload did not wait for the deletion", upload.isAlive());
+		
+		index.finishRemoval(1, 2, 0);
+		upload.join(5000);
+		assertFalse("upload did not end", upload.isAlive());
+		assertFalse("deleted chunk reported as stored", stored.get());
+		assertEquals(1, index.getReferences(1, 2, 0));
+	}
+	
+	/**
+	 * Many entries with removals in between must stay findable (resizing and backward shift deletion).
+	 */
+	@Test
+	public void testManyEntries(){
+		DedupIndex index = new DedupIndex(16);
+		Random r = new Random(3);
+		long[] keys = new long[10000];
+		for(int i=0; i<keys.length; ++i){
+			keys[i] = r.nextLong();
+			index.acquire(keys[i], i, i % 3);
+		}
+		
+		for(int i=0; i<keys.length; i+=2){
+			assertTrue("entry "+i+" could not be removed", index.release(keys[i], i, i % 3));
+		}
+		
+		assertTrue("size is wrong", index.size() == keys.length / 2);
+		for(int i=1; i<keys.length; i+=2){
+			assertTrue("entry "+i+" got lost", index.getReferences(keys[i], i, i % 3) == 1);
+		}
+	}
+	
+	/**
+	 * Locations with the same name but other credentials must not share index entries.
+	 */
+	@Test
+	public void testLocationKey() throws Exception{
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		User a = new User();
+		a.setName("a");
+		a.setCredentialValue("backup", "plugin", "ftp");
+		a.setCredentialValue("backup", "account", "alice");
+		User b = new User();
+		b.setName("b");
+		b.setCredentialValue("backup", "plugin", "ftp");
+		b.setCredentialValue("backup", "account", "bob");
+		assertFalse("different credentials share a location", StorageManager.locationKey(a, "backup", md).equals(StorageManager.locationKey(b, "backup", md)));
+		
+		b.setCredentialValue("backup", "account", "alice");
+		assertEquals("same credentials give different locations", StorageManager.locationKey(a, "backup", md), StorageManager.locationKey(b, "backup", md));
+	}
+}
@@ -0,0 +1,30 @@
+package org.komorebi.core.storeengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+	/**
+	 * Counters must stop at 15 without touching the counters packed next to them and must
+	 * be halved once the sample size is reached.
+	 */
+	@Test
+	public void testCounters(){
+		FrequencySketch sketch = new FrequencySketch(64);
+		for(int i=0; i<20; ++i){
+			sketch.increment(1);
+		}
+		assertEquals(15, sketch.frequency(1));
+		assertEquals(0, sketch.frequency(2));
+
+		// 15 additions so far, the sample size of 64 keys is 1280
+		for(int i=0; i<1280-15; ++i){
+			sketch.increment(1000 + i);
+		}
+		int halved = sketch.frequency(1);
+		assertTrue("counter was not halved: "+halved, halved >= 7 && halved < 15);
+	}
+}
@@ -0,0 +1,44 @@
+package org.komorebi.core.storeengine;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	/**
+	 * Percentiles must be accurate to the bucket resolution and need enough samples.
+	 */
+	@Test
+	public void testPercentile(){
+		LatencyHistogram h = new LatencyHistogram(1 << 20);
+		assertTrue("percentile without samples", h.getPercentile(50, 1) == -1);
+		
+		for(long v=1; v<=10000; ++v){
+			h.record(v);
+		}
+		assertTrue("percentile with too few samples", h.getPercentile(50, 20000) == -1);
+		
+		long p50 = h.getPercentile(50, 1);
+		long p99 = h.getPercentile(99, 1);
+		assertTrue("p50 is "+p50, p50 >= 5000 && p50 <= 5000 * 1.125);
+		assertTrue("p99 is "+p99, p99 >= 9900 && p99 <= 9900 * 1.125);
+	}
+	
+	/**
+	 * Old samples must lose their weight so the histogram follows the backend.
+	 */
+	@Test
+	public void testDecay(){
+		LatencyHistogram h = new LatencyHistogram(100);
+		for(int i=0; i<100; ++i){
+			h.record(100000);
+		}
+		for(int i=0; i<1000; ++i){
+			h.record(10);
+		}
+		
+		long p95 = h.getPercentile(95, 1);
+		assertTrue("slow samples did not decay (p95 is "+p95+")", p95 < 100);
+	}
+}
@@ -0,0 +1,102 @@
+package org.komorebi.core.storeengine;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encode and decode throughput of the erasure code. Each operation processes one stripe.
+ * 
+ * Run with:
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main -Dexec.args=ReedSolomonBenchmark</code>
+ * 
+ * @author lycis
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReedSolomonBenchmark {
+	
+	@Param({"4"})
+	public int dataShards;
+	
+	@Param({"2"})
+	public int parityShards;
+	
+	@Param({"65536", "4194304"})
+	public int shardSize;
+	
+	@Param({"true", "false"})
+	public boolean direct;
+	
+	private ReedSolomon coder;
+	private ByteBuffer[] data;
+	private ByteBuffer[] parity;
+	private ByteBuffer[] shards;
+	private boolean[] present;
+	
+	@Setup
+	public void setup(){
+		coder = new ReedSolomon(dataShards, parityShards);
+		Random r = new Random(42);
+		
+		data = new ByteBuffer[dataShards];
+		for(int i=0; i<dataShards; ++i){
+			byte[] b = new byte[shardSize];
+			r.nextBytes(b);
+			data[i] = allocate();
+			data[i].put(b);
+			data[i].flip();
+		}
+		
+		parity = new ByteBuffer[parityShards];
+		for(int i=0; i<parityShards; ++i){
+			parity[i] = allocate();
+		}
+		coder.encodeParity(data, parity, shardSize);
+		
+		// decoding: the first m data shards are lost
+		shards = new ByteBuffer[dataShards + parityShards];
+		present = new boolean[dataShards + parityShards];
+		for(int i=0; i<dataShards; ++i){
+			present[i] = i >= parityShards;
+			shards[i] = present[i] ? data[i] : allocate();
+		}
+		for(int i=0; i<parityShards; ++i){
+			shards[dataShards + i] = parity[i];
+			present[dataShards + i] = true;
+		}
+	}
+	
+	private ByteBuffer allocate(){
+		return direct ? ByteBuffer.allocateDirect(shardSize) : ByteBuffer.allocate(shardSize);
+	}
+	
+	@Benchmark
+	public ByteBuffer[] encode(){
+		coder.encodeParity(data, parity, shardSize);
+		return parity;
+	}
+	
+	@Benchmark
+	public ByteBuffer[] decode(){
+		coder.reconstruct(shards, present, shardSize);
+		return shards;
+	}
+}
@@ -0,0 +1,133 @@
+package org.komorebi.core.storeengine;
+
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ReedSolomonTest {
+	private static final int K = 4;
+	private static final int M = 2;
+	private static final int LEN = 1000;
+
+	/**
+	 * Encodes random data and checks that every combination of up to m lost shards can be restored.
+	 */
+	@Test
+	public void testReconstructAnyLoss(){
+		ReedSolomon rs = new ReedSolomon(K, M);
+		byte[][] original = encodeRandom(rs, true);
+		
+		for(int a=0; a<K+M; ++a){
+			for(int b=a; b<K+M; ++b){
+				ByteBuffer[] shards = new ByteBuffer[K+M];
+				boolean[] present = new boolean[K+M];
+				for(int i=0; i<K+M; ++i){
+					present[i] = (i != a && i != b);
+					shards[i] = present[i] ? ByteBuffer.wrap(original[i].clone()) : ByteBuffer.allocateDirect(LEN);
+				}
+				
+				rs.reconstruct(shards, present, LEN);
+				for(int i=0; i<K+M; ++i){
+					for(int j=0; j<LEN; ++j){
+						assertTrue("shard "+i+" differs after losing "+a+" and "+b, shards[i].get(j) == original[i][j]);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adding data shards one after another has to give the same parity as encoding them at once.
+	 */
+	@Test
+	public void testIncrementalParity(){
+		ReedSolomon rs = new ReedSolomon(K, M);
+		byte[][] original = encodeRandom(rs, false);
+		
+		ByteBuffer[] parity = new ByteBuffer[M];
+		for(int p=0; p<M; ++p){
+			parity[p] = ByteBuffer.allocateDirect(LEN);
+		}
+		for(int d=K-1; d>=0; --d){
+			rs.addToParity(ByteBuffer.wrap(original[d]), d, parity);
+		}
+		
+		for(int p=0; p<M; ++p){
+			for(int j=0; j<LEN; ++j){
+				assertTrue("parity "+p+" differs at "+j, parity[p].get(j) == original[K+p][j]);
+			}
+		}
+	}
+	
+	/**
+	 * Direct and read-only shards that span several copy blocks must give the same parity as
+	 * heap shards, also when their data does not start at the beginning of the buffer.
+	 */
+	@Test
+	public void testDirectShards(){
+		int len = 20000;
+		ReedSolomon rs = new ReedSolomon(K, M);
+		Random r = new Random(7);
+		ByteBuffer[] heap = new ByteBuffer[K];
+		ByteBuffer[] direct = new ByteBuffer[K];
+		for(int i=0; i<K; ++i){
+			byte[] b = new byte[len];
+			r.nextBytes(b);
+			heap[i] = ByteBuffer.wrap(b);
+			ByteBuffer d = ByteBuffer.allocateDirect(len + 3);
+			d.position(3);
+			d.put(b);
+			d.position(3);
+			direct[i] = d.asReadOnlyBuffer();
+		}
+		
+		ByteBuffer[] expected = new ByteBuffer[M];
+		ByteBuffer[] parity = new ByteBuffer[M];
+		for(int p=0; p<M; ++p){
+			expected[p] = ByteBuffer.allocate(len);
+			parity[p] = ByteBuffer.allocateDirect(len + 5);
+			parity[p].position(5);
+		}
+		rs.encodeParity(heap, expected, len);
+		rs.encodeParity(direct, parity, len);
+		
+		for(int p=0; p<M; ++p){
+			assertTrue("parity buffer was moved", parity[p].position() == 5);
+			for(int j=0; j<len; ++j){
+				assertTrue("parity "+p+" differs at "+j, parity[p].get(5+j) == expected[p].get(j));
+			}
+		}
+		for(int i=0; i<K; ++i){
+			assertTrue("data buffer was moved", direct[i].position() == 3);
+		}
+	}
+	
+	/**
+	 * Creates random data shards and their parity.
+	 */
+	private byte[][] encodeRandom(ReedSolomon rs, boolean directParity){
+		Random r = new Random(42);
+		byte[][] shards = new byte[K+M][LEN];
+		ByteBuffer[] data = new ByteBuffer[K];
+		for(int i=0; i<K; ++i){
+			r.nextBytes(shards[i]);
+			data[i] = ByteBuffer.wrap(shards[i]);
+		}
+		
+		ByteBuffer[] parity = new ByteBuffer[M];
+		for(int p=0; p<M; ++p){
+			parity[p] = directParity ? ByteBuffer.allocateDirect(LEN) : ByteBuffer.wrap(shards[K+p]);
+		}
+		rs.encodeParity(data, parity, LEN);
+		
+		if(directParity){
+			for(int p=0; p<M; ++p){
+				parity[p].get(shards[K+p]);
+			}
+		}
+		return shards;
+	}
+}
@@ -0,0 +1,106 @@
+package org.komorebi.core.storeengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.komorebi.core.security.User;
+
+public class ScatterEngineTest {
+
+	/**
+	 * Storage that blocks its first write and records the size of every call.
+	 */
+	private static class BatchStorage implements IBatchChunkStorage {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		final List<Integer> calls = new CopyOnWriteArrayList<Integer>();
+
+		private void call(int chunks) throws IOException{
+			calls.add(chunks);
+			entered.countDown();
+			try{
+				proceed.await();
+			}catch(InterruptedException e){
+				throw new IOException(e);
+			}
+		}
+
+		public void writeChunk(User user, String location, String chunkId, ByteBuffer data) throws IOException {
+			call(1);
+		}
+
+		public ByteBuffer readChunk(User user, String location, String chunkId) throws IOException {
+			return null;
+		}
+
+		public void deleteChunk(User user, String location, String chunkId) throws IOException {
+		}
+
+		public void writeChunks(User user, String location, String[] chunkIds, ByteBuffer[] data) throws IOException {
+			call(chunkIds.length);
+		}
+
+		public void deleteChunks(User user, String location, String[] chunkIds) throws IOException {
+		}
+	}
+
+	/**
+	 * Chunks that arrive while the location is busy must be written with one call.
+	 */
+	@Test
+	public void testBatch() throws Exception{
+		final BatchStorage storage = new BatchStorage();
+		ScatterEngine engine = new ScatterEngine(4, 1, 32, 1 << 20) {
+			IChunkStorage acquireStorage(String plugin){
+				return storage;
+			}
+
+			void releaseStorage(String plugin, IChunkStorage s, boolean failed){
+			}
+		};
+
+		User user = new User();
+		user.setName("test");
+		user.setCredentialValue("loc", StorageLocations.PLUGIN_KEY, "batch");
+
+		ChunkBufferPool pool = new ChunkBufferPool(1024, 8);
+		final CountDownLatch written = new CountDownLatch(6);
+		ScatterEngine.Listener listener = new ScatterEngine.Listener() {
+			public void chunkWritten(Chunk chunk, String[] locations) {
+				chunk.release();
+				written.countDown();
+			}
+
+			public void chunkFailed(Chunk chunk, String reason) {
+				chunk.release();
+			}
+		};
+
+		engine.scatter(user, "c0", chunk(pool, 0), new String[]{"loc"}, listener);
+		assertTrue("first write did not start", storage.entered.await(10, TimeUnit.SECONDS));
+		for(int i=1; i<6; ++i){
+			engine.scatter(user, "c"+i, chunk(pool, i), new String[]{"loc"}, listener);
+		}
+		storage.proceed.countDown();
+
+		assertTrue("chunks were not written", written.await(10, TimeUnit.SECONDS));
+		assertEquals("queued chunks were not batched", 2, storage.calls.size());
+		assertEquals(5, (int) Collections.max(storage.calls));
+	}
+
+	private static Chunk chunk(ChunkBufferPool pool, int index) throws InterruptedException{
+		ByteBuffer buf = pool.acquire();
+		buf.put(new byte[100]);
+		buf.flip();
+		return new Chunk(index, index * 100, buf, pool);
+	}
+}
@@ -0,0 +1,81 @@
+package org.komorebi.core.storeengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StorageJobTest {
+
+	/**
+	 * A job has to be done as soon as it was split completely and all chunks are stored.
+	 */
+	@Test
+	public void testDoneAfterAllChunksStored(){
+		StorageJob job = new StorageJob(1, "user", "file");
+		assertTrue("new job is not queued", job.getStatus() == StorageJob.Status.QUEUED);
+		
+		job.setStatus(StorageJob.Status.SPLITTING);
+		job.chunkQueued();
+		job.chunkQueued();
+		assertFalse("job finished before splitting was done", job.chunkStored());
+		
+		assertFalse("job finished with chunks pending", job.splitFinished(10));
+		assertTrue("job is not uploading", job.getStatus() == StorageJob.Status.UPLOADING);
+		
+		assertTrue("last chunk did not finish the job", job.chunkStored());
+		assertTrue("job is not done", job.getStatus() == StorageJob.Status.DONE);
+	}
+	
+	/**
+	 * A failed job must not change its state anymore.
+	 */
+	@Test
+	public void testFailedIsFinal(){
+		StorageJob job = new StorageJob(1, "user", "file");
+		job.setStatus(StorageJob.Status.SPLITTING);
+		job.chunkQueued();
+		assertTrue("job could not fail", job.fail("test"));
+		assertFalse("job failed twice", job.fail("test"));
+		
+		job.splitFinished(10);
+		job.chunkStored();
+		assertTrue("failed job changed its state", job.getStatus() == StorageJob.Status.FAILED);
+		assertTrue("stage time of splitting missing", job.getStageTime(StorageJob.Status.SPLITTING) >= 0);
+		assertTrue("stage time of uploading reported", job.getStageTime(StorageJob.Status.UPLOADING) < 0);
+	}
+	
+	/**
+	 * Listeners must see every state, the final one only when the job is completed and only once.
+	 */
+	@Test
+	public void testListeners(){
+		StorageJob job = new StorageJob(1, "user", "file");
+		final List<StorageJob.Status> seen = new ArrayList<StorageJob.Status>();
+		StorageJob.Listener listener = new StorageJob.Listener() {
+			public void statusChanged(StorageJob j) {
+				seen.add(j.getStatus());
+			}
+		};
+		job.addListener(listener);
+		
+		job.setStatus(StorageJob.Status.SPLITTING);
+		job.chunkQueued();
+		job.splitFinished(10);
+		assertTrue(job.chunkStored());
+		assertEquals(2, seen.size()); // DONE is not announced before the job is completed
+		
+		job.completed();
+		job.completed();
+		assertEquals(3, seen.size());
+		assertEquals(StorageJob.Status.DONE, seen.get(2));
+		
+		// late listeners are called at once
+		job.addListener(listener);
+		assertEquals(4, seen.size());
+	}
+}
@@ -0,0 +1,89 @@
+package org.komorebi.core.storeengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+	/**
+	 * Entries must expire after their delay, also when the delay is longer than one
+	 * revolution of the wheel. Only lower bounds are checked so a slow machine can not
+	 * make the test fail.
+	 */
+	@Test
+	public void testExpiry() throws InterruptedException{
+		final Map<Long, Long> expired = new ConcurrentHashMap<Long, Long>(); // ID -> System.nanoTime() of expiry
+		TimingWheel wheel = new TimingWheel("test-wheel", 4, 10, new TimingWheel.ExpiryHandler() {
+			public void expired(long id) {
+				expired.put(id, System.nanoTime());
+			}
+		});
+		
+		try{
+			long scheduled = System.nanoTime();
+			wheel.schedule(1, 10);
+			wheel.schedule(2, 100); // more than two revolutions
+			
+			long until = System.currentTimeMillis() + 10000;
+			while(expired.size() < 2 && System.currentTimeMillis() < until){
+				Thread.sleep(10);
+			}
+			assertTrue("short entry did not expire", expired.containsKey(1L));
+			assertTrue("long entry did not expire", expired.containsKey(2L));
+			assertTrue("short entry expired too early", expired.get(1L) - scheduled >= 10000000L);
+			assertTrue("long entry expired too early", expired.get(2L) - scheduled >= 100000000L);
+		}finally{
+			wheel.stop();
+		}
+	}
+	
+	/**
+	 * Entries must expire on the tick after their delay, also entries that are scheduled while a
+	 * slot is expired. The wheel is turned by hand so the test does not depend on timing.
+	 */
+	@Test
+	public void testTicks(){
+		final List<Long> expired = new ArrayList<Long>();
+		final TimingWheel[] wheel = new TimingWheel[1];
+		wheel[0] = new TimingWheel("test-wheel", 4, TimeUnit.HOURS.toMillis(1), new TimingWheel.ExpiryHandler() {
+			public void expired(long id) {
+				expired.add(id);
+				if(id == 1){
+					wheel[0].schedule(3, 1); // scheduled while the slot is expired
+				}
+			}
+		});
+		
+		try{
+			wheel[0].schedule(1, 1); // one tick
+			wheel[0].schedule(2, TimeUnit.HOURS.toMillis(9)); // nine ticks, more than two revolutions
+			
+			wheel[0].tick();
+			assertEquals("entry expired before its delay", 0, expired.size());
+			wheel[0].tick();
+			assertEquals(Arrays.asList(1L), expired);
+			wheel[0].tick();
+			assertEquals("entry scheduled during expiry expired too early", Arrays.asList(1L), expired);
+			wheel[0].tick();
+			assertEquals("entry scheduled during expiry was missed", Arrays.asList(1L, 3L), expired);
+			
+			for(int i=5; i<=9; ++i){
+				wheel[0].tick();
+			}
+			assertEquals("long entry expired too early", 2, expired.size());
+			wheel[0].tick();
+			assertEquals(Arrays.asList(1L, 3L, 2L), expired);
+		}finally{
+			wheel[0].stop();
+		}
+	}
+}